@@ -26,6 +26,8 @@ public interface HgBuffer extends HgObject<HgBuffer> {
     @ThreadSafety.Many
     MemoryType memoryType();
     
+    // host visible memory is persistently mapped, so map/unmap are cheap
+    // on non-coherent memory map invalidates and unmap flushes the whole buffer, use flush/invalidate for anything finer
     @ThreadSafety.Many
     @ThreadSafety.VulkanObjectHandle
     PointerWrapper map();
@@ -34,6 +36,14 @@ public interface HgBuffer extends HgObject<HgBuffer> {
     @ThreadSafety.VulkanObjectHandle
     void unmap();
     
+    // makes host writes in the range visible to the device, no-op on coherent memory
+    @ThreadSafety.Many
+    void flush(long offset, long size);
+    
+    // makes device writes in the range visible to the host, no-op on coherent memory
+    @ThreadSafety.Many
+    void invalidate(long offset, long size);
+    
     default Slice slice() {
         return new Slice(this, 0, size());
     }
@@ -102,6 +112,16 @@ public interface HgBuffer extends HgObject<HgBuffer> {
             buffer.unmap();
         }
         
+        @ThreadSafety.Many
+        public void flush() {
+            buffer.flush(offset, size);
+        }
+        
+        @ThreadSafety.Many
+        public void invalidate() {
+            buffer.invalidate(offset, size);
+        }
+        
         public Slice slice(long offset, long size) {
             return new Slice(buffer, this.offset + offset, size);
         }
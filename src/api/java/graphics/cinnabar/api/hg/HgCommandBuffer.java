@@ -34,8 +34,14 @@ public interface HgCommandBuffer extends HgObject<HgCommandBuffer> {
     
     HgCommandBuffer copyBufferToBuffer(HgBuffer.Slice src, HgBuffer.Slice dst);
     
+    // one copy command with a region per pair, every src must be from the same buffer, and every dst from the same buffer
+    HgCommandBuffer copyBufferToBuffer(List<HgBuffer.Slice> srcs, List<HgBuffer.Slice> dsts);
+    
     HgCommandBuffer copyBufferToImage(HgBuffer.ImageSlice buffer, HgImage.TransferRange image);
     
+    // one copy command with a region per pair, every buffer slice must be from the same buffer, and every range from the same image
+    HgCommandBuffer copyBufferToImage(List<HgBuffer.ImageSlice> buffers, List<HgImage.TransferRange> images);
+    
     HgCommandBuffer copyImageToBuffer(HgImage.TransferRange image, HgBuffer.ImageSlice buffer);
     
     HgCommandBuffer copyImageToImage(HgImage.TransferRange src, HgImage.TransferRange dst);
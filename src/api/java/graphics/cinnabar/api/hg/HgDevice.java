@@ -3,6 +3,8 @@ package graphics.cinnabar.api.hg;
 import graphics.cinnabar.api.annotations.Constant;
 import graphics.cinnabar.api.annotations.ThreadSafety;
 import graphics.cinnabar.api.hg.enums.HgFormat;
+import graphics.cinnabar.api.memory.MemoryBudget;
+import graphics.cinnabar.api.util.Destroyable;
 import it.unimi.dsi.fastutil.longs.LongLongImmutablePair;
 import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import org.jetbrains.annotations.ApiStatus;
@@ -40,14 +42,30 @@ public interface HgDevice extends HgObject<HgDevice> {
     HgQueue queue(HgQueue.Type queueType);
 
     @ThreadSafety.Many(lockGroups = "bufferCreate")
-    HgBuffer createBuffer(HgBuffer.MemoryRequest request, long size, long usage);
-
+    default HgBuffer createBuffer(HgBuffer.MemoryRequest request, long size, long usage) {
+        return createBuffer(request, size, usage, MemoryBudget.Category.UNCATEGORIZED);
+    }
+    
+    @ThreadSafety.Many(lockGroups = "bufferCreate")
+    HgBuffer createBuffer(HgBuffer.MemoryRequest request, long size, long usage, MemoryBudget.Category category);
+    
     @Nullable
     @ThreadSafety.Many(lockGroups = "bufferCreate")
-    HgBuffer tryCreateBuffer(HgBuffer.MemoryRequest request, long size, long usage);
-
+    default HgBuffer tryCreateBuffer(HgBuffer.MemoryRequest request, long size, long usage) {
+        return tryCreateBuffer(request, size, usage, MemoryBudget.Category.UNCATEGORIZED);
+    }
+    
+    @Nullable
+    @ThreadSafety.Many(lockGroups = "bufferCreate")
+    HgBuffer tryCreateBuffer(HgBuffer.MemoryRequest request, long size, long usage, MemoryBudget.Category category);
+    
     @ThreadSafety.Many
-    HgImage createImage(HgImage.Type type, HgFormat format, int width, int height, int depth, int layers, int mipLevels, long usage, int flags, boolean hostMemory);
+    default HgImage createImage(HgImage.Type type, HgFormat format, int width, int height, int depth, int layers, int mipLevels, long usage, int flags, boolean hostMemory) {
+        return createImage(type, format, width, height, depth, layers, mipLevels, usage, flags, hostMemory, MemoryBudget.Category.UNCATEGORIZED);
+    }
+    
+    @ThreadSafety.Many
+    HgImage createImage(HgImage.Type type, HgFormat format, int width, int height, int depth, int layers, int mipLevels, long usage, int flags, boolean hostMemory, MemoryBudget.Category category);
     
     @ThreadSafety.Many
     HgSampler createSampler(HgSampler.CreateInfo createInfo);
@@ -79,6 +97,40 @@ public interface HgDevice extends HgObject<HgDevice> {
     @ThreadSafety.Many
     boolean waitSemaphores(List<HgSemaphore.Op> hgSemaphores, long timeout, boolean any);
     
+    // destroys everything in the list, objects that can be are batched together (ie: a single VMA free for all buffer and image memory)
+    // anything not batchable is destroyed first, in list order, so views and wrappers go before the memory they reference
+    @ThreadSafety.Many
+    void destroyAll(List<? extends Destroyable> destroyables);
+    
+    // incremental compaction of device local buffer memory, done a pass at a time
+    // only buffers in non host visible device memory are moved, a moved buffer is replaced by a new HgBuffer bound to its new location
+    @ApiStatus.NonExtendable
+    interface Defragmentation extends Destroyable {
+        
+        interface Relocator {
+            // from is being moved to to, return false to leave it where it is
+            // on true, to must be used in place of from from here on, and from destroyed once the copy has executed
+            @ThreadSafety.MainGraphics
+            boolean relocate(HgBuffer from, HgBuffer to);
+        }
+        
+        // records this pass's copies to commandBuffer, which must be submitted before anything uses the new buffers
+        // returns how many buffers were moved, or -1 if there is nothing left to move, then no pass was started
+        @ThreadSafety.MainGraphics
+        int beginPass(HgCommandBuffer commandBuffer, Relocator relocator);
+        
+        // must not be called until the pass's copies have finished executing, returns true if there is nothing left to move
+        @ThreadSafety.MainGraphics
+        boolean endPass();
+        
+        // a pass that is still active is ended, so the same restriction as endPass applies
+        @Override
+        void destroy();
+    }
+    
+    @ThreadSafety.MainGraphics
+    Defragmentation beginDefragmentation(long maxBytesPerPass, int maxBuffersPerPass);
+    
     @Constant
     @ThreadSafety.Many
     Properties properties();
@@ -1,6 +1,7 @@
 package graphics.cinnabar.api.hg;
 
 import graphics.cinnabar.api.hg.enums.HgFormat;
+import graphics.cinnabar.api.memory.MemoryBudget;
 import org.jetbrains.annotations.ApiStatus;
 import org.joml.Vector3i;
 import org.joml.Vector3ic;
@@ -22,6 +23,11 @@ public interface HgImage extends HgObject<HgImage> {
     
     int levelCount();
     
+    // size of the backing allocation, not just the texel data
+    long size();
+    
+    MemoryBudget.Location memoryLocation();
+    
     View createView(View.Type viewType, HgFormat format, int baseMipLevel, int mipLevels, int baseArrayLayer, int layerCount);
     
     default ResourceRange resourceRange() {
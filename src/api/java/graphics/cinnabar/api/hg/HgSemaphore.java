@@ -5,6 +5,27 @@ import org.jetbrains.annotations.ApiStatus;
 
 @ApiStatus.NonExtendable
 public interface HgSemaphore extends HgObject<HgSemaphore>, ISemaphore {
-    record Op(HgSemaphore semaphore, long value) {
+    // value is mutable so a long lived waiter can keep one per semaphore instead of allocating one per wait
+    final class Op {
+        private final HgSemaphore semaphore;
+        private long value;
+        
+        public Op(HgSemaphore semaphore, long value) {
+            this.semaphore = semaphore;
+            this.value = value;
+        }
+        
+        public HgSemaphore semaphore() {
+            return semaphore;
+        }
+        
+        public long value() {
+            return value;
+        }
+        
+        public Op value(long value) {
+            this.value = value;
+            return this;
+        }
     }
 }
@@ -0,0 +1,174 @@
+package graphics.cinnabar.api.memory;
+
+import graphics.cinnabar.api.annotations.API;
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static graphics.cinnabar.api.CinnabarAPI.Internals.CINNABAR_API_LOG;
+
+@API(note = """
+        Sampled native allocation profiler, enabled with -Dcinnabar.allocationProfiler=true
+        Roughly one in every cinnabar.allocationProfilerInterval bytes (default 512KiB) gets its stack recorded, Poisson sampled so large allocations are always caught and small ones are scaled up
+        Live sampled allocations are aggregated by call site, and can be written out as a gzipped pprof profile at any time
+        When disabled every hook is a single static final check
+        """)
+public final class AllocationProfiler {
+    
+    @API
+    public static final boolean ENABLED = Boolean.getBoolean("cinnabar.allocationProfiler");
+    private static final long SAMPLE_INTERVAL = Math.max(1, Long.getLong("cinnabar.allocationProfilerInterval", 512 * MagicMemorySizes.KiB));
+    private static final int MAX_STACK_DEPTH = 64;
+    @Nullable
+    private static final String DUMP_ON_EXIT_PATH = System.getProperty("cinnabar.allocationProfilerDumpPath");
+    
+    @API
+    public enum Kind {
+        @API(note = "malloc and friends, including PointerWrapper, SlabAllocator, and the nmemAlloc wrapper here")
+        NATIVE,
+        @API(note = "VMA allocations, keyed by the VmaAllocation handle")
+        VMA,
+    }
+    
+    private record SiteKey(Kind kind, List<StackTraceElement> frames) {
+    }
+    
+    private static final class Site {
+        private final LongAdder liveCount = new LongAdder();
+        private final LongAdder liveBytes = new LongAdder();
+        private final LongAdder allocatedCount = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+    }
+    
+    // count and bytes are already scaled up to what this sample stands for
+    private record Sample(Site site, long count, long bytes) {
+    }
+    
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+    private static final ThreadLocal<long[]> bytesUntilSample = ThreadLocal.withInitial(() -> new long[]{nextSampleInterval()});
+    private static final ConcurrentHashMap<SiteKey, Site> sites = new ConcurrentHashMap<>();
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentHashMap<Long, Sample>[] liveSamples = new ConcurrentHashMap[Kind.values().length];
+    
+    static {
+        for (int i = 0; i < liveSamples.length; i++) {
+            liveSamples[i] = new ConcurrentHashMap<>();
+        }
+        if (ENABLED && DUMP_ON_EXIT_PATH != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    dump(Path.of(DUMP_ON_EXIT_PATH));
+                } catch (IOException e) {
+                    CINNABAR_API_LOG.error("Failed to write allocation profile", e);
+                }
+            }));
+        }
+    }
+    
+    // exponentially distributed gaps make sampling a Poisson process over allocated bytes, so the allocation pattern can't alias with it
+    private static long nextSampleInterval() {
+        final var uniform = ThreadLocalRandom.current().nextDouble();
+        return Math.max(1, (long) (-Math.log1p(-uniform) * SAMPLE_INTERVAL));
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static void recordAlloc(Kind kind, long address, long size) {
+        if (!ENABLED || address == 0) {
+            return;
+        }
+        final var untilSample = bytesUntilSample.get();
+        untilSample[0] -= size;
+        if (untilSample[0] > 0) {
+            return;
+        }
+        untilSample[0] = nextSampleInterval();
+        
+        final var frames = STACK_WALKER.walk(stream -> stream
+                .dropWhile(frame -> frame.getClassName().equals(AllocationProfiler.class.getName()))
+                .limit(MAX_STACK_DEPTH)
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .toList());
+        final var site = sites.computeIfAbsent(new SiteKey(kind, frames), key -> new Site());
+        // chance an allocation of this size gets sampled, scaling by the inverse gives an unbiased estimate
+        final var probability = -Math.expm1(-(double) size / SAMPLE_INTERVAL);
+        final var count = Math.max(1, Math.round(1 / probability));
+        final var bytes = Math.round(size / probability);
+        site.liveCount.add(count);
+        site.liveBytes.add(bytes);
+        site.allocatedCount.add(count);
+        site.allocatedBytes.add(bytes);
+        liveSamples[kind.ordinal()].put(address, new Sample(site, count, bytes));
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static void recordFree(Kind kind, long address) {
+        if (!ENABLED || address == 0) {
+            return;
+        }
+        @Nullable
+        final var sample = liveSamples[kind.ordinal()].remove(address);
+        if (sample != null) {
+            sample.site.liveCount.add(-sample.count);
+            sample.site.liveBytes.add(-sample.bytes);
+        }
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static void recordRealloc(Kind kind, long oldAddress, long newAddress, long newSize) {
+        if (!ENABLED) {
+            return;
+        }
+        recordFree(kind, oldAddress);
+        recordAlloc(kind, newAddress, newSize);
+    }
+    
+    @API(note = "MemoryUtil.nmemAlloc, recorded as a NATIVE allocation, for direct mallocs that don't go through PointerWrapper or SlabAllocator")
+    @ThreadSafety.Many
+    public static long nmemAlloc(long size) {
+        final var ptr = MemoryUtil.nmemAlloc(size);
+        recordAlloc(Kind.NATIVE, ptr, size);
+        return ptr;
+    }
+    
+    @API(note = "MemoryUtil.nmemFree, for memory from nmemAlloc")
+    @ThreadSafety.Many
+    public static void nmemFree(long ptr) {
+        recordFree(Kind.NATIVE, ptr);
+        MemoryUtil.nmemFree(ptr);
+    }
+    
+    @API(note = """
+            Writes a gzipped pprof profile with inuse_objects, inuse_space, alloc_objects, and alloc_space sample types, labeled by Kind
+            View with `go tool pprof -http=: <file>`, or any other pprof compatible viewer
+            """)
+    @ThreadSafety.Many
+    public static void dump(Path path) throws IOException {
+        if (!ENABLED) {
+            throw new IllegalStateException("Allocation profiler not enabled");
+        }
+        final var writer = new PprofWriter();
+        writer.sampleType("inuse_objects", "count");
+        writer.sampleType("inuse_space", "bytes");
+        writer.sampleType("alloc_objects", "count");
+        writer.sampleType("alloc_space", "bytes");
+        writer.defaultSampleType("inuse_space");
+        writer.period("space", "bytes", SAMPLE_INTERVAL);
+        writer.timeNanos(System.currentTimeMillis() * 1_000_000);
+        sites.forEach((key, site) -> writer.sample(key.frames(), "kind", key.kind().name(), site.liveCount.sum(), site.liveBytes.sum(), site.allocatedCount.sum(), site.allocatedBytes.sum()));
+        try (final var out = Files.newOutputStream(path)) {
+            writer.write(out);
+        }
+        CINNABAR_API_LOG.info("Allocation profile written to {}", path);
+    }
+}
@@ -0,0 +1,155 @@
+package graphics.cinnabar.api.memory;
+
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.libc.LibCString;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import static graphics.cinnabar.api.CinnabarAPI.Internals.CINNABAR_API_LOG;
+
+// backend for PointerWrapper's bulk operations, picked once at startup
+// no bounds checking is done here, PointerWrapper already did it (in debug mode)
+sealed interface BulkMemoryOps {
+    
+    BulkMemoryOps INSTANCE = select();
+    
+    private static BulkMemoryOps select() {
+        if (!Boolean.getBoolean("cinnabar.memorySegmentBulkOps")) {
+            return new LibC();
+        }
+        try {
+            final var ops = new Segment();
+            CINNABAR_API_LOG.info("Using MemorySegment bulk memory operations");
+            return ops;
+        } catch (Throwable e) {
+            // reinterpret is a restricted method, and may be denied by --illegal-native-access=deny
+            CINNABAR_API_LOG.warn("Unable to use MemorySegment bulk memory operations, falling back to libc", e);
+            return new LibC();
+        }
+    }
+    
+    void set(long ptr, byte value, long size);
+    
+    // src and dst may overlap
+    void copy(long srcPtr, long dstPtr, long size);
+    
+    // byte offset of the first difference, -1 if the ranges are identical
+    long mismatch(long aPtr, long bPtr, long size);
+    
+    // copies elementCount elements of elementSize (2, 4, or 8) bytes, reversing the byte order of each
+    void copySwapBytes(long srcPtr, long dstPtr, long elementCount, int elementSize);
+    
+    // the original LWJGL/libc path
+    final class LibC implements BulkMemoryOps {
+        @Override
+        public void set(long ptr, byte value, long size) {
+            LibCString.nmemset(ptr, value, size);
+        }
+        
+        @Override
+        public void copy(long srcPtr, long dstPtr, long size) {
+            boolean overlaps = srcPtr == dstPtr;
+            overlaps |= srcPtr < dstPtr && dstPtr < srcPtr + size;
+            overlaps |= dstPtr < srcPtr && srcPtr < dstPtr + size;
+            if (overlaps) {
+                LibCString.nmemmove(dstPtr, srcPtr, size);
+            } else {
+                MemoryUtil.memCopy(srcPtr, dstPtr, size);
+            }
+        }
+        
+        @Override
+        public long mismatch(long aPtr, long bPtr, long size) {
+            long i = 0;
+            for (; i + 8 <= size; i += 8) {
+                if (MemoryUtil.memGetLong(aPtr + i) != MemoryUtil.memGetLong(bPtr + i)) {
+                    break;
+                }
+            }
+            for (; i < size; i++) {
+                if (MemoryUtil.memGetByte(aPtr + i) != MemoryUtil.memGetByte(bPtr + i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        @Override
+        public void copySwapBytes(long srcPtr, long dstPtr, long elementCount, int elementSize) {
+            switch (elementSize) {
+                case 2 -> {
+                    for (long i = 0; i < elementCount * 2; i += 2) {
+                        MemoryUtil.memPutShort(dstPtr + i, Short.reverseBytes(MemoryUtil.memGetShort(srcPtr + i)));
+                    }
+                }
+                case 4 -> {
+                    for (long i = 0; i < elementCount * 4; i += 4) {
+                        MemoryUtil.memPutInt(dstPtr + i, Integer.reverseBytes(MemoryUtil.memGetInt(srcPtr + i)));
+                    }
+                }
+                case 8 -> {
+                    for (long i = 0; i < elementCount * 8; i += 8) {
+                        MemoryUtil.memPutLong(dstPtr + i, Long.reverseBytes(MemoryUtil.memGetLong(srcPtr + i)));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unsupported element size " + elementSize);
+            }
+        }
+    }
+    
+    // FFM path, the JIT intrinsifies and vectorizes copy/mismatch on segments, and handles byte swapping copies in bulk
+    // everything goes through a single segment covering the whole address space, so the static offset based methods don't allocate
+    final class Segment implements BulkMemoryOps {
+        private static final ValueLayout.OfShort SHORT_SWAPPED = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(swappedOrder());
+        private static final ValueLayout.OfInt INT_SWAPPED = ValueLayout.JAVA_INT_UNALIGNED.withOrder(swappedOrder());
+        private static final ValueLayout.OfLong LONG_SWAPPED = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(swappedOrder());
+        
+        private final MemorySegment everything;
+        
+        // package visible for BulkMemoryOpsBenchmark, which compares it against LibC directly
+        Segment() {
+            everything = MemorySegment.NULL.reinterpret(Long.MAX_VALUE);
+        }
+        
+        private static ByteOrder swappedOrder() {
+            return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        }
+        
+        @Override
+        public void set(long ptr, byte value, long size) {
+            // fill has no offset based form, and a slice per call only doesn't allocate if escape analysis removes it
+            final var pattern = (value & 0xFFL) * 0x0101010101010101L;
+            long i = 0;
+            for (; i + 8 <= size; i += 8) {
+                everything.set(ValueLayout.JAVA_LONG_UNALIGNED, ptr + i, pattern);
+            }
+            for (; i < size; i++) {
+                everything.set(ValueLayout.JAVA_BYTE, ptr + i, value);
+            }
+        }
+        
+        @Override
+        public void copy(long srcPtr, long dstPtr, long size) {
+            // overlap safe, per MemorySegment.copy's contract
+            MemorySegment.copy(everything, srcPtr, everything, dstPtr, size);
+        }
+        
+        @Override
+        public long mismatch(long aPtr, long bPtr, long size) {
+            // both ranges are in the same segment, early JDK 21 builds always returned -1 for that, later ones and the 25 this builds with compare them
+            return MemorySegment.mismatch(everything, aPtr, aPtr + size, everything, bPtr, bPtr + size);
+        }
+        
+        @Override
+        public void copySwapBytes(long srcPtr, long dstPtr, long elementCount, int elementSize) {
+            switch (elementSize) {
+                case 2 -> MemorySegment.copy(everything, ValueLayout.JAVA_SHORT_UNALIGNED, srcPtr, everything, SHORT_SWAPPED, dstPtr, elementCount);
+                case 4 -> MemorySegment.copy(everything, ValueLayout.JAVA_INT_UNALIGNED, srcPtr, everything, INT_SWAPPED, dstPtr, elementCount);
+                case 8 -> MemorySegment.copy(everything, ValueLayout.JAVA_LONG_UNALIGNED, srcPtr, everything, LONG_SWAPPED, dstPtr, elementCount);
+                default -> throw new IllegalArgumentException("Unsupported element size " + elementSize);
+            }
+        }
+    }
+}
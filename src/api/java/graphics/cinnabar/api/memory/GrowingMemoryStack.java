@@ -1,58 +1,104 @@
 package graphics.cinnabar.api.memory;
 
 import graphics.cinnabar.api.annotations.API;
+import graphics.cinnabar.api.annotations.ThreadSafety;
 import graphics.cinnabar.api.exceptions.NotImplemented;
 import graphics.cinnabar.api.util.Destroyable;
-import it.unimi.dsi.fastutil.ints.IntLongMutablePair;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @API
 public class GrowingMemoryStack extends MemoryStack implements Destroyable {
     private static final long STACK_BLOCK_SIZE = 256 * MagicMemorySizes.KiB;
-    private final ReferenceArrayList<PointerWrapper> stackBlocks = new ReferenceArrayList<>();
     
-    private IntLongMutablePair currentFrame;
-    private final ReferenceArrayList<IntLongMutablePair> frames = new ReferenceArrayList<>();
-    private final ReferenceArrayList<LongArrayList> frameOverflowAllocs = new ReferenceArrayList<>();
+    // blocks are shared by every stack through a global pool, so a stack that is reset (ie: every command buffer) hands its blocks to the next one
+    // pooled blocks live for the rest of the process, anything past the pool's capacity is a plain alloc/free
+    private static final int POOL_CAPACITY = Math.max(0, Integer.getInteger("cinnabar.memoryStackPoolBlocks", 256));
+    private static final long[] poolBlocks = new long[POOL_CAPACITY];
+    // free list links are kept by slot in java memory, so a stale read during a racing pop never touches a block someone else is using
+    private static final int[] poolNext = new int[POOL_CAPACITY];
+    private static final AtomicInteger poolSlotsAllocated = new AtomicInteger();
+    // low 32 bits are the top slot + 1 (0 when empty), high 32 bits are a version so a pop racing a pop+push can't ABA
+    // its used, indirectly, thx VarHandle
+    @SuppressWarnings("unused")
+    private static long poolHead;
+    private static final VarHandle POOL_HEAD_VAR_HANDLE;
+    
+    static {
+        try {
+            POOL_HEAD_VAR_HANDLE = MethodHandles.lookup().findStaticVarHandle(GrowingMemoryStack.class, "poolHead", long.class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private static final int UNPOOLED = -1;
+    
+    private final LongArrayList stackBlocks = new LongArrayList();
+    private final IntArrayList stackBlockSlots = new IntArrayList();
+    
+    private int currentBlockIndex = 0;
+    private long currentBlockOffset = 0;
+    // saved (block index, offset) pairs, and where each frame's overflow allocs start, grown only when the stack gets deeper than ever before
+    private int frameCount = 0;
+    private int[] frameBlockIndices = new int[16];
+    private long[] frameBlockOffsets = new long[16];
+    private int[] frameOverflowStarts = new int[16];
+    private final LongArrayList overflowAllocs = new LongArrayList();
     
     public GrowingMemoryStack() {
         super(null, 1, (int) STACK_BLOCK_SIZE);
-        currentFrame = new IntLongMutablePair(0, 0);
     }
     
     @Override
     public void destroy() {
-        stackBlocks.forEach(PointerWrapper::free);
-        frameOverflowAllocs.forEach(overflow -> overflow.forEach(MemoryUtil::nmemFree));
+        reset();
     }
     
+    @API(note = "returns all blocks to the global pool, must not be called while any frame's allocations are still in use")
     public void reset() {
-        currentFrame = new IntLongMutablePair(0, 0);
-        frames.clear();
-        stackBlocks.forEach(PointerWrapper::free);
+        currentBlockIndex = 0;
+        currentBlockOffset = 0;
+        frameCount = 0;
+        overflowAllocs.forEach(AllocationProfiler::nmemFree);
+        overflowAllocs.clear();
+        for (int i = 0; i < stackBlocks.size(); i++) {
+            releaseBlock(stackBlockSlots.getInt(i), stackBlocks.getLong(i));
+        }
         stackBlocks.clear();
+        stackBlockSlots.clear();
     }
     
     @Override
     public MemoryStack push() {
-        frames.push(currentFrame);
-        currentFrame = new IntLongMutablePair(currentFrame.leftInt(), currentFrame.rightLong());
+        if (frameCount == frameBlockIndices.length) {
+            frameBlockIndices = Arrays.copyOf(frameBlockIndices, frameCount * 2);
+            frameBlockOffsets = Arrays.copyOf(frameBlockOffsets, frameCount * 2);
+            frameOverflowStarts = Arrays.copyOf(frameOverflowStarts, frameCount * 2);
+        }
+        frameBlockIndices[frameCount] = currentBlockIndex;
+        frameBlockOffsets[frameCount] = currentBlockOffset;
+        frameOverflowStarts[frameCount] = overflowAllocs.size();
+        frameCount++;
         return this;
     }
     
     @Override
     public MemoryStack pop() {
-        currentFrame = frames.pop();
-        if (frameOverflowAllocs.size() > frames.size()) {
-            final var overflowAllocs = frameOverflowAllocs.get(frames.size());
-            if (overflowAllocs != null) {
-                overflowAllocs.forEach(MemoryUtil::nmemFree);
-                overflowAllocs.clear();
-            }
+        frameCount--;
+        currentBlockIndex = frameBlockIndices[frameCount];
+        currentBlockOffset = frameBlockOffsets[frameCount];
+        final var overflowStart = frameOverflowStarts[frameCount];
+        for (int i = overflowStart; i < overflowAllocs.size(); i++) {
+            AllocationProfiler.nmemFree(overflowAllocs.getLong(i));
         }
+        overflowAllocs.size(overflowStart);
         return this;
     }
     
@@ -72,35 +118,26 @@ public class GrowingMemoryStack extends MemoryStack implements Destroyable {
     @Override
     public long nmalloc(int alignment, int size) {
         if (size > STACK_BLOCK_SIZE) {
-            if (frameOverflowAllocs.size() < frames.size()) {
-                frameOverflowAllocs.size(frames.size());
-            }
-            if (frameOverflowAllocs.get(frames.size() - 1) == null) {
-                frameOverflowAllocs.set(frames.size() - 1, new LongArrayList());
-            }
-            final var overflowAlloc = MemoryUtil.nmemAlloc(size);
-            frameOverflowAllocs.get(frames.size() - 1).add(overflowAlloc);
+            final var overflowAlloc = AllocationProfiler.nmemAlloc(size);
+            overflowAllocs.add(overflowAlloc);
             return overflowAlloc;
         }
-        final var currentStackBlockIndex = currentFrame.leftInt();
-        final var currentStackBlockAllocated = currentFrame.rightLong();
-        while (stackBlocks.size() <= currentStackBlockIndex) {
-            stackBlocks.add(PointerWrapper.alloc(STACK_BLOCK_SIZE));
+        while (stackBlocks.size() <= currentBlockIndex) {
+            acquireBlock();
         }
-        var stackBlock = stackBlocks.get(currentStackBlockIndex);
-        long allocAddress = ((stackBlock.pointer() + currentStackBlockAllocated) + (alignment - 1)) & (-alignment);
-        long allocOffset = allocAddress - stackBlock.pointer();
+        var stackBlock = stackBlocks.getLong(currentBlockIndex);
+        long allocAddress = ((stackBlock + currentBlockOffset) + (alignment - 1)) & (-alignment);
+        long allocOffset = allocAddress - stackBlock;
         // wont fit in this block, get the next one
         if ((allocOffset + size) > STACK_BLOCK_SIZE) {
-            currentFrame.left(currentStackBlockIndex + 1);
-            final var stackBlockIndex = currentFrame.leftInt();
+            currentBlockIndex++;
             // out of blocks, new one
-            if (stackBlockIndex == stackBlocks.size()) {
-                stackBlocks.add(PointerWrapper.alloc(STACK_BLOCK_SIZE));
+            if (currentBlockIndex == stackBlocks.size()) {
+                acquireBlock();
             }
-            stackBlock = stackBlocks.get(stackBlockIndex);
-            allocAddress = (stackBlock.pointer() + (alignment - 1)) & (-alignment);
-            allocOffset = allocAddress - stackBlock.pointer();
+            stackBlock = stackBlocks.getLong(currentBlockIndex);
+            allocAddress = (stackBlock + (alignment - 1)) & (-alignment);
+            allocOffset = allocAddress - stackBlock;
             if ((allocOffset + size) > STACK_BLOCK_SIZE) {
                 // this is a special case where the alignment would require an overrun of the buffer
                 // this should be exceedingly rare
@@ -108,7 +145,66 @@ public class GrowingMemoryStack extends MemoryStack implements Destroyable {
                 throw new IllegalArgumentException("Stack alloc size/alignment is too large");
             }
         }
-        currentFrame.right(allocOffset + size);
-        return stackBlock.pointer() + allocOffset;
+        currentBlockOffset = allocOffset + size;
+        return stackBlock + allocOffset;
+    }
+    
+    private void acquireBlock() {
+        final var slot = acquireSlot();
+        stackBlockSlots.add(slot);
+        if (slot == UNPOOLED) {
+            stackBlocks.add(PointerWrapper.alloc(STACK_BLOCK_SIZE, MemoryBudget.Category.COMMAND_RECORDING).pointer());
+        } else {
+            stackBlocks.add(poolBlocks[slot]);
+        }
+    }
+    
+    @ThreadSafety.Many
+    private static int acquireSlot() {
+        while (true) {
+            final var head = (long) POOL_HEAD_VAR_HANDLE.getAcquire();
+            final var slot = (int) head - 1;
+            if (slot < 0) {
+                break;
+            }
+            final var newHead = (((head >>> 32) + 1) << 32) | ((poolNext[slot] + 1) & 0xFFFFFFFFL);
+            if (POOL_HEAD_VAR_HANDLE.compareAndSet(head, newHead)) {
+                return slot;
+            }
+        }
+        // pool is empty, grow it if there is room left
+        // checked first so a full pool doesn't keep bumping the counter
+        if (poolSlotsAllocated.get() >= POOL_CAPACITY) {
+            return UNPOOLED;
+        }
+        final var slot = poolSlotsAllocated.getAndIncrement();
+        if (slot >= POOL_CAPACITY) {
+            return UNPOOLED;
+        }
+        // not leak tracked, pooled blocks are intentionally never freed
+        final var block = AllocationProfiler.nmemAlloc(STACK_BLOCK_SIZE);
+        if (block == 0) {
+            throw new OutOfMemoryError("Failed to allocate memory stack block");
+        }
+        LeakDetection.addAccessibleLocation(new PointerWrapper(block, STACK_BLOCK_SIZE));
+        MemoryBudget.allocated(MemoryBudget.Category.COMMAND_RECORDING, MemoryBudget.Location.HOST, STACK_BLOCK_SIZE);
+        poolBlocks[slot] = block;
+        return slot;
+    }
+    
+    @ThreadSafety.Many
+    private static void releaseBlock(int slot, long block) {
+        if (slot == UNPOOLED) {
+            new PointerWrapper(block, STACK_BLOCK_SIZE).free(MemoryBudget.Category.COMMAND_RECORDING);
+            return;
+        }
+        while (true) {
+            final var head = (long) POOL_HEAD_VAR_HANDLE.getAcquire();
+            poolNext[slot] = (int) head - 1;
+            final var newHead = (((head >>> 32) + 1) << 32) | (slot + 1);
+            if (POOL_HEAD_VAR_HANDLE.compareAndSet(head, newHead)) {
+                return;
+            }
+        }
     }
 }
@@ -5,9 +5,8 @@ import graphics.cinnabar.api.annotations.API;
 import graphics.cinnabar.api.annotations.Internal;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import static graphics.cinnabar.api.CinnabarAPI.Internals.CINNABAR_API_LOG;
 
@@ -60,21 +59,30 @@ public class LeakDetection {
         }
     }
     
+    // each leak is logged with the stack it was allocated from, with assertions enabled a leak also fails the shutdown
     @Internal
     private static void logLeakedMemory() {
         if (CinnabarAPI.DEBUG_MODE) {
             System.out.println("Logging memory leaks");
-            for (final var value : liveAllocations.values()) {
-                CINNABAR_API_LOG.warn(value.getMessage());
+            final MemoryLeak[] leaks;
+            synchronized (liveAllocations) {
+                leaks = liveAllocations.values().toArray(new MemoryLeak[0]);
             }
+            for (final var leak : leaks) {
+                CINNABAR_API_LOG.warn("Memory leak, allocated at", leak);
+            }
+            SlabAllocator.logLiveBlocks();
             System.out.println("Memory leaks logged");
+            if (leaks.length != 0 && LeakDetection.class.desiredAssertionStatus()) {
+                throw new AssertionError(leaks.length + " native allocations leaked, allocation sites logged above");
+            }
         }
     }
     
-    private static final ObjectArraySet<PointerWrapper> validReadLocations = new ObjectArraySet<>();
-    private static final ReentrantReadWriteLock readLocationsLock = new ReentrantReadWriteLock();
-    private static final ObjectArraySet<PointerWrapper> validWriteLocations = new ObjectArraySet<>();
-    private static final ReentrantReadWriteLock writeLocationsLock = new ReentrantReadWriteLock();
+    // ordered by pointer, so the candidates for an access are found with a floor lookup instead of scanning every live allocation
+    // reads are lock free, which matters as every debug mode native access goes through verifyCanAccessLocation
+    private static final ConcurrentSkipListSet<PointerWrapper> validReadLocations = new ConcurrentSkipListSet<>();
+    private static final ConcurrentSkipListSet<PointerWrapper> validWriteLocations = new ConcurrentSkipListSet<>();
     
     @API
     public static void addAccessibleLocation(PointerWrapper wrapper) {
@@ -99,14 +107,7 @@ public class LeakDetection {
         if (!CinnabarAPI.DEBUG_MODE) {
             return;
         }
-        
-        final var lock = readLocationsLock.writeLock();
-        lock.lock();
-        try {
-            validReadLocations.add(wrapper);
-        } finally {
-            lock.unlock();
-        }
+        validReadLocations.add(wrapper);
     }
     
     @API
@@ -114,13 +115,7 @@ public class LeakDetection {
         if (!CinnabarAPI.DEBUG_MODE) {
             return;
         }
-        final var lock = readLocationsLock.writeLock();
-        lock.lock();
-        try {
-            validReadLocations.remove(wrapper);
-        } finally {
-            lock.unlock();
-        }
+        validReadLocations.remove(wrapper);
     }
     
     @API
@@ -128,14 +123,7 @@ public class LeakDetection {
         if (!CinnabarAPI.DEBUG_MODE) {
             return;
         }
-        
-        final var lock = writeLocationsLock.writeLock();
-        lock.lock();
-        try {
-            validWriteLocations.add(wrapper);
-        } finally {
-            lock.unlock();
-        }
+        validWriteLocations.add(wrapper);
     }
     
     @API
@@ -143,13 +131,7 @@ public class LeakDetection {
         if (!CinnabarAPI.DEBUG_MODE) {
             return;
         }
-        final var lock = writeLocationsLock.writeLock();
-        lock.lock();
-        try {
-            validWriteLocations.remove(wrapper);
-        } finally {
-            lock.unlock();
-        }
+        validWriteLocations.remove(wrapper);
     }
     
     @API
@@ -158,22 +140,24 @@ public class LeakDetection {
             return;
         }
         final var validLocations = read ? validReadLocations : validWriteLocations;
-        final var lock = read ? readLocationsLock.readLock() : writeLocationsLock.readLock();
-        lock.lock();
-        try {
-            for (final var value : validLocations) {
-                // doesnt start in this range
-                if (value.pointer() > ptr || value.pointer() + value.size() <= ptr) {
-                    continue;
-                }
-                if (value.pointer() + value.size() < ptr + size) {
-                    throw new IllegalAccessError("Attempt to access past end of native buffer");
-                }
+        // size 0 sorts after every other location starting at ptr, so this is the floor of all locations starting at or before ptr
+        final var probe = new PointerWrapper(ptr, 0);
+        boolean startsInRange = false;
+        // allocations don't overlap, so the first location is almost always the answer
+        // walking further down only happens for nested locations, or when the access is invalid anyway
+        for (final var value : validLocations.headSet(probe, true).descendingSet()) {
+            // doesnt start in this range
+            if (value.pointer() + value.size() <= ptr) {
+                continue;
+            }
+            if (value.pointer() + value.size() >= ptr + size) {
                 // starts in a known range, and doesnt attempt to access past the end, its valid
                 return;
             }
-        } finally {
-            lock.unlock();
+            startsInRange = true;
+        }
+        if (startsInRange) {
+            throw new IllegalAccessError("Attempt to access past end of native buffer");
         }
         throw new IllegalAccessError("Unable to find a valid location for attempted access " + (read ? "(reading)" : "(writing)"));
     }
@@ -0,0 +1,182 @@
+package graphics.cinnabar.api.memory;
+
+import graphics.cinnabar.api.annotations.API;
+import graphics.cinnabar.api.annotations.ThreadSafety;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static graphics.cinnabar.api.CinnabarAPI.Internals.CINNABAR_API_LOG;
+
+@API(note = """
+        Attributes host and device memory to the subsystem using it, with live and peak counters per category
+        Categories can be given soft limits in MiB with -Dcinnabar.memoryBudget.<category>.<host|device>=<MiB>
+        Categories over their limit are asked to shed cached memory, once per frame, and before LRU eviction when a device allocation fails
+        """)
+public final class MemoryBudget {
+    
+    @API
+    public enum Category {
+        UNCATEGORIZED,
+        @API(note = "Blaze3D GpuBuffers, vertex/index/uniform data")
+        BUFFERS,
+        TEXTURES,
+        @API(note = "upload staging and other per frame CPU written buffers")
+        STAGING,
+        @API(note = "host copies of buffers evicted from the device")
+        EVICTED_DATA,
+        @API(note = "memory stack blocks used while recording commands")
+        COMMAND_RECORDING,
+    }
+    
+    @API
+    public enum Location {
+        HOST,
+        @API(note = "device local heaps, on UMA this is everything the device allocates")
+        DEVICE,
+    }
+    
+    @API
+    public interface Shedder {
+        @API(note = "release cached memory in the category this was registered for, at least bytes if possible, returns how much was actually released")
+        @ThreadSafety.MainGraphics
+        long shed(Location location, long bytes);
+    }
+    
+    private static final int LOCATION_COUNT = Location.values().length;
+    private static final AtomicLongArray live = new AtomicLongArray(Category.values().length * LOCATION_COUNT);
+    private static final AtomicLongArray peak = new AtomicLongArray(Category.values().length * LOCATION_COUNT);
+    private static final long[] softLimits = new long[Category.values().length * LOCATION_COUNT];
+    // copy on write, registration is rare and shedding is main thread only
+    private static volatile Shedder[][] shedders = new Shedder[Category.values().length][0];
+    
+    static {
+        for (final var category : Category.values()) {
+            for (final var location : Location.values()) {
+                final var property = "cinnabar.memoryBudget." + category.name().toLowerCase(Locale.ROOT) + "." + location.name().toLowerCase(Locale.ROOT);
+                final var limitMiB = Long.getLong(property, -1);
+                softLimits[index(category, location)] = limitMiB < 0 ? Long.MAX_VALUE : limitMiB * MagicMemorySizes.MiB;
+            }
+        }
+    }
+    
+    private static int index(Category category, Location location) {
+        return category.ordinal() * LOCATION_COUNT + location.ordinal();
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static void allocated(Category category, Location location, long bytes) {
+        final var index = index(category, location);
+        final var current = live.addAndGet(index, bytes);
+        if (current > peak.get(index)) {
+            peak.accumulateAndGet(index, current, Math::max);
+        }
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static void freed(Category category, Location location, long bytes) {
+        live.addAndGet(index(category, location), -bytes);
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static long live(Category category, Location location) {
+        return live.get(index(category, location));
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static long peak(Category category, Location location) {
+        return peak.get(index(category, location));
+    }
+    
+    @API(note = "Long.MAX_VALUE if no limit is configured")
+    @ThreadSafety.Many
+    public static long softLimit(Category category, Location location) {
+        return softLimits[index(category, location)];
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static synchronized void registerShedder(Category category, Shedder shedder) {
+        final var newShedders = shedders.clone();
+        newShedders[category.ordinal()] = Arrays.copyOf(newShedders[category.ordinal()], newShedders[category.ordinal()].length + 1);
+        newShedders[category.ordinal()][newShedders[category.ordinal()].length - 1] = shedder;
+        shedders = newShedders;
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static synchronized void unregisterShedder(Category category, Shedder shedder) {
+        final var newShedders = shedders.clone();
+        newShedders[category.ordinal()] = Arrays.stream(newShedders[category.ordinal()]).filter(existing -> existing != shedder).toArray(Shedder[]::new);
+        shedders = newShedders;
+    }
+    
+    @API(note = "asks every category over a soft limit to get back under it, expected to be called once per frame")
+    @ThreadSafety.MainGraphics
+    public static void shedOverLimit() {
+        for (final var category : Category.values()) {
+            for (final var location : Location.values()) {
+                final var over = live(category, location) - softLimit(category, location);
+                if (over > 0) {
+                    shed(category, location, over);
+                }
+            }
+        }
+    }
+    
+    @API(note = """
+            called when a device allocation fails, before falling back to LRU eviction
+            sheds from categories over their soft limits, furthest over first, returns the bytes released
+            """)
+    @ThreadSafety.MainGraphics
+    public static long shedForAllocation(Location location, long bytes) {
+        final var categories = Category.values();
+        // furthest over its limit goes first, a category under its limit is left alone here
+        Arrays.sort(categories, (a, b) -> Long.compare(overLimit(b, location), overLimit(a, location)));
+        long released = 0;
+        for (final var category : categories) {
+            final var over = overLimit(category, location);
+            if (over <= 0 || released >= bytes) {
+                break;
+            }
+            released += shed(category, location, Math.max(over, bytes - released));
+        }
+        return released;
+    }
+    
+    private static long overLimit(Category category, Location location) {
+        final var limit = softLimit(category, location);
+        return limit == Long.MAX_VALUE ? 0 : live(category, location) - limit;
+    }
+    
+    private static long shed(Category category, Location location, long bytes) {
+        long released = 0;
+        for (final var shedder : shedders[category.ordinal()]) {
+            if (released >= bytes) {
+                break;
+            }
+            released += shedder.shed(location, bytes - released);
+        }
+        return released;
+    }
+    
+    @API(note = "logs every category's usage, for when memory has run out and someone wants to know who has it")
+    @ThreadSafety.Many
+    public static void logUsage() {
+        for (final var category : Category.values()) {
+            CINNABAR_API_LOG.warn("{}: host {}/{} (peak {}), device {}/{} (peak {})", category,
+                    live(category, Location.HOST), limitString(category, Location.HOST), peak(category, Location.HOST),
+                    live(category, Location.DEVICE), limitString(category, Location.DEVICE), peak(category, Location.DEVICE));
+        }
+    }
+    
+    private static String limitString(Category category, Location location) {
+        final var limit = softLimit(category, location);
+        return limit == Long.MAX_VALUE ? "unlimited" : String.valueOf(limit);
+    }
+}
@@ -0,0 +1,112 @@
+package graphics.cinnabar.api.memory;
+
+import graphics.cinnabar.api.annotations.API;
+import graphics.cinnabar.api.annotations.ThreadSafety;
+
+import java.util.Arrays;
+
+@API(note = """
+        Graded memory pressure, published ahead of allocation failure so caches can drop data before anything gets evicted
+        Levels come from VMA's usage and budget for the main host and device heaps, checked once per frame
+        MODERATE starts at cinnabar.memoryPressureModeratePercent of the budget (default 80), CRITICAL at cinnabar.memoryPressureCriticalPercent (default 90)
+        Listeners hear about every level change, and every frame while CRITICAL
+        A failed allocation is always published as CRITICAL, before the buffer manager starts evicting
+        """)
+public final class MemoryPressure {
+    
+    @API
+    public enum Level {
+        NONE,
+        @API(note = "drop anything that is cheap to recreate")
+        MODERATE,
+        @API(note = "allocations are about to fail, or just have, drop everything that can be")
+        CRITICAL,
+    }
+    
+    @API
+    public interface Listener {
+        @API(note = """
+                bytes is how far usage is over the MODERATE threshold, or the size of the failed allocation, 0 when pressure has gone back to NONE
+                returns how much was actually released
+                """)
+        @ThreadSafety.MainGraphics
+        long onMemoryPressure(MemoryBudget.Location location, Level level, long bytes);
+    }
+    
+    private static final long MODERATE_PERCENT = Math.clamp(Long.getLong("cinnabar.memoryPressureModeratePercent", 80), 1, 100);
+    private static final long CRITICAL_PERCENT = Math.clamp(Long.getLong("cinnabar.memoryPressureCriticalPercent", 90), MODERATE_PERCENT, 100);
+    
+    private static final Level[] levels = new Level[MemoryBudget.Location.values().length];
+    // copy on write, registration is rare and publishing is main thread only
+    private static volatile Listener[] listeners = new Listener[0];
+    
+    static {
+        Arrays.fill(levels, Level.NONE);
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static synchronized void registerListener(Listener listener) {
+        final var newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[newListeners.length - 1] = listener;
+        listeners = newListeners;
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public static synchronized void unregisterListener(Listener listener) {
+        listeners = Arrays.stream(listeners).filter(existing -> existing != listener).toArray(Listener[]::new);
+    }
+    
+    @API(note = "level as of the last update")
+    @ThreadSafety.MainGraphics
+    public static Level level(MemoryBudget.Location location) {
+        return levels[location.ordinal()];
+    }
+    
+    @API(note = "usage at which a heap with this budget reaches MODERATE, what CRITICAL pressure asks to be released down to")
+    @ThreadSafety.Any
+    public static long moderateThreshold(long budget) {
+        return budget / 100 * MODERATE_PERCENT;
+    }
+    
+    @API(note = "usage at which a heap with this budget reaches CRITICAL")
+    @ThreadSafety.Any
+    public static long criticalThreshold(long budget) {
+        return budget / 100 * CRITICAL_PERCENT;
+    }
+    
+    @API(note = "called by the device once per frame with the heap's current usage and budget")
+    @ThreadSafety.MainGraphics
+    public static void update(MemoryBudget.Location location, long usage, long budget) {
+        if (budget <= 0) {
+            return;
+        }
+        final var moderateThreshold = moderateThreshold(budget);
+        final var criticalThreshold = criticalThreshold(budget);
+        final var level = usage >= criticalThreshold ? Level.CRITICAL : usage >= moderateThreshold ? Level.MODERATE : Level.NONE;
+        final var previousLevel = levels[location.ordinal()];
+        levels[location.ordinal()] = level;
+        if (level != previousLevel || level == Level.CRITICAL) {
+            publish(location, level, Math.max(0, usage - moderateThreshold));
+        }
+    }
+    
+    @API(note = "called by the device when an allocation fails, before any eviction, returns the bytes released")
+    @ThreadSafety.MainGraphics
+    public static long allocationFailed(MemoryBudget.Location location, long bytes) {
+        levels[location.ordinal()] = Level.CRITICAL;
+        return publish(location, Level.CRITICAL, bytes);
+    }
+    
+    private static long publish(MemoryBudget.Location location, Level level, long bytes) {
+        long released = 0;
+        for (final var listener : listeners) {
+            if (released > 0 && released >= bytes) {
+                break;
+            }
+            released += listener.onMemoryPressure(location, level, Math.max(0, bytes - released));
+        }
+        return released;
+    }
+}
@@ -5,7 +5,6 @@ import graphics.cinnabar.api.annotations.API;
 import graphics.cinnabar.api.annotations.ThreadSafety;
 import org.joml.*;
 import org.lwjgl.system.MemoryUtil;
-import org.lwjgl.system.libc.LibCString;
 import sun.misc.Unsafe;
 
 import javax.annotation.Nonnull;
@@ -83,27 +82,44 @@ public record PointerWrapper(long pointer, long size) implements Comparable<Poin
     }
     
     public static PointerWrapper alloc(long size, long align) {
+        return alloc(size, align, MemoryBudget.Category.UNCATEGORIZED);
+    }
+    
+    public static PointerWrapper alloc(long size, long align, MemoryBudget.Category category) {
         // LWJGL says this needs to be freed by an aligned_free
         // C11 spec and jemalloc say otherwise, this should be fine
         final long ptr = MemoryUtil.nmemAlignedAlloc(align, size);
+        AllocationProfiler.recordAlloc(AllocationProfiler.Kind.NATIVE, ptr, size);
+        MemoryBudget.allocated(category, MemoryBudget.Location.HOST, size);
         return trackPointer(new PointerWrapper(ptr, size));
     }
     
     public static PointerWrapper alloc(long size) {
-        final long ptr = MemoryUtil.nmemAlloc(size);
+        return alloc(size, MemoryBudget.Category.UNCATEGORIZED);
+    }
+    
+    public static PointerWrapper alloc(long size, MemoryBudget.Category category) {
+        final long ptr = SlabAllocator.nmalloc(size);
+        MemoryBudget.allocated(category, MemoryBudget.Location.HOST, size);
         return trackPointer(new PointerWrapper(ptr, size));
     }
     
     public PointerWrapper realloc(long newSize) {
+        return realloc(newSize, MemoryBudget.Category.UNCATEGORIZED);
+    }
+    
+    // category must be the one the pointer was allocated with
+    public PointerWrapper realloc(long newSize, MemoryBudget.Category category) {
         if (size == newSize) {
             return this;
         }
         // this allows NULLPTR.realloc(size) to be used, avoiding a special initial alloc
         if (this.pointer == 0) {
-            return alloc(newSize);
+            return alloc(newSize, category);
         }
-        final var newPtr = MemoryUtil.nmemRealloc(this.pointer, newSize);
+        final var newPtr = SlabAllocator.nrealloc(this.pointer, this.size, newSize);
         final var newWrapped = new PointerWrapper(newPtr, newSize);
+        MemoryBudget.allocated(category, MemoryBudget.Location.HOST, newSize - size);
         // retracks to realloc location and size
         untrackPointer(this);
         trackPointer(newWrapped);
@@ -111,12 +127,18 @@ public record PointerWrapper(long pointer, long size) implements Comparable<Poin
     }
     
     public void free() {
+        free(MemoryBudget.Category.UNCATEGORIZED);
+    }
+    
+    // category must be the one the pointer was allocated with
+    public void free(MemoryBudget.Category category) {
         if (this == NULLPTR) {
             // technically, safe to call free on a nullptr at the native level, but debug will complain if enabled
             return;
         }
         untrackPointer(this);
-        MemoryUtil.nmemFree(pointer);
+        SlabAllocator.nfree(pointer, size);
+        MemoryBudget.freed(category, MemoryBudget.Location.HOST, size);
     }
     
     public void verifyCanAccessRange(long offset, long size, boolean read) {
@@ -165,7 +187,7 @@ public record PointerWrapper(long pointer, long size) implements Comparable<Poin
     
     public PointerWrapper set(long offset, long size, byte data) {
         verifyCanWrite(offset, size);
-        LibCString.nmemset(pointer + offset, data, size);
+        BulkMemoryOps.INSTANCE.set(pointer + offset, data, size);
         return this;
     }
     
@@ -183,14 +205,7 @@ public record PointerWrapper(long pointer, long size) implements Comparable<Poin
             verifyCanAccessLocation(srcPtr, size, true);
             verifyCanAccessLocation(dstPtr, size, false);
         }
-        boolean overlaps = srcPtr == dstPtr;
-        overlaps |= srcPtr < dstPtr && dstPtr < srcPtr + size;
-        overlaps |= dstPtr < srcPtr && srcPtr < dstPtr + size;
-        if (overlaps) {
-            LibCString.nmemmove(dstPtr, srcPtr, size);
-        } else {
-            MemoryUtil.memCopy(srcPtr, dstPtr, size);
-        }
+        BulkMemoryOps.INSTANCE.copy(srcPtr, dstPtr, size);
     }
     
     public static void copy(PointerWrapper src, long srcOffset, PointerWrapper dst, long dstOffset, long size) {
@@ -246,6 +261,37 @@ public record PointerWrapper(long pointer, long size) implements Comparable<Poin
         copyTo(0, dst, 0, Math.min(size, dst.size));
     }
     
+    @API(note = "byte offset of the first difference between the two ranges, -1 if they are identical")
+    public static long mismatch(PointerWrapper a, long aOffset, PointerWrapper b, long bOffset, long size) {
+        if (a.pointer == 0 || b.pointer == 0) {
+            throw new IllegalStateException("Attempt to use NULLPTR");
+        }
+        if (CinnabarAPI.DEBUG_MODE) {
+            if (aOffset < 0 || bOffset < 0 || size < 0 || aOffset + size > a.size || bOffset + size > b.size) {
+                throw new IllegalArgumentException("Attempt to compare outside of pointer bounds");
+            }
+            verifyCanAccessLocation(a.pointer + aOffset, size, true);
+            verifyCanAccessLocation(b.pointer + bOffset, size, true);
+        }
+        return BulkMemoryOps.INSTANCE.mismatch(a.pointer + aOffset, b.pointer + bOffset, size);
+    }
+    
+    @API(note = "copies elementCount elements of elementSize (2, 4, or 8) bytes, reversing the byte order of each, src and dst may be the same range")
+    public static void copySwapBytes(PointerWrapper src, long srcOffset, PointerWrapper dst, long dstOffset, long elementCount, int elementSize) {
+        if (src.pointer == 0 || dst.pointer == 0) {
+            throw new IllegalStateException("Attempt to use NULLPTR");
+        }
+        final var size = elementCount * elementSize;
+        if (CinnabarAPI.DEBUG_MODE) {
+            if (srcOffset < 0 || dstOffset < 0 || size < 0 || srcOffset + size > src.size || dstOffset + size > dst.size) {
+                throw new IllegalArgumentException("Attempt to copy outside of pointer bounds");
+            }
+            verifyCanAccessLocation(src.pointer + srcOffset, size, true);
+            verifyCanAccessLocation(dst.pointer + dstOffset, size, false);
+        }
+        BulkMemoryOps.INSTANCE.copySwapBytes(src.pointer + srcOffset, dst.pointer + dstOffset, elementCount, elementSize);
+    }
+    
     private void checkRange(long offset, long writeSize, boolean read) {
         checkRange(offset, writeSize, writeSize, read);
     }
@@ -0,0 +1,176 @@
+package graphics.cinnabar.api.memory;
+
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+// minimal encoder for pprof's profile.proto, just enough to write java stacks with a few values each
+// protobuf fields may come in any order, so samples are written as they arrive, and the tables they reference at the end
+final class PprofWriter {
+    
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    
+    // Profile field numbers
+    private static final int PROFILE_SAMPLE_TYPE = 1;
+    private static final int PROFILE_SAMPLE = 2;
+    private static final int PROFILE_LOCATION = 4;
+    private static final int PROFILE_FUNCTION = 5;
+    private static final int PROFILE_STRING_TABLE = 6;
+    private static final int PROFILE_TIME_NANOS = 9;
+    private static final int PROFILE_PERIOD_TYPE = 11;
+    private static final int PROFILE_PERIOD = 12;
+    private static final int PROFILE_DEFAULT_SAMPLE_TYPE = 14;
+    
+    private final ByteArrayOutputStream profile = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream tables = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+    
+    private final ReferenceArrayList<String> stringTable = new ReferenceArrayList<>();
+    private final Object2LongOpenHashMap<String> strings = new Object2LongOpenHashMap<>();
+    private final Object2LongOpenHashMap<String> functions = new Object2LongOpenHashMap<>();
+    private final Object2LongOpenHashMap<StackTraceElement> locations = new Object2LongOpenHashMap<>();
+    
+    PprofWriter() {
+        strings.defaultReturnValue(-1);
+        functions.defaultReturnValue(-1);
+        locations.defaultReturnValue(-1);
+        // string 0 is required to be the empty string
+        string("");
+    }
+    
+    void sampleType(String type, String unit) {
+        writeMessage(profile, PROFILE_SAMPLE_TYPE, valueType(type, unit));
+    }
+    
+    void period(String type, String unit, long period) {
+        writeMessage(profile, PROFILE_PERIOD_TYPE, valueType(type, unit));
+        writeVarintField(profile, PROFILE_PERIOD, period);
+    }
+    
+    void defaultSampleType(String type) {
+        writeVarintField(profile, PROFILE_DEFAULT_SAMPLE_TYPE, string(type));
+    }
+    
+    void timeNanos(long timeNanos) {
+        writeVarintField(profile, PROFILE_TIME_NANOS, timeNanos);
+    }
+    
+    // frames are leaf first, same as a StackTraceElement[]
+    void sample(List<StackTraceElement> frames, String labelKey, String labelValue, long... values) {
+        final var locationIds = new long[frames.size()];
+        for (int i = 0; i < frames.size(); i++) {
+            locationIds[i] = location(frames.get(i));
+        }
+        final var label = new ByteArrayOutputStream();
+        writeVarintField(label, 1, string(labelKey));
+        writeVarintField(label, 2, string(labelValue));
+        
+        final var sample = new ByteArrayOutputStream();
+        writePacked(sample, 1, locationIds);
+        writePacked(sample, 2, values);
+        writeMessage(sample, 3, label.toByteArray());
+        writeMessage(profile, PROFILE_SAMPLE, sample.toByteArray());
+    }
+    
+    void write(OutputStream out) throws IOException {
+        for (final var string : stringTable) {
+            writeBytesField(tables, PROFILE_STRING_TABLE, string.getBytes(StandardCharsets.UTF_8));
+        }
+        try (final var gzip = new GZIPOutputStream(out)) {
+            profile.writeTo(gzip);
+            tables.writeTo(gzip);
+        }
+    }
+    
+    private byte[] valueType(String type, String unit) {
+        scratch.reset();
+        writeVarintField(scratch, 1, string(type));
+        writeVarintField(scratch, 2, string(unit));
+        return scratch.toByteArray();
+    }
+    
+    private long string(String string) {
+        var index = strings.getLong(string);
+        if (index == -1) {
+            index = stringTable.size();
+            stringTable.add(string);
+            strings.put(string, index);
+        }
+        return index;
+    }
+    
+    private long function(StackTraceElement frame) {
+        final var name = frame.getClassName() + "." + frame.getMethodName();
+        var id = functions.getLong(name);
+        if (id == -1) {
+            id = functions.size() + 1;
+            functions.put(name, id);
+            scratch.reset();
+            writeVarintField(scratch, 1, id);
+            writeVarintField(scratch, 2, string(name));
+            writeVarintField(scratch, 3, string(name));
+            writeVarintField(scratch, 4, string(frame.getFileName() == null ? "" : frame.getFileName()));
+            writeMessage(tables, PROFILE_FUNCTION, scratch.toByteArray());
+        }
+        return id;
+    }
+    
+    private long location(StackTraceElement frame) {
+        var id = locations.getLong(frame);
+        if (id == -1) {
+            id = locations.size() + 1;
+            locations.put(frame, id);
+            final var functionId = function(frame);
+            final var line = new ByteArrayOutputStream();
+            writeVarintField(line, 1, functionId);
+            writeVarintField(line, 2, Math.max(0, frame.getLineNumber()));
+            final var location = new ByteArrayOutputStream();
+            writeVarintField(location, 1, id);
+            writeMessage(location, 4, line.toByteArray());
+            writeMessage(tables, PROFILE_LOCATION, location.toByteArray());
+        }
+        return id;
+    }
+    
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+    
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, ((long) field << 3) | wireType);
+    }
+    
+    private static void writeVarintField(ByteArrayOutputStream out, int field, long value) {
+        writeTag(out, field, WIRE_VARINT);
+        writeVarint(out, value);
+    }
+    
+    private static void writeBytesField(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeTag(out, field, WIRE_LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+    
+    private static void writeMessage(ByteArrayOutputStream out, int field, byte[] message) {
+        writeBytesField(out, field, message);
+    }
+    
+    private static void writePacked(ByteArrayOutputStream out, int field, long[] values) {
+        final var packed = new ByteArrayOutputStream();
+        for (final var value : values) {
+            writeVarint(packed, value);
+        }
+        writeBytesField(out, field, packed.toByteArray());
+    }
+}
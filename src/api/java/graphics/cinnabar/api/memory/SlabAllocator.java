@@ -0,0 +1,346 @@
+package graphics.cinnabar.api.memory;
+
+import graphics.cinnabar.api.CinnabarAPI;
+import graphics.cinnabar.api.annotations.API;
+import graphics.cinnabar.api.annotations.Internal;
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.threading.ThreadIndex;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.libc.LibCString;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+@API(note = """
+        Opt-in (-Dcinnabar.slabAllocator=true) size class allocator behind PointerWrapper.alloc(size)
+        Allocations up to MAX_SLAB_SIZE come out of per ThreadIndex slabs, so worker threads don't fight over (and fragment) malloc arenas
+        Larger allocations, and anything when disabled, go straight to malloc
+        Frees are accepted from any thread
+        """)
+public final class SlabAllocator {
+    
+    @API
+    public static final boolean ENABLED = Boolean.getBoolean("cinnabar.slabAllocator");
+    @API
+    public static final long MAX_SLAB_SIZE = 256 * MagicMemorySizes.KiB;
+    
+    // 16 byte steps up to 64, then four classes per doubling, so rounding up wastes at most 20% of a block, instead of the 50% of power of two classes
+    private static final int MIN_BLOCK_SHIFT = 4;
+    private static final int LINEAR_CLASSES = 4;
+    private static final int CLASSES_PER_DOUBLING_SHIFT = 2;
+    private static final int LINEAR_LIMIT_SHIFT = MIN_BLOCK_SHIFT + CLASSES_PER_DOUBLING_SHIFT;
+    private static final int CLASS_COUNT = LINEAR_CLASSES + ((Long.numberOfTrailingZeros(MAX_SLAB_SIZE) - LINEAR_LIMIT_SHIFT) << CLASSES_PER_DOUBLING_SHIFT);
+    private static final long[] CLASS_BLOCK_SIZES = new long[CLASS_COUNT];
+    // chunks are aligned to their size, so the owning chunk of any block is just a mask away
+    private static final long CHUNK_SIZE = MagicMemorySizes.MiB;
+    
+    private static final VarHandle REMOTE_FREE_VAR_HANDLE;
+    
+    static {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            if (i < LINEAR_CLASSES) {
+                CLASS_BLOCK_SIZES[i] = (long) (i + 1) << MIN_BLOCK_SHIFT;
+            } else {
+                final var shift = LINEAR_LIMIT_SHIFT + ((i - LINEAR_CLASSES) >> CLASSES_PER_DOUBLING_SHIFT);
+                final var step = (i - LINEAR_CLASSES) & ((1 << CLASSES_PER_DOUBLING_SHIFT) - 1);
+                CLASS_BLOCK_SIZES[i] = (1L << shift) + ((step + 1L) << (shift - CLASSES_PER_DOUBLING_SHIFT));
+            }
+        }
+        assert CLASS_BLOCK_SIZES[CLASS_COUNT - 1] == MAX_SLAB_SIZE;
+        try {
+            REMOTE_FREE_VAR_HANDLE = MethodHandles.lookup().findVarHandle(Chunk.class, "remoteFree", long.class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    // a CHUNK_SIZE block of memory carved into blocks of a single size class
+    // free blocks form intrusive lists, the next pointer lives in the first 8 bytes of the free block
+    private static final class Chunk {
+        private final long base;
+        private final int sizeClass;
+        private final long blockSize;
+        private final int blockCount;
+        
+        // only touched by the owning cache
+        private int bumpIndex;
+        private long localFree;
+        private int liveBlocks;
+        
+        // frees from any thread land here, the owner takes the whole list at once
+        // its used, indirectly, thx VarHandle
+        @SuppressWarnings("unused")
+        private long remoteFree;
+        
+        private Chunk(long base, int sizeClass) {
+            this.base = base;
+            this.sizeClass = sizeClass;
+            this.blockSize = CLASS_BLOCK_SIZES[sizeClass];
+            this.blockCount = (int) (CHUNK_SIZE / blockSize);
+        }
+        
+        private boolean hasFree() {
+            return localFree != 0 || bumpIndex < blockCount || drainRemote();
+        }
+        
+        private long take() {
+            final long ptr;
+            if (localFree != 0) {
+                ptr = localFree;
+                localFree = MemoryUtil.memGetAddress(ptr);
+            } else {
+                ptr = base + bumpIndex++ * blockSize;
+            }
+            liveBlocks++;
+            return ptr;
+        }
+        
+        private boolean drainRemote() {
+            var head = (long) REMOTE_FREE_VAR_HANDLE.getAndSetAcquire(this, 0L);
+            if (head == 0) {
+                return false;
+            }
+            var tail = head;
+            int count = 1;
+            for (long next; (next = MemoryUtil.memGetAddress(tail)) != 0; tail = next) {
+                count++;
+            }
+            MemoryUtil.memPutAddress(tail, localFree);
+            localFree = head;
+            liveBlocks -= count;
+            return true;
+        }
+        
+        private void freeRemote(long ptr) {
+            var head = (long) REMOTE_FREE_VAR_HANDLE.getAcquire(this);
+            while (true) {
+                MemoryUtil.memPutAddress(ptr, head);
+                final var witnessed = (long) REMOTE_FREE_VAR_HANDLE.compareAndExchangeRelease(this, head, ptr);
+                if (witnessed == head) {
+                    return;
+                }
+                head = witnessed;
+            }
+        }
+    }
+    
+    private static final class ThreadCache {
+        @SuppressWarnings("unchecked")
+        private final ReferenceArrayList<Chunk>[] chunks = new ReferenceArrayList[CLASS_COUNT];
+        private final @Nullable Chunk[] current = new Chunk[CLASS_COUNT];
+        
+        private ThreadCache() {
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                chunks[i] = new ReferenceArrayList<>();
+            }
+        }
+        
+        private long alloc(int sizeClass) {
+            @Nullable
+            var chunk = current[sizeClass];
+            if (chunk == null || !chunk.hasFree()) {
+                chunk = refill(sizeClass);
+                current[sizeClass] = chunk;
+            }
+            return chunk.take();
+        }
+        
+        private Chunk refill(int sizeClass) {
+            final var classChunks = chunks[sizeClass];
+            @Nullable
+            Chunk found = null;
+            for (int i = classChunks.size() - 1; i >= 0; i--) {
+                final var chunk = classChunks.get(i);
+                if (!chunk.hasFree()) {
+                    continue;
+                }
+                if (found == null) {
+                    found = chunk;
+                } else if (chunk.liveBlocks == 0) {
+                    // one partially used chunk is enough to allocate from, fully empty extras go back to malloc
+                    classChunks.remove(i);
+                    releaseChunk(chunk);
+                }
+            }
+            if (found != null) {
+                return found;
+            }
+            final var base = MemoryUtil.nmemAlignedAlloc(CHUNK_SIZE, CHUNK_SIZE);
+            if (base == 0) {
+                throw new OutOfMemoryError("Failed to allocate slab chunk");
+            }
+            final var chunk = new Chunk(base, sizeClass);
+            liveChunks.put(base, chunk);
+            reservedBytes.addAndGet(sizeClass, CHUNK_SIZE);
+            classChunks.add(chunk);
+            return chunk;
+        }
+    }
+    
+    private static final ConcurrentHashMap<Long, Chunk> liveChunks = new ConcurrentHashMap<>();
+    // indexed by ThreadIndex, each cache only ever touched by the thread currently holding that index
+    // grown on first use by an index rather than sized at class init, which can run before the registry has decided the thread count
+    private static volatile @Nullable ThreadCache[] threadCaches = new ThreadCache[0];
+    // threads without a ThreadIndex share one cache
+    private static final ThreadCache sharedCache = new ThreadCache();
+    
+    private static final AtomicLongArray liveBlocks = new AtomicLongArray(CLASS_COUNT);
+    private static final AtomicLongArray liveBytes = new AtomicLongArray(CLASS_COUNT);
+    private static final AtomicLongArray peakBytes = new AtomicLongArray(CLASS_COUNT);
+    private static final AtomicLongArray reservedBytes = new AtomicLongArray(CLASS_COUNT);
+    
+    private static int sizeClass(long size) {
+        if (size <= (1L << LINEAR_LIMIT_SHIFT)) {
+            return (int) Math.max(0, (size - 1) >> MIN_BLOCK_SHIFT);
+        }
+        // size is in (2^shift, 2^(shift+1)], split into four steps of 2^(shift-2)
+        final var shift = 63 - Long.numberOfLeadingZeros(size - 1);
+        final var step = (size - 1 - (1L << shift)) >> (shift - CLASSES_PER_DOUBLING_SHIFT);
+        return LINEAR_CLASSES + ((shift - LINEAR_LIMIT_SHIFT) << CLASSES_PER_DOUBLING_SHIFT) + (int) step;
+    }
+    
+    @API(note = "malloc compatible, alignment is at least 16 bytes")
+    @ThreadSafety.Many
+    public static long nmalloc(long size) {
+        if (!ENABLED || size > MAX_SLAB_SIZE) {
+            final var ptr = MemoryUtil.nmemAlloc(size);
+            AllocationProfiler.recordAlloc(AllocationProfiler.Kind.NATIVE, ptr, size);
+            return ptr;
+        }
+        final var sizeClass = sizeClass(size);
+        final long ptr;
+        final var threadIndex = ThreadIndex.currentThreadIndex();
+        // checked by index rather than valid(), the caches grow to fit whatever index shows up
+        if (threadIndex.index() >= 0) {
+            ptr = threadCache(threadIndex.index()).alloc(sizeClass);
+        } else {
+            synchronized (sharedCache) {
+                ptr = sharedCache.alloc(sizeClass);
+            }
+        }
+        liveBlocks.incrementAndGet(sizeClass);
+        final var live = liveBytes.addAndGet(sizeClass, size);
+        if (live > peakBytes.get(sizeClass)) {
+            peakBytes.accumulateAndGet(sizeClass, live, Math::max);
+        }
+        AllocationProfiler.recordAlloc(AllocationProfiler.Kind.NATIVE, ptr, size);
+        return ptr;
+    }
+    
+    private static ThreadCache threadCache(int index) {
+        final var caches = threadCaches;
+        if (index < caches.length) {
+            @Nullable final var cache = caches[index];
+            if (cache != null) {
+                return cache;
+            }
+        }
+        // once per index, so growing and filling the slot can share a lock
+        synchronized (SlabAllocator.class) {
+            var grown = threadCaches;
+            if (index >= grown.length) {
+                grown = Arrays.copyOf(grown, Math.max(index + 1, ThreadIndex.threadCount));
+                threadCaches = grown;
+            }
+            @Nullable
+            var cache = grown[index];
+            if (cache == null) {
+                cache = new ThreadCache();
+                grown[index] = cache;
+            }
+            return cache;
+        }
+    }
+    
+    @API(note = "size must be the size passed to nmalloc/nrealloc, it picks the size class")
+    @ThreadSafety.Many
+    public static void nfree(long ptr, long size) {
+        if (ptr == 0) {
+            return;
+        }
+        AllocationProfiler.recordFree(AllocationProfiler.Kind.NATIVE, ptr);
+        if (!ENABLED || size > MAX_SLAB_SIZE) {
+            MemoryUtil.nmemFree(ptr);
+            return;
+        }
+        @Nullable
+        final var chunk = liveChunks.get(ptr & -CHUNK_SIZE);
+        if (chunk == null) {
+            // allocated before the slab was involved, or via an aligned alloc
+            MemoryUtil.nmemFree(ptr);
+            return;
+        }
+        if (CinnabarAPI.DEBUG_MODE) {
+            if ((ptr - chunk.base) % chunk.blockSize != 0) {
+                throw new IllegalStateException("Attempt to free pointer into the middle of a slab block");
+            }
+            if (sizeClass(size) != chunk.sizeClass) {
+                throw new IllegalStateException("Attempt to free slab block with a size (" + size + ") from a different size class than it was allocated with");
+            }
+            // stale reads after free should be obvious
+            LibCString.nmemset(ptr, 0xDD, chunk.blockSize);
+        }
+        liveBlocks.decrementAndGet(chunk.sizeClass);
+        liveBytes.addAndGet(chunk.sizeClass, -size);
+        chunk.freeRemote(ptr);
+    }
+    
+    @API(note = "realloc compatible, with the old size passed along so the size class can be found")
+    @ThreadSafety.Many
+    public static long nrealloc(long ptr, long oldSize, long newSize) {
+        if (ptr == 0) {
+            return nmalloc(newSize);
+        }
+        if (!ENABLED || (oldSize > MAX_SLAB_SIZE && newSize > MAX_SLAB_SIZE)) {
+            final var newPtr = MemoryUtil.nmemRealloc(ptr, newSize);
+            AllocationProfiler.recordRealloc(AllocationProfiler.Kind.NATIVE, ptr, newPtr, newSize);
+            return newPtr;
+        }
+        final var newPtr = nmalloc(newSize);
+        MemoryUtil.memCopy(ptr, newPtr, Math.min(oldSize, newSize));
+        nfree(ptr, oldSize);
+        return newPtr;
+    }
+    
+    private static void releaseChunk(Chunk chunk) {
+        liveChunks.remove(chunk.base);
+        reservedBytes.addAndGet(chunk.sizeClass, -CHUNK_SIZE);
+        MemoryUtil.nmemAlignedFree(chunk.base);
+    }
+    
+    @API
+    public record SizeClassStats(long blockSize, long liveBlocks, long liveBytes, long peakBytes, long reservedBytes) {
+        @API(note = "fraction of the reserved memory not holding requested bytes, covers both rounding up to the class size and unused blocks")
+        public double fragmentation() {
+            return reservedBytes == 0 ? 0 : 1.0 - (double) liveBytes / reservedBytes;
+        }
+    }
+    
+    @API(note = "one entry per size class, smallest first, counters are read individually so may be slightly out of sync with each other")
+    @ThreadSafety.Many
+    public static List<SizeClassStats> stats() {
+        final var stats = new ReferenceArrayList<SizeClassStats>(CLASS_COUNT);
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            stats.add(new SizeClassStats(CLASS_BLOCK_SIZES[i], liveBlocks.get(i), liveBytes.get(i), peakBytes.get(i), reservedBytes.get(i)));
+        }
+        return stats;
+    }
+    
+    @Internal
+    static void logLiveBlocks() {
+        if (!ENABLED) {
+            return;
+        }
+        for (final var stat : stats()) {
+            if (stat.liveBlocks() != 0) {
+                CinnabarAPI.Internals.CINNABAR_API_LOG.warn("Slab class {} has {} live blocks ({} bytes) at shutdown", stat.blockSize(), stat.liveBlocks(), stat.liveBytes());
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import graphics.cinnabar.api.annotations.ThreadSafety;
 
 import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 @API
 public interface IWorkQueue {
@@ -54,6 +55,17 @@ public interface IWorkQueue {
                 Background threads work is required to be Any safe, or Many safe if enqueued multiple times before waiting for completion
                 """)
         void accept(ThreadIndex threadIndex);
+        
+        @API(note = "Execution time estimates are learned per class returned here, work that wraps other code should return that code's class")
+        @ThreadSafety.Many
+        default Class<?> costClass() {
+            return getClass();
+        }
+    }
+    
+    interface RangeWork {
+        @ThreadSafety.Many(note = "called concurrently with disjoint [start, end) ranges")
+        void accept(ThreadIndex threadIndex, int start, int end);
     }
     
     void wait(ISemaphore semaphore, long value);
@@ -65,6 +77,28 @@ public interface IWorkQueue {
     
     void signal(ISemaphore semaphore, long value);
     
+    @API(note = """
+            Runs body for every index in [start, end), split into chunks of at least grain indices
+            Chunks shrink as the range drains, so late arriving threads still get balanced work
+            The calling thread participates if it is allowed to run this queue's work, otherwise it waits
+            Returns once every index has run, rethrows the first exception thrown by body
+            body is not ordered against other work or semaphore operations in this queue
+            """)
+    @ThreadSafety.Many
+    void parallelFor(int start, int end, int grain, IntConsumer body);
+    
+    @API(note = "Same as parallelFor(int, int, int, IntConsumer), but body is handed whole chunks")
+    @ThreadSafety.Many
+    void parallelFor(int start, int end, int grain, RangeWork body);
+    
+    @API(note = """
+            Enqueues second to this queue, runs first on the calling thread, then waits for second to complete
+            If nothing has picked up second by the time first completes, the calling thread may run it itself
+            Calls may nest, this is intended for recursive divide and conquer work
+            """)
+    @ThreadSafety.Many
+    void forkJoin(Work first, Work second);
+    
     @Internal
     @SuppressWarnings("DataFlowIssue")
     class Bootstrapper {
@@ -0,0 +1,85 @@
+package graphics.cinnabar.api.threading;
+
+import graphics.cinnabar.api.annotations.API;
+import graphics.cinnabar.api.annotations.Internal;
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.exceptions.InvalidThread;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+@API(note = """
+        Scoped ThreadIndex for threads Cinnabar didn't create (other mods' executors, the integrated server, the common pool, etc)
+        While attached the thread can use anything that requires a valid ThreadIndex, such as buffer creation and uploads
+        Leases come from a small fixed size table, so they should be held for a region of work, not the lifetime of a pooled thread
+        """)
+public final class ThreadIndexLease implements AutoCloseable {
+    
+    @Internal
+    static Supplier<@Nullable ThreadIndex> leaseFunc = () -> null;
+    @Internal
+    static Consumer<ThreadIndex> releaseFunc = index -> {
+    };
+    
+    private final Thread thread;
+    private final ThreadIndex threadIndex;
+    // a thread that already had an index (nested attach, or a Cinnabar thread) gets a lease that doesn't release anything
+    private final boolean owned;
+    private boolean closed = false;
+    
+    private ThreadIndexLease(ThreadIndex threadIndex, boolean owned) {
+        this.thread = Thread.currentThread();
+        this.threadIndex = threadIndex;
+        this.owned = owned;
+    }
+    
+    @API(note = "throws IllegalStateException if all lease slots are in use")
+    @ThreadSafety.Many
+    public static ThreadIndexLease attach() {
+        @Nullable
+        final var lease = tryAttach();
+        if (lease == null) {
+            throw new IllegalStateException("No free ThreadIndex leases, " + ThreadIndex.threadCount + " total indices");
+        }
+        return lease;
+    }
+    
+    @API(note = "returns null if all lease slots are in use")
+    @Nullable
+    @ThreadSafety.Many
+    public static ThreadIndexLease tryAttach() {
+        final var existing = ThreadIndex.currentThreadIndex();
+        if (existing.valid()) {
+            return new ThreadIndexLease(existing, false);
+        }
+        @Nullable
+        final var leased = leaseFunc.get();
+        if (leased == null) {
+            return null;
+        }
+        return new ThreadIndexLease(leased, true);
+    }
+    
+    @API
+    @ThreadSafety.Many
+    public ThreadIndex threadIndex() {
+        return threadIndex;
+    }
+    
+    @API(note = "must be called from the thread that attached, nothing keyed by the index may be used on this thread afterwards")
+    @Override
+    @ThreadSafety.Any
+    public void close() {
+        if (Thread.currentThread() != thread) {
+            throw new InvalidThread();
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (owned) {
+            releaseFunc.accept(threadIndex);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package graphics.cinnabar.api.threading;
 
+import graphics.cinnabar.api.annotations.Internal;
 import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -12,10 +13,12 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class WorkFuture<T> implements IWorkQueue.Work, Future<T> {
     
-    boolean executed = false;
+    // volatile so the unsynchronized isDone() fast path in get() also sees the result written before it
+    volatile boolean executed = false;
     @Nullable
     private Exception exception;
     @Nullable
@@ -28,6 +31,10 @@ public class WorkFuture<T> implements IWorkQueue.Work, Future<T> {
     @Nullable
     private List<BiConsumer<WorkFuture<T>, ThreadIndex>> onCompleteMultiple;
     
+    // runs queued work for the given thread, returning if any was run, set by the queue system
+    @Internal
+    static Predicate<ThreadIndex> helpWhileWaitingFunc = threadIndex -> false;
+    
     public WorkFuture(Function<ThreadIndex, @Nullable T> creationFunc) {
         this.creationFunc = creationFunc;
     }
@@ -63,6 +70,12 @@ public class WorkFuture<T> implements IWorkQueue.Work, Future<T> {
         onCompleteSingle = null;
     }
     
+    @Override
+    public Class<?> costClass() {
+        // every future is this class, the lambda has a class per call site
+        return creationFunc.getClass();
+    }
+    
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
         return false;
@@ -95,10 +108,19 @@ public class WorkFuture<T> implements IWorkQueue.Work, Future<T> {
     @Nullable
     public T get() throws InterruptedException, ExecutionException {
         if (!isDone()) {
-            synchronized (this) {
-                if (!isDone()) {
-                    // TODO: this can deadlock if waiting on the only thread able to execute this future
-                    wait();
+            final var threadIndex = ThreadIndex.currentThreadIndex();
+            // registered threads help with queued work instead of blocking, which also covers this future being in a queue only this thread can run
+            // every thread's help includes the queues it owns, and the main thread makes sure a worker exists for background work it leaves, so waits on each other resolve
+            // a future queued behind a wait that is only signaled after this returns still never runs
+            while (!isDone()) {
+                if (threadIndex.valid() && helpWhileWaitingFunc.test(threadIndex)) {
+                    continue;
+                }
+                synchronized (this) {
+                    if (!isDone()) {
+                        // bounded, so a registered thread goes back to helping if more work shows up
+                        wait(threadIndex.valid() ? 1 : 0);
+                    }
                 }
             }
         }
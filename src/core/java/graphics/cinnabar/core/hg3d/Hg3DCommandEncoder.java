@@ -18,9 +18,11 @@ import graphics.cinnabar.api.hg.*;
 import graphics.cinnabar.api.hg.enums.HgUniformType;
 import graphics.cinnabar.api.memory.GrowingMemoryStack;
 import graphics.cinnabar.api.memory.MagicMemorySizes;
+import graphics.cinnabar.api.memory.MemoryBudget;
 import graphics.cinnabar.api.memory.PointerWrapper;
 import graphics.cinnabar.api.util.Destroyable;
 import graphics.cinnabar.api.util.Pair;
+import graphics.cinnabar.core.residency.ResidencyTrace;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
@@ -33,6 +35,7 @@ import org.lwjgl.vulkan.VkDrawIndexedIndirectCommand;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 import static org.lwjgl.vulkan.KHRSynchronization2.VK_PIPELINE_STAGE_2_ALL_COMMANDS_BIT_KHR;
@@ -41,6 +44,9 @@ import static org.lwjgl.vulkan.VK10.*;
 public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destroyable {
     
     private static final long UPLOAD_BUFFER_SIZE = 4 * MagicMemorySizes.MiB;
+    // large uploads that fill a device local buffer nothing has used yet go through the transfer queue, overlapping the copy with rendering
+    private static final boolean ASYNC_TRANSFER_UPLOADS = Boolean.getBoolean("cinnabar.asyncTransferUploads");
+    private static final long ASYNC_TRANSFER_THRESHOLD = Long.getLong("cinnabar.asyncTransferThreshold", 256 * MagicMemorySizes.KiB);
     private final Hg3DGpuDevice device;
     private final HgQueue queue;
     private final HgCommandBuffer.Pool commandPool;
@@ -63,16 +69,74 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
     private long nextFenceValue = 1;
     
     private final MemoryStack memoryStack = new GrowingMemoryStack();
+    // uploads are recorded lazily, so runs of them become one copy command per (source, destination) pair
+    // early copies need no barriers, the early command buffer is already fenced on both sides
+    private final StagedCopies earlyStagedCopies = new StagedCopies(false);
+    private final StagedCopies mainStagedCopies = new StagedCopies(true);
+    
+    // null when async transfer uploads are disabled, or there is no queue separate from graphics
+    @Nullable
+    private final HgQueue transferQueue;
+    @Nullable
+    private final HgCommandBuffer.Pool transferCommandPool;
+    @Nullable
+    private final HgSemaphore transferSemaphore;
+    private long transferSemaphoreValue = 0;
+    // highest transfer value a graphics submission has been told to wait on, and the highest that needs waiting on
+    private long transferWaitedValue = 0;
+    private long transferWaitValue = 0;
+    @Nullable
+    private TransferBatch recordingTransferBatch;
+    private final ReferenceArrayList<TransferBatch> submittedTransferBatches = new ReferenceArrayList<>();
+    
+    private record TransferUpload(Hg3DGpuBuffer buffer, HgBuffer.Slice dst) {
+    }
+    
+    private static final class TransferBatch {
+        private final long semaphoreValue;
+        private final HgCommandBuffer commandBuffer;
+        // not yet acquired by the graphics queue
+        private final ReferenceArrayList<TransferUpload> uploads = new ReferenceArrayList<>();
+        private final ReferenceArrayList<HgBuffer.Slice> releases = new ReferenceArrayList<>();
+        private final ReferenceArrayList<HgBuffer> stagingBuffers = new ReferenceArrayList<>();
+        
+        private TransferBatch(long semaphoreValue, HgCommandBuffer commandBuffer) {
+            this.semaphoreValue = semaphoreValue;
+            this.commandBuffer = commandBuffer;
+        }
+    }
     
     Hg3DCommandEncoder(Hg3DGpuDevice device) {
         this.device = device;
         queue = device.hgDevice().queue(HgQueue.Type.GRAPHICS);
         commandPool = queue.createCommandPool(false, true);
         fenceSemaphore = device.hgDevice().createSemaphore(0);
+        final var deviceTransferQueue = device.hgDevice().queue(HgQueue.Type.TRANSFER);
+        if (ASYNC_TRANSFER_UPLOADS && deviceTransferQueue != queue) {
+            transferQueue = deviceTransferQueue;
+            transferCommandPool = transferQueue.createCommandPool(false, true);
+            transferSemaphore = device.hgDevice().createSemaphore(0);
+        } else {
+            transferQueue = null;
+            transferCommandPool = null;
+            transferSemaphore = null;
+        }
     }
     
     @Override
     public void destroy() {
+        if (transferSemaphore != null) {
+            assert transferCommandPool != null;
+            submitTransferBatch();
+            transferSemaphore.waitValue(transferSemaphoreValue, -1);
+            for (final var batch : submittedTransferBatches) {
+                batch.commandBuffer.destroy();
+                batch.stagingBuffers.forEach(HgBuffer::destroy);
+            }
+            submittedTransferBatches.clear();
+            transferSemaphore.destroy();
+            transferCommandPool.destroy();
+        }
         fenceSemaphore.destroy();
         commandPool.destroy();
         if (uploadBuffer != null) {
@@ -106,7 +170,20 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
         return commandPool.allocate().begin();
     }
     
+    // anything recording into the command buffers directly must come after the staged copies
     HgCommandBuffer earlyCommandBuffer() {
+        final var commandBuffer = ensureEarlyCommandBuffer();
+        earlyStagedCopies.record(commandBuffer);
+        return commandBuffer;
+    }
+    
+    HgCommandBuffer mainCommandBuffer() {
+        final var commandBuffer = ensureMainCommandBuffer();
+        mainStagedCopies.record(commandBuffer);
+        return commandBuffer;
+    }
+    
+    private HgCommandBuffer ensureEarlyCommandBuffer() {
         if (earlyCommandBuffer == null) {
             earlyCommandBuffer = allocateCommandBuffer();
             earlyCommandBuffer.setName("Early Command Buffer");
@@ -116,7 +193,7 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
         return earlyCommandBuffer;
     }
     
-    HgCommandBuffer mainCommandBuffer() {
+    private HgCommandBuffer ensureMainCommandBuffer() {
         endRenderPass();
         if (mainCommandBuffer == null) {
             mainCommandBuffer = allocateCommandBuffer();
@@ -127,8 +204,180 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
         return mainCommandBuffer;
     }
     
+    private void stageBufferCopy(boolean early, HgBuffer.Slice src, HgBuffer.Slice dst) {
+        final var commandBuffer = early ? ensureEarlyCommandBuffer() : ensureMainCommandBuffer();
+        final var staged = early ? earlyStagedCopies : mainStagedCopies;
+        if (staged.full() || staged.overlaps(dst)) {
+            // regions of one copy command can't overlap, and the order of overlapping writes matters
+            staged.record(commandBuffer);
+        }
+        staged.add(src, dst);
+    }
+    
+    private void stageImageCopy(HgBuffer.ImageSlice src, HgImage.TransferRange dst) {
+        final var commandBuffer = ensureMainCommandBuffer();
+        if (mainStagedCopies.full() || mainStagedCopies.overlaps(dst)) {
+            mainStagedCopies.record(commandBuffer);
+        }
+        mainStagedCopies.add(src, dst);
+    }
+    
+    boolean canUploadOnTransferQueue(long size) {
+        return transferQueue != null && size >= ASYNC_TRANSFER_THRESHOLD;
+    }
+    
+    private boolean canUploadOnTransferQueue(Hg3DGpuBuffer targetBuffer, GpuBufferSlice slice, long size) {
+        // the buffer is EXCLUSIVE, anything the graphics queue has owned would need releasing to the transfer queue first
+        // a buffer nothing has touched yet has no owner, and writing all of it means no earlier contents need to survive
+        return canUploadOnTransferQueue(size) && slice.offset() == 0 && size == targetBuffer.size() && targetBuffer.untouched();
+    }
+    
+    private void uploadOnTransferQueue(Hg3DGpuBuffer targetBuffer, HgBuffer.Slice dstSlice, ByteBuffer data) {
+        uploadOnTransferQueue(targetBuffer, dstSlice, data.remaining(), ptr -> MemoryUtil.memCopy(MemoryUtil.memAddress(data), ptr, data.remaining()));
+    }
+    
+    // dstSlice must be memory no queue family owns yet, write fills the staging memory at the given address with size bytes
+    void uploadOnTransferQueue(Hg3DGpuBuffer targetBuffer, HgBuffer.Slice dstSlice, long size, LongConsumer write) {
+        assert transferCommandPool != null;
+        if (recordingTransferBatch == null) {
+            final var commandBuffer = transferCommandPool.allocate().begin();
+            commandBuffer.setName("Transfer Upload Command Buffer");
+            recordingTransferBatch = new TransferBatch(++transferSemaphoreValue, commandBuffer);
+        }
+        // dedicated staging buffer, the shared upload buffers belong to the graphics queue
+        // dst has never been owned by the graphics queue, so the transfer queue can take it without an acquire
+        final var stagingBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, MemoryBudget.Category.STAGING).setName("Transfer Upload");
+        final var ptr = stagingBuffer.map();
+        write.accept(ptr.pointer());
+        stagingBuffer.unmap();
+        recordingTransferBatch.commandBuffer.copyBufferToBuffer(stagingBuffer.slice(), dstSlice);
+        recordingTransferBatch.stagingBuffers.add(stagingBuffer);
+        recordingTransferBatch.releases.add(dstSlice);
+        recordingTransferBatch.uploads.add(new TransferUpload(targetBuffer, dstSlice));
+        targetBuffer.transferUploadRecorded(recordingTransferBatch.semaphoreValue);
+    }
+    
+    private void submitTransferBatch() {
+        if (recordingTransferBatch == null) {
+            return;
+        }
+        assert transferQueue != null;
+        assert transferSemaphore != null;
+        final var batch = recordingTransferBatch;
+        recordingTransferBatch = null;
+        batch.commandBuffer.queueOwnershipTransfer(transferQueue, queue, batch.releases, null, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT, VK_ACCESS_MEMORY_READ_BIT | VK_ACCESS_MEMORY_WRITE_BIT);
+        batch.commandBuffer.end();
+        transferQueue.submit(HgQueue.Item.execute(batch.commandBuffer), HgQueue.Item.signal(transferSemaphore, batch.semaphoreValue, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT));
+        submittedTransferBatches.add(batch);
+        retireAcquiredTransferBatches();
+    }
+    
+    // the graphics queue must own an uploaded range again before using it, called on the buffer's first use after the upload
+    void acquireTransferUpload(Hg3DGpuBuffer buffer) {
+        if (recordingTransferBatch != null && acquireTransferUpload(recordingTransferBatch, buffer)) {
+            return;
+        }
+        for (final var batch : submittedTransferBatches) {
+            if (acquireTransferUpload(batch, buffer)) {
+                retireAcquiredTransferBatches();
+                return;
+            }
+        }
+        throw new IllegalStateException("Buffer has a pending transfer upload, but isn't part of any transfer batch");
+    }
+    
+    private boolean acquireTransferUpload(TransferBatch batch, Hg3DGpuBuffer buffer) {
+        for (int i = 0; i < batch.uploads.size(); i++) {
+            final var upload = batch.uploads.get(i);
+            if (upload.buffer != buffer) {
+                continue;
+            }
+            assert transferQueue != null;
+            earlyCommandBuffer().queueOwnershipTransfer(transferQueue, queue, List.of(upload.dst), null, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT, VK_ACCESS_MEMORY_READ_BIT | VK_ACCESS_MEMORY_WRITE_BIT);
+            transferWaitValue = Math.max(transferWaitValue, batch.semaphoreValue);
+            batch.uploads.remove(i);
+            buffer.transferUploadAcquired();
+            return true;
+        }
+        return false;
+    }
+    
+    // only batches the transfer queue has already finished, so the wait for them costs the graphics queue nothing
+    // anything still running is left to overlap with rendering, and acquired by a later flush or on the buffer's first use
+    private void acquireCompletedTransfers() {
+        if (submittedTransferBatches.isEmpty()) {
+            return;
+        }
+        assert transferQueue != null;
+        assert transferSemaphore != null;
+        final var completedValue = transferSemaphore.value();
+        final var acquires = new ReferenceArrayList<HgBuffer.Slice>();
+        for (final var batch : submittedTransferBatches) {
+            if (batch.semaphoreValue > completedValue) {
+                continue;
+            }
+            for (final var upload : batch.uploads) {
+                acquires.add(upload.dst);
+                upload.buffer.transferUploadAcquired();
+                transferWaitValue = Math.max(transferWaitValue, batch.semaphoreValue);
+            }
+            batch.uploads.clear();
+        }
+        if (!acquires.isEmpty()) {
+            earlyCommandBuffer().queueOwnershipTransfer(transferQueue, queue, acquires, null, VK_PIPELINE_STAGE_TRANSFER_BIT, VK_ACCESS_TRANSFER_WRITE_BIT, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT, VK_ACCESS_MEMORY_READ_BIT | VK_ACCESS_MEMORY_WRITE_BIT);
+        }
+        retireAcquiredTransferBatches();
+    }
+    
+    // fully acquired batches are destroyed at the end of this frame, its graphics work waits on the transfer
+    private void retireAcquiredTransferBatches() {
+        submittedTransferBatches.removeIf(batch -> {
+            if (!batch.uploads.isEmpty()) {
+                return false;
+            }
+            device.destroyEndOfFrame(batch.commandBuffer);
+            device.destroyEndOfFrame(batch.stagingBuffers);
+            return true;
+        });
+    }
+    
+    // the buffer is being destroyed with an upload the graphics queue never acquired
+    // the transfer may still be writing hgBuffer, so it's retired with the batch, after the graphics queue has waited on the transfer
+    void dropTransferUpload(Hg3DGpuBuffer buffer, HgBuffer hgBuffer) {
+        if (recordingTransferBatch != null && recordingTransferBatch.uploads.removeIf(upload -> upload.buffer == buffer)) {
+            recordingTransferBatch.stagingBuffers.add(hgBuffer);
+            transferWaitValue = Math.max(transferWaitValue, recordingTransferBatch.semaphoreValue);
+        } else {
+            for (final var batch : submittedTransferBatches) {
+                if (batch.uploads.removeIf(upload -> upload.buffer == buffer)) {
+                    batch.stagingBuffers.add(hgBuffer);
+                    transferWaitValue = Math.max(transferWaitValue, batch.semaphoreValue);
+                    break;
+                }
+            }
+        }
+        buffer.transferUploadAcquired();
+        retireAcquiredTransferBatches();
+    }
+    
     void endCommandBuffers() {
         endRenderPass();
+        if (transferQueue != null) {
+            assert transferSemaphore != null;
+            acquireCompletedTransfers();
+            submitTransferBatch();
+            if (transferWaitValue > transferWaitedValue) {
+                // before anything from this flush, the acquires are at the start of the early command buffer
+                queueItems.add(HgQueue.Item.wait(transferSemaphore, transferWaitValue, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT));
+                transferWaitedValue = transferWaitValue;
+            }
+        }
+        if (earlyCommandBuffer != null) {
+            earlyStagedCopies.record(earlyCommandBuffer);
+        }
+        if (mainCommandBuffer != null) {
+            mainStagedCopies.record(mainCommandBuffer);
+        }
         if (earlyCommandBuffer != null) {
             earlyCommandBuffer.barrier();
             earlyCommandBuffer.popDebugGroup();
@@ -173,7 +422,7 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
     
     HgBuffer.Slice uploadBufferSlice(long size) {
         if (size > UPLOAD_BUFFER_SIZE) {
-            final var tempBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT).setName("Upload Oversize");
+            final var tempBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, size, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, MemoryBudget.Category.STAGING).setName("Upload Oversize");
             device.destroyEndOfFrameAsync(tempBuffer);
             return tempBuffer.slice();
         }
@@ -185,7 +434,7 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
                 uploadBuffer = null;
             }
             if (availableUploadBuffers.isEmpty()) {
-                uploadBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, UPLOAD_BUFFER_SIZE, VK_BUFFER_USAGE_TRANSFER_SRC_BIT).setName("Upload Temp");
+                uploadBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, UPLOAD_BUFFER_SIZE, VK_BUFFER_USAGE_TRANSFER_SRC_BIT, MemoryBudget.Category.STAGING).setName("Upload Temp");
                 totalUploadBuffers++;
             } else {
                 uploadBuffer = availableUploadBuffers.pop();
@@ -314,6 +563,11 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
     @Override
     public void writeToBuffer(GpuBufferSlice slice, ByteBuffer buffer) {
         final var targetBuffer = ((Hg3DGpuBuffer) slice.buffer());
+        if (ResidencyTrace.ENABLED) {
+            ResidencyTrace.write(targetBuffer.traceId(), buffer.remaining());
+        }
+        // checked before hgSlice marks the buffer used
+        final var transferUpload = canUploadOnTransferQueue(targetBuffer, slice, buffer.remaining());
         
         if (!targetBuffer.isInFlight() && targetBuffer.hgSlice().buffer().memoryType().mappable) {
             // buffer isn't in flight, and is mappable, write directly to it
@@ -321,21 +575,16 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
             assert buffer.remaining() <= slice.length();
             MemoryUtil.memCopy(MemoryUtil.memAddress(buffer), bufferPtr.pointer() + slice.offset(), buffer.remaining());
             targetBuffer.hgSlice().unmap();
+        } else if (transferUpload) {
+            uploadOnTransferQueue(targetBuffer, targetBuffer.hgSlice().slice(slice.offset(), slice.length()), buffer);
         } else {
             final var tempBuffer = uploadBufferSlice(buffer.remaining());
             final var ptr = tempBuffer.map();
             MemoryUtil.memCopy(MemoryUtil.memAddress(buffer), ptr.pointer(), ptr.size());
             tempBuffer.unmap();
             final var earlyUpload = !targetBuffer.usedThisFrame();
-            final var cb = earlyUpload ? earlyCommandBuffer() : mainCommandBuffer();
-            if (!earlyUpload) {
-                cb.barrier();
-            }
             final var dstSlice = targetBuffer.hgSlice().slice(slice.offset(), slice.length());
-            cb.copyBufferToBuffer(tempBuffer, dstSlice);
-            if (!earlyUpload) {
-                cb.barrier();
-            }
+            stageBufferCopy(earlyUpload, tempBuffer, dstSlice);
         }
     }
     
@@ -392,11 +641,8 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
         final var hg3dTexture = (Hg3DGpuTexture) texture;
         final var hgImage = hg3dTexture.image();
         
-        final var cb = mainCommandBuffer();
-        cb.barrier();
         // B3D its currently always "layer", not depth
-        cb.copyBufferToImage(tempBuffer.image(srcWidth, srcHeight), hgImage.transferRange(new Vector3i(x, y, 0), new Vector3i(width, height, 1), depthOrLayer, 1, mipLevel));
-        cb.barrier();
+        stageImageCopy(tempBuffer.image(srcWidth, srcHeight), hgImage.transferRange(new Vector3i(x, y, 0), new Vector3i(width, height, 1), depthOrLayer, 1, mipLevel));
     }
     
     @Override
@@ -492,6 +738,122 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
     public void timerQueryEnd(GpuQuery gpuQuery) {
     }
     
+    private static final class StagedCopies {
+        // bounds the overlap checks, and the size of a single copy command
+        private static final int MAX_REGIONS = 256;
+        
+        private record BufferCopies(HgBuffer src, HgBuffer dst, ReferenceArrayList<HgBuffer.Slice> srcs, ReferenceArrayList<HgBuffer.Slice> dsts) {
+        }
+        
+        private record ImageCopies(HgBuffer src, HgImage dst, ReferenceArrayList<HgBuffer.ImageSlice> srcs, ReferenceArrayList<HgImage.TransferRange> dsts) {
+        }
+        
+        private final boolean surroundWithBarriers;
+        private final ReferenceArrayList<BufferCopies> bufferCopies = new ReferenceArrayList<>();
+        private final ReferenceArrayList<ImageCopies> imageCopies = new ReferenceArrayList<>();
+        private int regionCount = 0;
+        
+        private StagedCopies(boolean surroundWithBarriers) {
+            this.surroundWithBarriers = surroundWithBarriers;
+        }
+        
+        private boolean full() {
+            return regionCount >= MAX_REGIONS;
+        }
+        
+        private boolean overlaps(HgBuffer.Slice dst) {
+            for (final var copies : bufferCopies) {
+                if (copies.dst != dst.buffer()) {
+                    continue;
+                }
+                for (final var existing : copies.dsts) {
+                    if (existing.offset() < dst.offset() + dst.size() && dst.offset() < existing.offset() + existing.size()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        
+        private boolean overlaps(HgImage.TransferRange dst) {
+            for (final var copies : imageCopies) {
+                if (copies.dst != dst.image()) {
+                    continue;
+                }
+                for (final var existing : copies.dsts) {
+                    if (existing.mipLevel() != dst.mipLevel()) {
+                        continue;
+                    }
+                    if (existing.baseLayer() >= dst.baseLayer() + dst.layerCount() || dst.baseLayer() >= existing.baseLayer() + existing.layerCount()) {
+                        continue;
+                    }
+                    if (overlaps(existing.offset().x(), existing.extent().x(), dst.offset().x(), dst.extent().x()) &&
+                                overlaps(existing.offset().y(), existing.extent().y(), dst.offset().y(), dst.extent().y()) &&
+                                overlaps(existing.offset().z(), existing.extent().z(), dst.offset().z(), dst.extent().z())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        
+        private static boolean overlaps(int aOffset, int aExtent, int bOffset, int bExtent) {
+            return aOffset < bOffset + bExtent && bOffset < aOffset + aExtent;
+        }
+        
+        private void add(HgBuffer.Slice src, HgBuffer.Slice dst) {
+            regionCount++;
+            for (final var copies : bufferCopies) {
+                if (copies.src == src.buffer() && copies.dst == dst.buffer()) {
+                    copies.srcs.add(src);
+                    copies.dsts.add(dst);
+                    return;
+                }
+            }
+            final var copies = new BufferCopies(src.buffer(), dst.buffer(), new ReferenceArrayList<>(), new ReferenceArrayList<>());
+            copies.srcs.add(src);
+            copies.dsts.add(dst);
+            bufferCopies.add(copies);
+        }
+        
+        private void add(HgBuffer.ImageSlice src, HgImage.TransferRange dst) {
+            regionCount++;
+            for (final var copies : imageCopies) {
+                if (copies.src == src.buffer() && copies.dst == dst.image()) {
+                    copies.srcs.add(src);
+                    copies.dsts.add(dst);
+                    return;
+                }
+            }
+            final var copies = new ImageCopies(src.buffer(), dst.image(), new ReferenceArrayList<>(), new ReferenceArrayList<>());
+            copies.srcs.add(src);
+            copies.dsts.add(dst);
+            imageCopies.add(copies);
+        }
+        
+        // nothing staged overlaps, so the order between pairs doesn't matter
+        private void record(HgCommandBuffer commandBuffer) {
+            if (regionCount == 0) {
+                return;
+            }
+            if (surroundWithBarriers) {
+                commandBuffer.barrier();
+            }
+            for (final var copies : bufferCopies) {
+                commandBuffer.copyBufferToBuffer(copies.srcs, copies.dsts);
+            }
+            for (final var copies : imageCopies) {
+                commandBuffer.copyBufferToImage(copies.srcs, copies.dsts);
+            }
+            if (surroundWithBarriers) {
+                commandBuffer.barrier();
+            }
+            bufferCopies.clear();
+            imageCopies.clear();
+            regionCount = 0;
+        }
+    }
+    
     public class Hg3DRenderPass implements C3DRenderPass {
         
         private boolean active = false;
@@ -851,7 +1213,7 @@ public class Hg3DCommandEncoder implements C3DCommandEncoder, Hg3DObject, Destro
                             case INT -> VK_INDEX_TYPE_UINT32;
                         });
                         
-                        final var drawsCPUBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, (long) drawCount * VkDrawIndexedIndirectCommand.SIZEOF, VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT).setName("Indirect Commands");
+                        final var drawsCPUBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, (long) drawCount * VkDrawIndexedIndirectCommand.SIZEOF, VK_BUFFER_USAGE_INDIRECT_BUFFER_BIT, MemoryBudget.Category.STAGING).setName("Indirect Commands");
                         device.destroyEndOfFrameAsync(drawsCPUBuffer);
                         final var ptr = drawsCPUBuffer.map();
                         MemoryUtil.memCopy(drawCommands.address(0), ptr.pointer(), (long) drawCount * VkDrawIndexedIndirectCommand.SIZEOF);
@@ -1,23 +1,67 @@
 package graphics.cinnabar.core.hg3d;
 
 import com.mojang.blaze3d.buffers.GpuBuffer;
+import graphics.cinnabar.api.annotations.ThreadSafety;
 import graphics.cinnabar.api.hg.HgBuffer;
 import graphics.cinnabar.api.hg.HgCommandBuffer;
+import graphics.cinnabar.api.hg.HgDevice;
 import graphics.cinnabar.api.hg.HgQueue;
 import graphics.cinnabar.api.memory.MagicMemorySizes;
+import graphics.cinnabar.api.memory.MemoryBudget;
+import graphics.cinnabar.api.memory.MemoryPressure;
+import graphics.cinnabar.api.memory.SlabAllocator;
+import graphics.cinnabar.api.threading.IWorkQueue;
+import graphics.cinnabar.api.threading.ThreadIndex;
 import graphics.cinnabar.api.util.Destroyable;
+import graphics.cinnabar.core.residency.ResidencyPolicy;
+import graphics.cinnabar.core.residency.ResidencyTrace;
 import graphics.cinnabar.core.util.MagicNumbers;
 import graphics.cinnabar.lib.datastructures.SpliceableLinkedList;
+import it.unimi.dsi.fastutil.longs.Long2ReferenceOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongLongPair;
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import org.jetbrains.annotations.Nullable;
 import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.system.libc.LibCString;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
+import static org.lwjgl.util.lz4.LZ4.*;
 import static org.lwjgl.vulkan.VK10.VK_BUFFER_USAGE_TRANSFER_DST_BIT;
 
 public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable {
+    // evicted data above the threshold is LZ4 compressed on the background threads, and kept that way if it shrinks to at most MaxPercent of its size
+    private static final boolean COMPRESS_EVICTED_DATA = Boolean.getBoolean("cinnabar.evictedDataCompression");
+    private static final long COMPRESSION_THRESHOLD = Long.getLong("cinnabar.evictedDataCompressionThreshold", 64 * MagicMemorySizes.KiB);
+    private static final long COMPRESSION_MAX_PERCENT = Math.clamp(Long.getLong("cinnabar.evictedDataCompressionMaxPercent", 75), 1, 100);
+    // device local buffers are compacted with VMA's defragmentation a pass per frame, when there is memory to spare for the moves
+    // started every Interval frames, or sooner if an allocation has failed since the last one
+    private static final boolean DEFRAGMENTATION = Boolean.getBoolean("cinnabar.defragmentation");
+    private static final long DEFRAGMENTATION_INTERVAL = Long.getLong("cinnabar.defragmentationInterval", 3600);
+    private static final long DEFRAGMENTATION_PASS_BYTES = Long.getLong("cinnabar.defragmentationPassBytes", 32 * MagicMemorySizes.MiB);
+    private static final int DEFRAGMENTATION_PASS_BUFFERS = Integer.getInteger("cinnabar.defragmentationPassBuffers", 256);
+    // immutable buffers with identical contents and usage share one backing buffer, reference counted by the buffers handed out
+    // only up to MaxBytes, every candidate is hashed on creation and large immutable buffers (chunk meshes) are almost never duplicates
+    private static final boolean DEDUPLICATE_IMMUTABLE = Boolean.getBoolean("cinnabar.deduplicateImmutableBuffers");
+    private static final long DEDUPLICATE_IMMUTABLE_MAX_BYTES = Long.getLong("cinnabar.deduplicateImmutableMaxBytes", 16 * MagicMemorySizes.KiB);
+    
+    private static final LongAdder compressionInputBytes = new LongAdder();
+    private static final LongAdder compressionOutputBytes = new LongAdder();
+    private static final LongAdder compressionRejected = new LongAdder();
+    private static final LongAdder compressionNanos = new LongAdder();
+    private static final LongAdder decompressionNanos = new LongAdder();
+    
+    public record CompressionStats(long inputBytes, long outputBytes, long rejected, long compressionNanos, long decompressionNanos) {
+        // only counts data that was kept compressed
+        public double ratio() {
+            return outputBytes == 0 ? 1 : (double) inputBytes / outputBytes;
+        }
+    }
+    
     private final Hg3DGpuDevice device;
     private final HgBuffer.MemoryRequest requestedMemory;
     private boolean isClosed = false;
@@ -33,6 +77,11 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
     // TODO: tihs could be better, PointerWrapper?
     private long evictedData;
     private long evictedDataSize;
+    // when compressed, evictedDataSize is the compressed size, and this is what it decompresses to
+    private long evictedDataRawSize;
+    private boolean evictedDataCompressed;
+    @Nullable
+    private CompressionJob compressionJob;
     @Nullable
     private HgBuffer.MemoryType memoryType;
     @Nullable
@@ -40,6 +89,16 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
     
     private final SpliceableLinkedList.Node<Hg3DGpuBuffer> usageListNode = new SpliceableLinkedList.Node<>(this);
     private long lastUsedFrame = -1;
+    // transfer queue upload the graphics queue hasn't acquired yet, 0 if there is none
+    private long pendingTransferValue = 0;
+    // assigned by traceCreate, deduplicated buffers don't get one, their backing is what's traced
+    private int traceId = -1;
+    // set on deduplicated buffers, which have no memory of their own and use the backing's
+    @Nullable
+    private Hg3DGpuBuffer sharedBacking;
+    // on a backing, how many deduplicated buffers use it
+    private int sharedReferences;
+    private long contentHash;
     
     private Hg3DGpuBuffer(Manager manager, @Nullable Supplier<String> label, int usage, long size, @Nullable ByteBuffer sourceData) {
         super(usage, size);
@@ -48,7 +107,9 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
         this.label = label;
         if (sourceData != null) {
             // make a copy, because we own this buffer
-            final var newSourceData = MemoryUtil.memAlloc(sourceData.remaining());
+            final var sourceSize = sourceData.remaining();
+            final var newSourceData = MemoryUtil.memByteBuffer(SlabAllocator.nmalloc(sourceSize), sourceSize);
+            MemoryBudget.allocated(MemoryBudget.Category.BUFFERS, MemoryBudget.Location.HOST, sourceSize);
             LibCString.memcpy(newSourceData, sourceData);
             sourceData = newSourceData;
         }
@@ -71,6 +132,9 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
             return;
         }
         isClosed = true;
+        if (ResidencyTrace.ENABLED && sharedBacking == null) {
+            ResidencyTrace.destroy(traceId);
+        }
         if (!isInFlight()) {
             // buffer is already out of use enough that it can be destroyed now
             destroy();
@@ -81,11 +145,21 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
     
     @Override
     public void destroy() {
-        if (buffer != null) {
+        if (sharedBacking != null) {
+            manager.releaseShared(sharedBacking);
+            sharedBacking = null;
+        }
+        if (pendingTransferValue != 0) {
+            assert buffer != null;
+            device.createCommandEncoder().dropTransferUpload(this, buffer);
+        } else if (buffer != null) {
             buffer.destroy();
         }
-        MemoryUtil.memFree(sourceData);
-        MemoryUtil.nmemFree(evictedData);
+        if (sourceData != null) {
+            SlabAllocator.nfree(MemoryUtil.memAddress(sourceData), sourceData.capacity());
+            MemoryBudget.freed(MemoryBudget.Category.BUFFERS, MemoryBudget.Location.HOST, sourceData.capacity());
+        }
+        freeEvictedData();
         manager.destroy(this);
     }
     
@@ -94,17 +168,186 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
         return device;
     }
     
+    private void allocateEvictedData(long size) {
+        evictedData = SlabAllocator.nmalloc(size);
+        evictedDataSize = size;
+        evictedDataRawSize = size;
+        evictedDataCompressed = false;
+        MemoryBudget.allocated(MemoryBudget.Category.EVICTED_DATA, MemoryBudget.Location.HOST, size);
+    }
+    
+    private void freeEvictedData() {
+        settleCompression();
+        if (evictedData == 0) {
+            return;
+        }
+        SlabAllocator.nfree(evictedData, evictedDataSize);
+        MemoryBudget.freed(MemoryBudget.Category.EVICTED_DATA, MemoryBudget.Location.HOST, evictedDataSize);
+        evictedData = 0;
+        evictedDataSize = 0;
+        evictedDataRawSize = 0;
+        evictedDataCompressed = false;
+    }
+    
+    private void replaceWithCompressedData(long compressedData, long compressedSize) {
+        SlabAllocator.nfree(evictedData, evictedDataSize);
+        MemoryBudget.freed(MemoryBudget.Category.EVICTED_DATA, MemoryBudget.Location.HOST, evictedDataSize);
+        evictedData = compressedData;
+        evictedDataSize = compressedSize;
+        evictedDataCompressed = true;
+        MemoryBudget.allocated(MemoryBudget.Category.EVICTED_DATA, MemoryBudget.Location.HOST, compressedSize);
+    }
+    
+    // makes sure nothing on the background threads is still reading evictedData
+    // a finished compression that hasn't been swapped in yet is thrown away
+    private void settleCompression() {
+        if (compressionJob == null) {
+            return;
+        }
+        compressionJob.cancel();
+        compressionJob = null;
+    }
+    
+    private void readEvictedData(long dst) {
+        if (!evictedDataCompressed) {
+            MemoryUtil.memCopy(evictedData, dst, evictedDataSize);
+            return;
+        }
+        final var start = System.nanoTime();
+        final var decompressedSize = nLZ4_decompress_safe(evictedData, dst, (int) evictedDataSize, (int) evictedDataRawSize);
+        decompressionNanos.add(System.nanoTime() - start);
+        if (decompressedSize != evictedDataRawSize) {
+            throw new IllegalStateException("Evicted buffer data failed to decompress, " + decompressedSize + " != " + evictedDataRawSize);
+        }
+    }
+    
+    public static CompressionStats compressionStats() {
+        return new CompressionStats(compressionInputBytes.sum(), compressionOutputBytes.sum(), compressionRejected.sum(), compressionNanos.sum(), decompressionNanos.sum());
+    }
+    
+    private static final class CompressionJob implements IWorkQueue.Work {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int CANCELLED = 3;
+        
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final Hg3DGpuBuffer buffer;
+        private final long src;
+        private final long srcSize;
+        // written before DONE is published
+        private long compressed;
+        private long compressedSize;
+        
+        private CompressionJob(Hg3DGpuBuffer buffer) {
+            this.buffer = buffer;
+            this.src = buffer.evictedData;
+            this.srcSize = buffer.evictedDataSize;
+        }
+        
+        @Override
+        @ThreadSafety.Any
+        public void accept(ThreadIndex threadIndex) {
+            if (!state.compareAndSet(PENDING, RUNNING)) {
+                return;
+            }
+            final var start = System.nanoTime();
+            final var bound = LZ4_compressBound((int) srcSize);
+            final var dst = SlabAllocator.nmalloc(bound);
+            final var written = dst == 0 ? 0 : nLZ4_compress_default(src, dst, (int) srcSize, bound);
+            if (written > 0 && written * 100L <= srcSize * COMPRESSION_MAX_PERCENT) {
+                compressed = SlabAllocator.nrealloc(dst, bound, written);
+                compressedSize = written;
+                compressionInputBytes.add(srcSize);
+                compressionOutputBytes.add(written);
+            } else {
+                // not worth it, the raw copy stays
+                if (dst != 0) {
+                    SlabAllocator.nfree(dst, bound);
+                }
+                compressionRejected.increment();
+            }
+            compressionNanos.add(System.nanoTime() - start);
+            state.set(DONE);
+        }
+        
+        private boolean isDone() {
+            return state.get() == DONE;
+        }
+        
+        @ThreadSafety.MainGraphics
+        private void cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                return;
+            }
+            // already running, a single buffer's worth, so just wait it out
+            while (state.get() != DONE) {
+                Thread.onSpinWait();
+            }
+            if (compressed != 0) {
+                SlabAllocator.nfree(compressed, compressedSize);
+                compressed = 0;
+            }
+        }
+    }
+    
     public boolean usedThisFrame() {
-        return lastUsedFrame == device.currentFrame();
+        // a pending transfer upload counts, the graphics queue can't touch the buffer until it's acquired
+        return lastUsedFrame == device.currentFrame() || pendingTransferValue != 0;
+    }
+    
+    // nothing has used or written this buffer yet, so no queue family owns its memory and there are no contents to keep
+    boolean untouched() {
+        return lastUsedFrame == -1 && slice == null && evictedData == 0 && sourceData == null && immediateUpload == null && sharedBacking == null && requestedMemory == HgBuffer.MemoryRequest.GPU;
+    }
+    
+    void transferUploadRecorded(long semaphoreValue) {
+        pendingTransferValue = semaphoreValue;
+        lastUsedFrame = device.currentFrame();
+        manager.used(this);
+    }
+    
+    void transferUploadAcquired() {
+        pendingTransferValue = 0;
+    }
+    
+    int traceId() {
+        return traceId;
+    }
+    
+    private void traceCreate(boolean constantData, boolean evictedData, boolean immediate) {
+        assert traceId == -1;
+        traceId = ResidencyTrace.nextBufferId();
+        ResidencyTrace.create(traceId, size(), requestedMemory, constantData, evictedData, immediate);
     }
     
     public HgBuffer.Slice hgSlice() {
         final var currentFrame = device.currentFrame();
+        if (sharedBacking != null) {
+            // tracked here too, this buffer can't be destroyed while its use of the backing is in flight
+            lastUsedFrame = currentFrame;
+            return sharedBacking.hgSlice();
+        }
+        if (ResidencyTrace.ENABLED && currentFrame != lastUsedFrame) {
+            ResidencyTrace.use(traceId);
+        }
+        if (pendingTransferValue != 0) {
+            // acquired before anything else touches it, promotion is left for next frame as its copy would be ordered before the acquire
+            device.createCommandEncoder().acquireTransferUpload(this);
+            manager.used(this);
+            lastUsedFrame = currentFrame;
+            assert slice != null;
+            return slice;
+        }
         if (currentFrame != lastUsedFrame || slice == null) {
             if (slice == null) {
                 // this promotion can technically fail, if we are out of all VK accessible memory, which is unlikely
                 manager.promoteImmediate(this);
                 assert slice != null;
+                if (pendingTransferValue != 0) {
+                    // uploaded on the transfer queue, it's needed right away, so this acquire makes the graphics queue wait for it
+                    device.createCommandEncoder().acquireTransferUpload(this);
+                }
             } else if (!hasPreferredMemoryType()) {
                 // buffer would like to be device-local, and isn't, but can be used by the GPU
                 // attempt a softer promotion, this won't fail
@@ -147,42 +390,148 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
     
     public static class Manager implements Destroyable {
         private final Hg3DGpuDevice device;
-        private final SpliceableLinkedList<Hg3DGpuBuffer> liveBuffers = new SpliceableLinkedList<>();
-        private long lastPromotionFailedFrame = 0;
+        private final ResidencyPolicy<Hg3DGpuBuffer> policy = new ResidencyPolicy<>(new PolicyBackend());
         @Nullable
         private HgCommandBuffer promotionCommandBuffer;
+        @Nullable
+        private HgCommandBuffer demotionCommandBuffer;
         private final HgBuffer emergencyEvictionBuffer;
+        // kept so the same instance can be unregistered
+        private final MemoryBudget.Shedder shedder = this::shed;
+        private final MemoryPressure.Listener pressureListener = this::memoryPressure;
+        // by location, set once CRITICAL has been shed for, until pressure drops below it again
+        private final boolean[] criticalShed = new boolean[MemoryBudget.Location.values().length];
+        private final ReferenceArrayList<CompressionJob> compressionJobs = new ReferenceArrayList<>();
+        // backing buffers by content hash, a list in case of collisions
+        private final Long2ReferenceOpenHashMap<ReferenceArrayList<Hg3DGpuBuffer>> sharedBuffers = new Long2ReferenceOpenHashMap<>();
+        @Nullable
+        private HgDevice.Defragmentation defragmentation;
+        // frame the active pass's copies were submitted in, -1 when no pass is active
+        private long defragmentationPassFrame = -1;
+        private long lastDefragmentationFrame = 0;
+        private boolean allocFailedSinceDefragmentation = false;
+        // buffers that may be moved by the current pass, only filled while it begins
+        private final Reference2ReferenceOpenHashMap<HgBuffer, Hg3DGpuBuffer> relocatableBuffers = new Reference2ReferenceOpenHashMap<>();
+        private final HgDevice.Defragmentation.Relocator relocator = this::relocate;
         
         public Manager(Hg3DGpuDevice device) {
             this.device = device;
-            emergencyEvictionBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, MagicMemorySizes.MiB, VK_BUFFER_USAGE_TRANSFER_DST_BIT).setName("Emergency Eviction Buffer");
+            emergencyEvictionBuffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, MagicMemorySizes.MiB, VK_BUFFER_USAGE_TRANSFER_DST_BIT, MemoryBudget.Category.STAGING).setName("Emergency Eviction Buffer");
             device.hgDevice().setAllocFailedCallback(this::allocFailed);
+            MemoryBudget.registerShedder(MemoryBudget.Category.BUFFERS, shedder);
+            MemoryPressure.registerListener(pressureListener);
         }
         
         @Override
         public void destroy() {
+            MemoryBudget.unregisterShedder(MemoryBudget.Category.BUFFERS, shedder);
+            MemoryPressure.unregisterListener(pressureListener);
+            if (defragmentation != null) {
+                defragmentation.destroy();
+                defragmentation = null;
+            }
+            for (final var job : compressionJobs) {
+                if (job.buffer.compressionJob == job) {
+                    job.buffer.settleCompression();
+                }
+            }
+            compressionJobs.clear();
             emergencyEvictionBuffer.destroy();
+            ResidencyTrace.close();
         }
         
         public Hg3DGpuBuffer create(@Nullable Supplier<String> label, int usage, long size, int align, @Nullable ByteBuffer data) {
             // if the data can't change, then i can rely on the data currently passed in to be constant for the buffer's entire lifetime
             final var dataCanChange = (usage & (USAGE_COPY_DST | USAGE_MAP_WRITE)) != 0;
             assert dataCanChange || data != null;
+            if (DEDUPLICATE_IMMUTABLE && !dataCanChange && size <= DEDUPLICATE_IMMUTABLE_MAX_BYTES) {
+                return createShared(label, usage, size, data);
+            }
             final var buffer = new Hg3DGpuBuffer(this, label, usage, size, !dataCanChange ? data : null);
+            if (ResidencyTrace.ENABLED) {
+                buffer.traceCreate(!dataCanChange, dataCanChange && data != null, false);
+            }
             if (dataCanChange && data != null) {
                 // if data was specified (and its not constant), consider it "evicted data" at first
                 // it'll automatically get promoted when it gets used
-                buffer.evictedData = MemoryUtil.nmemAlloc(data.remaining());
-                buffer.evictedDataSize = data.remaining();
+                buffer.allocateEvictedData(data.remaining());
                 MemoryUtil.memCopy(MemoryUtil.memAddress(data), buffer.evictedData, data.remaining());
+            } else if (!dataCanChange && buffer.requestedMemory == HgBuffer.MemoryRequest.GPU && device.createCommandEncoder().canUploadOnTransferQueue(size)) {
+                // constant data (chunk meshes) is uploaded now rather than on first use, so the transfer queue has until then to do it
+                // the graphics queue only waits for it if the first use is in the same flush
+                promoteImmediate(buffer);
             }
             return buffer;
         }
         
+        private Hg3DGpuBuffer createShared(@Nullable Supplier<String> label, int usage, long size, ByteBuffer data) {
+            final var hash = contentHash(data);
+            @Nullable
+            var backings = sharedBuffers.get(hash);
+            @Nullable
+            Hg3DGpuBuffer backing = null;
+            if (backings != null) {
+                for (int i = 0; i < backings.size(); i++) {
+                    final var candidate = backings.get(i);
+                    assert candidate.sourceData != null;
+                    if (candidate.usage() == usage && candidate.size() == size && candidate.sourceData.remaining() == data.remaining() && candidate.sourceData.mismatch(data) == -1) {
+                        backing = candidate;
+                        break;
+                    }
+                }
+            } else {
+                backings = new ReferenceArrayList<>(1);
+                sharedBuffers.put(hash, backings);
+            }
+            if (backing == null) {
+                backing = new Hg3DGpuBuffer(this, label, usage, size, data);
+                backing.contentHash = hash;
+                if (ResidencyTrace.ENABLED) {
+                    backing.traceCreate(true, false, false);
+                }
+                backings.add(backing);
+            }
+            backing.sharedReferences++;
+            final var buffer = new Hg3DGpuBuffer(this, label, usage, size, null);
+            buffer.sharedBacking = backing;
+            return buffer;
+        }
+        
+        private void releaseShared(Hg3DGpuBuffer backing) {
+            if (--backing.sharedReferences > 0) {
+                return;
+            }
+            final var backings = sharedBuffers.get(backing.contentHash);
+            assert backings != null;
+            backings.remove(backing);
+            if (backings.isEmpty()) {
+                sharedBuffers.remove(backing.contentHash);
+            }
+            backing.close();
+        }
+        
+        // only has to spread things out, matches are always compared byte for byte
+        private static long contentHash(ByteBuffer data) {
+            final var address = MemoryUtil.memAddress(data);
+            final var size = data.remaining();
+            long hash = size * 0x9E3779B97F4A7C15L;
+            int i = 0;
+            for (; i + 8 <= size; i += 8) {
+                hash = Long.rotateLeft(hash ^ (MemoryUtil.memGetLong(address + i) * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+            }
+            for (; i < size; i++) {
+                hash = (hash ^ MemoryUtil.memGetByte(address + i)) * 0x100000001B3L;
+            }
+            return hash ^ (hash >>> 29);
+        }
+        
         public Hg3DGpuBuffer createImmediate(@Nullable Supplier<String> label, int usage, long size, ByteBuffer data) {
             final var dataCanChange = (usage & (USAGE_COPY_DST | USAGE_MAP_WRITE)) != 0;
             assert dataCanChange;
             final var buffer = new Hg3DGpuBuffer(this, label, usage, size, null);
+            if (ResidencyTrace.ENABLED) {
+                buffer.traceCreate(false, false, true);
+            }
             buffer.immediateUpload = data;
             promoteImmediate(buffer);
             assert buffer.immediateUpload == null;
@@ -190,20 +539,26 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
         }
         
         public void destroy(Hg3DGpuBuffer buffer) {
-            if (buffer.usageListNode.linked()) {
-                assert (buffer.buffer != null);
-                liveBuffers.remove(buffer.usageListNode);
-            }
+            assert !buffer.usageListNode.linked() || buffer.buffer != null;
+            policy.remove(buffer);
             buffer.buffer = null;
             buffer.slice = null;
             buffer.evictedData = 0;
         }
         
         public void used(Hg3DGpuBuffer buffer) {
-            if (buffer.usageListNode.linked()) {
-                liveBuffers.remove(buffer.usageListNode);
+            policy.used(buffer);
+        }
+        
+        private HgCommandBuffer promotionCommandBuffer() {
+            if (promotionCommandBuffer == null) {
+                device.createCommandEncoder().addFlushCallback(this::endPromotionCommandBuffer);
+                promotionCommandBuffer = device.createCommandEncoder().allocateCommandBuffer();
+                promotionCommandBuffer.setName("Promotion command buffer");
+                promotionCommandBuffer.pushDebugGroup("Buffer Promotions");
+                promotionCommandBuffer.barrier();
             }
-            liveBuffers.add(buffer.usageListNode);
+            return promotionCommandBuffer;
         }
         
         private void endPromotionCommandBuffer() {
@@ -217,195 +572,69 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
             promotionCommandBuffer = null;
         }
         
-        private boolean allocFailed(boolean gpuLocal, long allocSize) {
-            // if this fails, the game may crash, so, make every attempt to free some memory.
-            // notable that the current frame's buffers can't be freed, because this may be within a renderpass and I cant end that early
-            // device can be stalled and anything for N-1 can be though
-            boolean anythingFreed = false;
-            
-            for (@Nullable var currentBuffer = liveBuffers.peekFirst(); currentBuffer != null && allocSize > 0; ) {
-                if (currentBuffer.data.isInFlight()) {
-                    // buffer is too new, must fall to second pass
-                    break;
-                }
-                assert currentBuffer.data.buffer != null;
-                if (currentBuffer.data.buffer.memoryType().gpuLocal != gpuLocal) {
-                    // wrong kind of memory, freeing this won't help
-                    currentBuffer = currentBuffer.next();
-                    continue;
-                }
-                if (currentBuffer.data.sourceData != null) {
-                    currentBuffer.data.buffer.destroy();
-                    currentBuffer.data.buffer = null;
-                    currentBuffer.data.slice = null;
-                    final var removedBuffer = currentBuffer;
-                    currentBuffer = currentBuffer.next();
-                    liveBuffers.remove(removedBuffer);
-                    allocSize -= removedBuffer.data.size();
-                    anythingFreed = true;
-                } else if (currentBuffer.data.buffer.memoryType().mappable && currentBuffer.data.buffer.memoryType() != HgBuffer.MemoryType.GPU_MAPPABLE) {
-                    // mappable memory, can evict to CPU memory and then follow immediate eviction path
-                    // UMA (iGPUs) will also end up here
-                    // GPU_MAPPABLE is specifically for over-pcie devices, which is extremely slow to read (though you can), so im not doing it in this pass
-                    currentBuffer.data.evictedData = MemoryUtil.nmemAlloc(currentBuffer.data.size());
-                    currentBuffer.data.evictedDataSize = currentBuffer.data.size();
-                    final var ptr = currentBuffer.data.buffer.slice().map();
-                    MemoryUtil.memCopy(ptr.pointer(), currentBuffer.data.evictedData, currentBuffer.data.size());
-                    currentBuffer.data.buffer.slice().unmap();
-                    
-                    currentBuffer.data.buffer.destroy();
-                    currentBuffer.data.buffer = null;
-                    currentBuffer.data.slice = null;
-                    final var removedBuffer = currentBuffer;
-                    currentBuffer = currentBuffer.next();
-                    liveBuffers.remove(removedBuffer);
-                    allocSize -= removedBuffer.data.size();
-                    anythingFreed = true;
-                } else {
-                    currentBuffer = currentBuffer.next();
-                }
-            }
-            
-            if (allocSize <= 0) {
-                // enough memory freed, attempt the alloc again
-                return true;
+        private void queueCompression(Hg3DGpuBuffer buffer) {
+            if (!COMPRESS_EVICTED_DATA || buffer.evictedDataSize < COMPRESSION_THRESHOLD || buffer.evictedDataSize > LZ4_MAX_INPUT_SIZE) {
+                return;
             }
-            device.hgDevice().waitIdle(); // TODO: use something better than wait idle, this is dangerous w/ multiple threads
-            // anything for N-1 is now free to yeet too
-            
-            for (@Nullable var currentBuffer = liveBuffers.peekFirst(); currentBuffer != null && allocSize > 0; ) {
-                if (currentBuffer.data.usedThisFrame()) {
-                    // buffer is too new, must fall to second pass
-                    break;
+            assert buffer.compressionJob == null;
+            final var job = new CompressionJob(buffer);
+            buffer.compressionJob = job;
+            compressionJobs.add(job);
+            IWorkQueue.BACKGROUND_THREADS.enqueue(job);
+        }
+        
+        private void swapInCompressedData() {
+            compressionJobs.removeIf(job -> {
+                if (job.buffer.compressionJob != job) {
+                    // promoted or destroyed since, already settled
+                    return true;
                 }
-                assert currentBuffer.data.buffer != null;
-                if (currentBuffer.data.buffer.memoryType().gpuLocal != gpuLocal) {
-                    // wrong kind of memory, freeing this wont help
-                    currentBuffer = currentBuffer.next();
-                    continue;
+                if (!job.isDone()) {
+                    return false;
                 }
-                if (currentBuffer.data.sourceData != null) {
-                    currentBuffer.data.buffer.destroy();
-                    currentBuffer.data.buffer = null;
-                    currentBuffer.data.slice = null;
-                    final var removedBuffer = currentBuffer;
-                    currentBuffer = currentBuffer.next();
-                    liveBuffers.remove(removedBuffer);
-                    allocSize -= removedBuffer.data.size();
-                    anythingFreed = true;
-                } else if (currentBuffer.data.buffer.memoryType().mappable && currentBuffer.data.buffer.memoryType() != HgBuffer.MemoryType.GPU_MAPPABLE) {
-                    // mappable memory, can evict to CPU memory and then follow immediate eviction path
-                    // UMA (iGPUs) will also end up here
-                    // GPU_MAPPABLE is specifically for over-pcie devices, which is extremely slow to read (though you can), so im not doing it in this pass
-                    currentBuffer.data.evictedData = MemoryUtil.nmemAlloc(currentBuffer.data.size());
-                    currentBuffer.data.evictedDataSize = currentBuffer.data.size();
-                    final var ptr = currentBuffer.data.buffer.slice().map();
-                    MemoryUtil.memCopy(ptr.pointer(), currentBuffer.data.evictedData, currentBuffer.data.size());
-                    currentBuffer.data.buffer.slice().unmap();
-                    
-                    currentBuffer.data.buffer.destroy();
-                    currentBuffer.data.buffer = null;
-                    currentBuffer.data.slice = null;
-                    final var removedBuffer = currentBuffer;
-                    currentBuffer = currentBuffer.next();
-                    liveBuffers.remove(removedBuffer);
-                    allocSize -= removedBuffer.data.size();
-                    anythingFreed = true;
-                } else {
-                    currentBuffer = currentBuffer.next();
+                job.buffer.compressionJob = null;
+                if (job.compressed != 0) {
+                    job.buffer.replaceWithCompressedData(job.compressed, job.compressedSize);
                 }
-            }
-            
-            if (allocSize <= 0) {
-                // enough memory freed, attempt the alloc again
                 return true;
+            });
+        }
+        
+        private long shed(MemoryBudget.Location location, long bytes) {
+            return policy.shed(location == MemoryBudget.Location.DEVICE, bytes);
+        }
+        
+        private long memoryPressure(MemoryBudget.Location location, MemoryPressure.Level level, long bytes) {
+            // buffers with constant source data are free to drop, so they go at CRITICAL rather than waiting for an allocation to fail
+            if (level != MemoryPressure.Level.CRITICAL) {
+                criticalShed[location.ordinal()] = false;
+                return 0;
             }
-            if (!gpuLocal || device.hgDevice().UMA()) {
-                // if not trying to free GPU local memory (or UMA), anything we could free has already been freed
-                return anythingFreed;
-            }
-            // anything that could be immediately evicted has been, this is a very shit situation
-            // time to start shuffling buffers out of VRAM
-            
-            while (allocSize > 0) {
-                long currentEmergencyBufferOffset = 0;
-                SpliceableLinkedList<Hg3DGpuBuffer> shufflingBuffers = new SpliceableLinkedList<>();
-                HgCommandBuffer currentCommandBuffer = device.createCommandEncoder().allocateCommandBuffer();
-                
-                for (@Nullable var currentBuffer = liveBuffers.peekFirst(); currentBuffer != null && currentEmergencyBufferOffset < allocSize; ) {
-                    if (currentBuffer.data.usedThisFrame()) {
-                        // buffer too new, SOL
-                        return false;
-                    }
-                    assert currentBuffer.data.buffer != null;
-                    if (currentBuffer.data.buffer.memoryType().gpuLocal != gpuLocal) {
-                        // wrong kind of memory, freeing this wont help
-                        currentBuffer = currentBuffer.next();
-                        continue;
-                    }
-                    if (currentBuffer.data.size() > emergencyEvictionBuffer.size()) {
-                        // buffer is too big, just skip it
-                        currentBuffer = currentBuffer.next();
-                        continue;
-                    }
-                    if (currentEmergencyBufferOffset + currentBuffer.data.size() > emergencyEvictionBuffer.size()) {
-                        // out of space for this pass, submit and try again
-                        break;
-                    }
-                    currentCommandBuffer.copyBufferToBuffer(currentBuffer.data.buffer.slice(), emergencyEvictionBuffer.slice(currentEmergencyBufferOffset, currentBuffer.data.size()));
-                    currentEmergencyBufferOffset += currentBuffer.data.size();
-                    final var removedBuffer = currentBuffer;
-                    currentBuffer = currentBuffer.next();
-                    liveBuffers.remove(removedBuffer);
-                    shufflingBuffers.add(removedBuffer);
-                }
-                
-                if (shufflingBuffers.empty()) {
-                    assert currentEmergencyBufferOffset == 0;
-                    currentCommandBuffer.destroy();
-                    return anythingFreed;
-                }
-                
-                currentCommandBuffer.end();
-                final var queue = device.hgDevice().queue(HgQueue.Type.GRAPHICS);
-                try (final var submit = queue.submit()) {
-                    submit.execute(currentCommandBuffer);
-                }
-                device.hgDevice().waitIdle(); // TODO: use something better than wait idle, this is dangerous w/ multiple threads
-                currentCommandBuffer.destroy();
-                final var ptr = emergencyEvictionBuffer.map();
-                
-                currentEmergencyBufferOffset = 0;
-                for (@Nullable var currentBuffer = shufflingBuffers.peekFirst(); currentBuffer != null; ) {
-                    currentBuffer.data.evictedData = MemoryUtil.nmemAlloc(currentBuffer.data.size());
-                    currentBuffer.data.evictedDataSize = currentBuffer.data.size();
-                    MemoryUtil.memCopy(ptr.pointer() + currentEmergencyBufferOffset, currentBuffer.data.evictedData, currentBuffer.data.size());
-                    currentEmergencyBufferOffset += currentBuffer.data.size();
-                    
-                    assert currentBuffer.data.buffer != null;
-                    currentBuffer.data.buffer.destroy();
-                    currentBuffer.data.buffer = null;
-                    currentBuffer.data.slice = null;
-                    final var removedBuffer = currentBuffer;
-                    currentBuffer = currentBuffer.next();
-                    liveBuffers.remove(removedBuffer);
-                    allocSize -= removedBuffer.data.size();
-                    anythingFreed = true;
-                }
+            // CRITICAL is republished every frame it lasts, shedding each time drops buffers that are just re-uploaded on their next use
+            // so only on the way in, an allocation failing while already CRITICAL goes through allocFailed, which drops the same buffers first
+            if (criticalShed[location.ordinal()]) {
+                return 0;
             }
-            
-            // shuffled enough from the GPU, attempt the alloc again
-            return true;
+            criticalShed[location.ordinal()] = true;
+            return shed(location, bytes);
+        }
+        
+        private boolean allocFailed(boolean gpuLocal, long allocSize) {
+            // may well be fragmentation rather than a lack of memory, get the next defragmentation going sooner
+            allocFailedSinceDefragmentation = true;
+            return policy.allocFailed(gpuLocal, allocSize);
         }
         
         private void promoteImmediate(Hg3DGpuBuffer buffer) {
             // buffer is about to be used, and doesn't have any backing HgBuffer.Slice
             // it needs something to work with _immediately_
             
+            // fresh memory has no queue family owner, so the transfer queue can write it without a release from the graphics queue
+            final var freshMemory = buffer.slice == null;
             if (buffer.slice == null) {
-                buffer.buffer = device.hgDevice().tryCreateBuffer(buffer.requestedMemory, buffer.size(), Hg3DConst.bufferUsageBits(buffer.usage()));
+                buffer.buffer = device.hgDevice().tryCreateBuffer(buffer.requestedMemory, buffer.size(), Hg3DConst.bufferUsageBits(buffer.usage()), MemoryBudget.Category.BUFFERS);
                 if (buffer.buffer == null) {
-                    buffer.buffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, buffer.size(), Hg3DConst.bufferUsageBits(buffer.usage()));
+                    buffer.buffer = device.hgDevice().createBuffer(HgBuffer.MemoryRequest.CPU, buffer.size(), Hg3DConst.bufferUsageBits(buffer.usage()), MemoryBudget.Category.BUFFERS);
                 }
                 buffer.buffer.setName(buffer.label);
                 buffer.slice = buffer.buffer.slice();
@@ -413,10 +642,13 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
             }
             
             used(buffer);
+            // evicted data must be stable before its read, compressed or not
+            buffer.settleCompression();
             
             if (buffer.evictedData != 0 || buffer.sourceData != null || buffer.immediateUpload != null) {
+                final var fromEvictedData = buffer.immediateUpload == null && buffer.evictedData != 0;
                 final var toUploadAddr = buffer.immediateUpload != null ? MemoryUtil.memAddress(buffer.immediateUpload) : buffer.evictedData == 0 ? MemoryUtil.memAddress(buffer.sourceData) : buffer.evictedData;
-                final var toUploadSize = buffer.immediateUpload != null ? buffer.immediateUpload.remaining() : buffer.evictedData == 0 ? buffer.sourceData.remaining() : buffer.evictedDataSize;
+                final var toUploadSize = buffer.immediateUpload != null ? buffer.immediateUpload.remaining() : buffer.evictedData == 0 ? buffer.sourceData.remaining() : buffer.evictedDataRawSize;
                 if (toUploadSize == 0) {
                     throw new IllegalStateException(
                             buffer.immediateUpload + ", " + (buffer.immediateUpload != null ? buffer.immediateUpload.remaining() : -1) + ", " +
@@ -429,189 +661,308 @@ public class Hg3DGpuBuffer extends GpuBuffer implements Hg3DObject, Destroyable
                     final var bufferPtr = buffer.slice.map();
                     assert bufferPtr.pointer() != 0;
                     assert toUploadAddr != 0;
-                    MemoryUtil.memCopy(toUploadAddr, bufferPtr.pointer(), toUploadSize);
+                    if (fromEvictedData) {
+                        buffer.readEvictedData(bufferPtr.pointer());
+                    } else {
+                        MemoryUtil.memCopy(toUploadAddr, bufferPtr.pointer(), toUploadSize);
+                    }
                     buffer.slice.unmap();
+                } else if (freshMemory && buffer.requestedMemory == HgBuffer.MemoryRequest.GPU && toUploadSize == buffer.size() && device.createCommandEncoder().canUploadOnTransferQueue(toUploadSize)) {
+                    // acquired by the graphics queue on the buffer's first use
+                    device.createCommandEncoder().uploadOnTransferQueue(buffer, buffer.slice, toUploadSize, ptr -> {
+                        if (fromEvictedData) {
+                            buffer.readEvictedData(ptr);
+                        } else {
+                            MemoryUtil.memCopy(toUploadAddr, ptr, toUploadSize);
+                        }
+                    });
                 } else {
                     // non-mappable, need a  staging buffer
                     final var tempBuffer = device.createCommandEncoder().uploadBufferSlice(toUploadSize);
                     final var ptr = tempBuffer.map();
                     assert ptr.pointer() != 0;
                     assert toUploadAddr != 0;
-                    MemoryUtil.memCopy(toUploadAddr, ptr.pointer(), ptr.size());
-                    tempBuffer.unmap();
-                    
-                    if (promotionCommandBuffer == null) {
-                        device.createCommandEncoder().addFlushCallback(this::endPromotionCommandBuffer);
-                        promotionCommandBuffer = device.createCommandEncoder().allocateCommandBuffer();
-                        promotionCommandBuffer.setName("Promotion command buffer");
-                        promotionCommandBuffer.pushDebugGroup("Buffer Promotions");
-                        promotionCommandBuffer.barrier();
+                    if (fromEvictedData) {
+                        // decompresses straight into the staging buffer
+                        buffer.readEvictedData(ptr.pointer());
+                    } else {
+                        MemoryUtil.memCopy(toUploadAddr, ptr.pointer(), ptr.size());
                     }
+                    tempBuffer.unmap();
                     
-                    promotionCommandBuffer.copyBufferToBuffer(tempBuffer, buffer.slice);
+                    promotionCommandBuffer().copyBufferToBuffer(tempBuffer, buffer.slice);
                 }
-                MemoryUtil.nmemFree(buffer.evictedData);
-                buffer.evictedData = 0;
-                buffer.evictedDataSize = 0;
+                buffer.freeEvictedData();
                 buffer.immediateUpload = null;
             }
         }
         
         private void promoteToDevice(Hg3DGpuBuffer buffer) {
-            if (lastPromotionFailedFrame == device.currentFrame()) {
-                // if another promotion failed this frame, just skip an attempt this frame
-                // the demotion step will make room, if it can
-                return;
+            policy.promoteToDevice(buffer);
+        }
+        
+        private void autoDemote() {
+            policy.autoDemote();
+            if (demotionCommandBuffer != null) {
+                demotionCommandBuffer.barrier();
+                demotionCommandBuffer.popDebugGroup();
+                demotionCommandBuffer.end();
+                device.createCommandEncoder().insertCommandBufferFirst(demotionCommandBuffer);
+                demotionCommandBuffer = null;
+            }
+        }
+        
+        // device memory this frame's demotions will release, the device's stats won't show it until the old buffers are destroyed
+        long deviceBytesDemotedThisFrame() {
+            return policy.deviceBytesDemoted();
+        }
+        
+        private HgCommandBuffer demotionCommandBuffer() {
+            if (demotionCommandBuffer == null) {
+                demotionCommandBuffer = device.createCommandEncoder().allocateCommandBuffer();
+                demotionCommandBuffer.setName("Demotion command buffer");
+                demotionCommandBuffer.pushDebugGroup("Buffer Demotions");
+                demotionCommandBuffer.barrier();
+            }
+            return demotionCommandBuffer;
+        }
+        
+        // carries out ResidencyPolicy's decisions on the device
+        private final class PolicyBackend implements ResidencyPolicy.Backend<Hg3DGpuBuffer> {
+            @Override
+            public SpliceableLinkedList.Node<Hg3DGpuBuffer> usageListNode(Hg3DGpuBuffer buffer) {
+                return buffer.usageListNode;
             }
             
-            assert buffer.buffer != null;
-            final var oldBuffer = buffer.buffer;
-            assert buffer.slice != null;
-            final var oldSlice = buffer.slice;
+            @Override
+            public long size(Hg3DGpuBuffer buffer) {
+                return buffer.size();
+            }
             
-            @Nullable
-            final var newBuffer = device.hgDevice().tryCreateBuffer(HgBuffer.MemoryRequest.GPU, buffer.size(), Hg3DConst.bufferUsageBits(buffer.usage()));
-            if (newBuffer == null) {
-                // alloc failed, this is ok, the auto-demote process should make room next frame
-                // skip any other device promotions this frame though, we are out of room
-                lastPromotionFailedFrame = device.currentFrame();
-                return;
+            @Override
+            public long currentFrame() {
+                return device.currentFrame();
             }
-            assert newBuffer.memoryType().gpuLocal;
-            newBuffer.setName(buffer.label);
-            buffer.buffer = newBuffer;
-            buffer.slice = newBuffer.slice();
-            buffer.memoryType = buffer.slice.buffer().memoryType();
             
-            device.destroyEndOfFrame(oldBuffer);
-            if (promotionCommandBuffer == null) {
-                device.createCommandEncoder().addFlushCallback(this::endPromotionCommandBuffer);
-                promotionCommandBuffer = device.createCommandEncoder().allocateCommandBuffer();
-                promotionCommandBuffer.setName("Promotion command buffer");
-                promotionCommandBuffer.pushDebugGroup("Buffer Promotions");
-                promotionCommandBuffer.barrier();
+            @Override
+            public boolean isInFlight(Hg3DGpuBuffer buffer) {
+                return buffer.isInFlight();
             }
-            promotionCommandBuffer.copyBufferToBuffer(oldSlice, buffer.slice);
-        }
-        
-        private void autoDemote() {
-            {
-                @Nullable
-                final var first = liveBuffers.peekFirst();
-                if (first != null && first.data.isInFlight()) {
-                    // everything live is in-flight, can't purge anything from VK
-                    return;
-                }
+            
+            @Override
+            public boolean usedThisFrame(Hg3DGpuBuffer buffer) {
+                return buffer.usedThisFrame();
             }
             
-            final var commandEncoder = device.createCommandEncoder();
-            final var commandBuffer = commandEncoder.allocateCommandBuffer();
-            commandBuffer.setName("Demotion command buffer");
-            commandBuffer.pushDebugGroup("Buffer Demotions");
-            commandBuffer.barrier();
-            boolean anyCommandRecorded = false;
+            @Override
+            public HgBuffer.MemoryType memoryType(Hg3DGpuBuffer buffer) {
+                assert buffer.buffer != null;
+                return buffer.buffer.memoryType();
+            }
             
-            // stage 1, demote any not in-flight mappable memory above 87.5% (7/8ths) of VMA's budget to system memory
-            {
-                final var memoryStats = device.hgDevice().hostLocalMemoryStats();
-                final var targetUsage = ((memoryStats.rightLong() >> 3) * 8);
-                long currentUsage = memoryStats.leftLong();
-                for (
-                        @Nullable var currentNode = liveBuffers.peekFirst();
-                        currentUsage > targetUsage && currentNode != null && !currentNode.data.isInFlight();
-                ) {
-                    final var currentBuffer = currentNode.data;
-                    assert currentBuffer.buffer != null;
-                    assert currentBuffer.memoryType != null;
-                    if (!currentBuffer.memoryType.cpuLocal) {
-                        currentNode = currentNode.next();
-                        continue;
-                    }
-                    assert currentBuffer.memoryType.mappable;
-                    if (currentBuffer.isInFlight()) {
-                        // out of old buffers
-                        break;
-                    }
-                    if (currentBuffer.canEvictImmediate()) {
-                        // easy route, just evict it
-                        // this buffer can re-upload itself when it gets used next
-                        currentBuffer.buffer.destroy();
-                        currentBuffer.buffer = null;
-                        currentBuffer.slice = null;
-                        final var toRemove = currentNode;
-                        currentNode = currentNode.next();
-                        liveBuffers.remove(toRemove);
-                    } else {
-                        // must shuffle this to system memory
-                        // mappable memory, can evict to CPU memory and then follow immediate eviction path
-                        // UMA (iGPUs) will also end up here
-                        currentBuffer.evictedData = MemoryUtil.nmemAlloc(currentBuffer.size());
-                        currentBuffer.evictedDataSize = currentBuffer.size();
-                        final var ptr = currentBuffer.buffer.slice().map();
-                        MemoryUtil.memCopy(ptr.pointer(), currentBuffer.evictedData, currentBuffer.size());
-                        currentBuffer.buffer.slice().unmap();
-                        
-                        currentBuffer.buffer.destroy();
-                        currentBuffer.buffer = null;
-                        currentBuffer.slice = null;
-                        final var toRemove = currentNode;
-                        currentNode = currentNode.next();
-                        liveBuffers.remove(toRemove);
-                    }
+            @Override
+            public boolean hasSourceData(Hg3DGpuBuffer buffer) {
+                return buffer.sourceData != null;
+            }
+            
+            @Override
+            public boolean UMA() {
+                return device.hgDevice().UMA();
+            }
+            
+            @Override
+            public LongLongPair hostLocalMemoryStats() {
+                return device.hgDevice().hostLocalMemoryStats();
+            }
+            
+            @Override
+            public LongLongPair deviceLocalMemoryStats() {
+                return device.hgDevice().deviceLocalMemoryStats();
+            }
+            
+            @Override
+            public void drop(Hg3DGpuBuffer buffer) {
+                assert buffer.buffer != null;
+                buffer.buffer.destroy();
+                buffer.buffer = null;
+                buffer.slice = null;
+            }
+            
+            @Override
+            public void evictToHost(Hg3DGpuBuffer buffer) {
+                assert buffer.buffer != null;
+                buffer.allocateEvictedData(buffer.size());
+                final var ptr = buffer.buffer.slice().map();
+                MemoryUtil.memCopy(ptr.pointer(), buffer.evictedData, buffer.size());
+                queueCompression(buffer);
+                buffer.buffer.slice().unmap();
+                drop(buffer);
+            }
+            
+            @Override
+            public void stall() {
+                device.hgDevice().waitIdle(); // TODO: use something better than wait idle, this is dangerous w/ multiple threads
+            }
+            
+            @Override
+            public long shuffleCapacity() {
+                return emergencyEvictionBuffer.size();
+            }
+            
+            @Override
+            public void shuffleToHost(ReferenceArrayList<Hg3DGpuBuffer> buffers) {
+                final var commandBuffer = device.createCommandEncoder().allocateCommandBuffer();
+                long offset = 0;
+                for (int i = 0; i < buffers.size(); i++) {
+                    final var buffer = buffers.get(i);
+                    assert buffer.buffer != null;
+                    commandBuffer.copyBufferToBuffer(buffer.buffer.slice(), emergencyEvictionBuffer.slice(offset, buffer.size()));
+                    offset += buffer.size();
+                }
+                commandBuffer.end();
+                final var queue = device.hgDevice().queue(HgQueue.Type.GRAPHICS);
+                try (final var submit = queue.submit()) {
+                    submit.execute(commandBuffer);
+                }
+                stall();
+                commandBuffer.destroy();
+                
+                final var ptr = emergencyEvictionBuffer.map();
+                offset = 0;
+                for (int i = 0; i < buffers.size(); i++) {
+                    final var buffer = buffers.get(i);
+                    buffer.allocateEvictedData(buffer.size());
+                    MemoryUtil.memCopy(ptr.pointer() + offset, buffer.evictedData, buffer.size());
+                    queueCompression(buffer);
+                    offset += buffer.size();
+                    drop(buffer);
                 }
             }
             
-            // stage 2, demote anything not in-flight device-local above 93.75% (15/16ths) of VMA's budget to cpu-local memory
-            {
-                final var memoryStats = device.hgDevice().deviceLocalMemoryStats();
-                final var targetUsage = ((memoryStats.rightLong() >> 4) * 15);
-                long currentUsage = memoryStats.leftLong();
-                for (
-                        @Nullable var currentNode = liveBuffers.peekFirst();
-                        currentUsage > targetUsage && currentNode != null && !currentNode.data.isInFlight();
-                ) {
-                    final var currentBuffer = currentNode.data;
-                    assert currentBuffer.memoryType != null;
-                    if (!currentBuffer.memoryType.gpuLocal) {
-                        currentNode = currentNode.next();
-                        continue;
-                    }
-                    
-                    @Nullable
-                    final var newBuffer = device.hgDevice().tryCreateBuffer(HgBuffer.MemoryRequest.CPU, currentBuffer.size(), Hg3DConst.bufferUsageBits(currentBuffer.usage()));
-                    if (newBuffer == null) {
-                        // alloc failed, next demotion cycle(s) should free enough to demote this buffer
-                        break;
-                    }
-                    assert !newBuffer.memoryType().gpuLocal;
-                    assert newBuffer.memoryType().mappable;
-                    assert currentBuffer.buffer != null;
-                    device.destroyEndOfFrame(currentBuffer.buffer);
-                    commandBuffer.copyBufferToBuffer(currentBuffer.buffer.slice(), newBuffer.slice());
-                    anyCommandRecorded = true;
-                    newBuffer.setName(currentBuffer.label);
-                    currentBuffer.buffer = newBuffer;
-                    currentBuffer.slice = newBuffer.slice();
-                    currentBuffer.memoryType = currentBuffer.slice.buffer().memoryType();
-                    currentNode = currentNode.next();
-                    // for demotion process, consider it used
-                    used(currentBuffer);
-                    currentUsage -= currentBuffer.size();
+            @Override
+            public boolean demoteToHost(Hg3DGpuBuffer buffer) {
+                @Nullable
+                final var newBuffer = device.hgDevice().tryCreateBuffer(HgBuffer.MemoryRequest.CPU, buffer.size(), Hg3DConst.bufferUsageBits(buffer.usage()), MemoryBudget.Category.BUFFERS);
+                if (newBuffer == null) {
+                    return false;
                 }
+                assert !newBuffer.memoryType().gpuLocal;
+                assert newBuffer.memoryType().mappable;
+                assert buffer.buffer != null;
+                device.destroyEndOfFrame(buffer.buffer);
+                demotionCommandBuffer().copyBufferToBuffer(buffer.buffer.slice(), newBuffer.slice());
+                newBuffer.setName(buffer.label);
+                buffer.buffer = newBuffer;
+                buffer.slice = newBuffer.slice();
+                buffer.memoryType = buffer.slice.buffer().memoryType();
+                return true;
             }
             
-            commandBuffer.barrier();
-            commandBuffer.popDebugGroup();
-            commandBuffer.end();
-            if (anyCommandRecorded) {
-                commandEncoder.insertCommandBufferFirst(commandBuffer);
-            } else {
-                commandBuffer.destroy();
+            @Override
+            public boolean promoteToDevice(Hg3DGpuBuffer buffer) {
+                assert buffer.buffer != null;
+                final var oldBuffer = buffer.buffer;
+                assert buffer.slice != null;
+                final var oldSlice = buffer.slice;
+                
+                @Nullable
+                final var newBuffer = device.hgDevice().tryCreateBuffer(HgBuffer.MemoryRequest.GPU, buffer.size(), Hg3DConst.bufferUsageBits(buffer.usage()), MemoryBudget.Category.BUFFERS);
+                if (newBuffer == null) {
+                    return false;
+                }
+                assert newBuffer.memoryType().gpuLocal;
+                newBuffer.setName(buffer.label);
+                buffer.buffer = newBuffer;
+                buffer.slice = newBuffer.slice();
+                buffer.memoryType = buffer.slice.buffer().memoryType();
+                
+                device.destroyEndOfFrame(oldBuffer);
+                promotionCommandBuffer().copyBufferToBuffer(oldSlice, buffer.slice);
+                return true;
             }
         }
         
+        private void defragment() {
+            if (!DEFRAGMENTATION || device.hgDevice().UMA()) {
+                return;
+            }
+            final var currentFrame = device.currentFrame();
+            if (defragmentationPassFrame != -1) {
+                assert defragmentation != null;
+                if (currentFrame - defragmentationPassFrame <= MagicNumbers.MaximumFramesInFlight) {
+                    // copies may still be executing, VMA frees the old memory when the pass ends
+                    return;
+                }
+                defragmentationPassFrame = -1;
+                if (defragmentation.endPass()) {
+                    finishDefragmentation();
+                    return;
+                }
+            }
+            if (defragmentation == null && !allocFailedSinceDefragmentation && currentFrame - lastDefragmentationFrame < DEFRAGMENTATION_INTERVAL) {
+                return;
+            }
+            if (policy.promotionFailedThisFrame()) {
+                // promotions get the memory first
+                return;
+            }
+            // moves allocate their new location before the old one is freed, a pass can't be allowed to push memory over the demotion threshold
+            final var memoryStats = device.hgDevice().deviceLocalMemoryStats();
+            if (memoryStats.leftLong() + DEFRAGMENTATION_PASS_BYTES > ResidencyPolicy.deviceTargetUsage(memoryStats.rightLong())) {
+                return;
+            }
+            if (defragmentation == null) {
+                defragmentation = device.hgDevice().beginDefragmentation(DEFRAGMENTATION_PASS_BYTES, DEFRAGMENTATION_PASS_BUFFERS);
+                allocFailedSinceDefragmentation = false;
+            }
+            
+            // only buffers that aren't in flight, so nothing already recorded can touch the old location
+            for (@Nullable var currentNode = policy.leastRecentlyUsed(); currentNode != null && !currentNode.data.isInFlight(); currentNode = currentNode.next()) {
+                final var currentBuffer = currentNode.data;
+                if (currentBuffer.buffer != null && currentBuffer.memoryType == HgBuffer.MemoryType.GPU) {
+                    relocatableBuffers.put(currentBuffer.buffer, currentBuffer);
+                }
+            }
+            if (relocatableBuffers.isEmpty()) {
+                return;
+            }
+            final var moved = defragmentation.beginPass(promotionCommandBuffer(), relocator);
+            relocatableBuffers.clear();
+            if (moved == -1) {
+                finishDefragmentation();
+                return;
+            }
+            defragmentationPassFrame = currentFrame;
+        }
+        
+        private boolean relocate(HgBuffer from, HgBuffer to) {
+            @Nullable
+            final var buffer = relocatableBuffers.get(from);
+            if (buffer == null) {
+                return false;
+            }
+            to.setName(buffer.label);
+            buffer.buffer = to;
+            buffer.slice = to.slice();
+            assert buffer.memoryType == to.memoryType();
+            device.destroyEndOfFrame(from);
+            return true;
+        }
+        
+        private void finishDefragmentation() {
+            assert defragmentation != null;
+            defragmentation.destroy();
+            defragmentation = null;
+            lastDefragmentationFrame = device.currentFrame();
+        }
+        
         public void endOfFrame() {
+            if (ResidencyTrace.ENABLED) {
+                ResidencyTrace.frame();
+            }
+            swapInCompressedData();
             autoDemote();
+            defragment();
         }
     }
 }
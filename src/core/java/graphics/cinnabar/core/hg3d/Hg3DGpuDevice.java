@@ -11,9 +11,14 @@ import com.mojang.blaze3d.systems.GpuDevice;
 import com.mojang.blaze3d.textures.*;
 import graphics.cinnabar.api.hg.*;
 import graphics.cinnabar.api.hg.enums.HgFormat;
+import graphics.cinnabar.api.memory.MemoryBudget;
+import graphics.cinnabar.api.memory.MemoryPressure;
 import graphics.cinnabar.api.util.Destroyable;
+import graphics.cinnabar.core.profiling.ProfilingEvictedDataPlots;
+import graphics.cinnabar.core.profiling.ProfilingQueuePlots;
 import graphics.cinnabar.core.util.MagicNumbers;
 import graphics.cinnabar.lib.CinnabarLibBootstrapper;
+import graphics.cinnabar.lib.threading.QueueSystem;
 import graphics.cinnabar.lib.threading.WorkQueue;
 import it.unimi.dsi.fastutil.ints.Int2ReferenceMap;
 import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
@@ -49,7 +54,11 @@ import com.mojang.jtracy.TracyClient;
 import graphics.cinnabar.api.c3d.C3DGpuDevice;
 import graphics.cinnabar.api.hg.*;
 import graphics.cinnabar.api.hg.enums.HgFormat;
+import graphics.cinnabar.api.memory.MemoryBudget;
+import graphics.cinnabar.api.memory.MemoryPressure;
 import graphics.cinnabar.api.util.Destroyable;
+import graphics.cinnabar.core.profiling.ProfilingEvictedDataPlots;
+import graphics.cinnabar.core.profiling.ProfilingQueuePlots;
 import graphics.cinnabar.core.util.MagicNumbers;
 import graphics.cinnabar.lib.CinnabarLibBootstrapper;
 import graphics.cinnabar.lib.threading.QueueSystem;
@@ -93,7 +102,12 @@ public class Hg3DGpuDevice implements C3DGpuDevice {
     private long currentFrame = MagicNumbers.MaximumFramesInFlight;
     private final ReferenceArrayList<ReferenceArrayList<Destroyable>> pendingDestroys = new ReferenceArrayList<>();
     private ReferenceArrayList<Destroyable> activelyDestroying = new ReferenceArrayList<>();
+    // destroyEndOfFrameAsync is gathered for the whole frame, then retired as a single batch on AFTER_END_OF_GPU_FRAME
+    // guarded by spareAsyncDestroyBuckets
+    private ReferenceArrayList<Destroyable> asyncDestroys = new ReferenceArrayList<>();
+    private final ReferenceArrayList<ReferenceArrayList<Destroyable>> spareAsyncDestroyBuckets = new ReferenceArrayList<>();
     private final Hg3DGpuBuffer.Manager bufferManager;
+    private final Hg3DGpuTexture.Manager textureManager;
     
     public Hg3DGpuDevice(ShaderSource shaderSourceProvider, GpuDebugOptions debugOptions, HgDevice.CreateInfo createInfo) {
         CinnabarLibBootstrapper.bootstrap();
@@ -107,6 +121,7 @@ public class Hg3DGpuDevice implements C3DGpuDevice {
         hgDevice = Hg.createDevice(createInfo);
         commandEncoder = new Hg3DCommandEncoder(this);
         bufferManager = new Hg3DGpuBuffer.Manager(this);
+        textureManager = new Hg3DGpuTexture.Manager(this);
         interFrameSemaphore = hgDevice.createSemaphore(0);
         cleanupDoneSemaphore = hgDevice.createSemaphore(0);
         WorkQueue.AFTER_END_OF_GPU_FRAME.wait(interFrameSemaphore, currentFrame);
@@ -123,6 +138,7 @@ public class Hg3DGpuDevice implements C3DGpuDevice {
         // fake the GPU being done with work
         interFrameSemaphore.singlaValue(currentFrame);
         // wait for the cleanup thread to process the release of the semaphore
+        flushAsyncDestroys();
         WorkQueue.AFTER_END_OF_GPU_FRAME.signal(interFrameSemaphore, currentFrame + 1);
         interFrameSemaphore.waitValue(currentFrame + 1, -1L);
         interFrameSemaphore.destroy();
@@ -131,8 +147,8 @@ public class Hg3DGpuDevice implements C3DGpuDevice {
         while(cleanSweepDestroy < pendingDestroys.size()) {
             cleanSweepDestroy++;
             activelyDestroying = pendingDestroys.set((int) (currentFrame % MagicNumbers.MaximumFramesInFlight), activelyDestroying);
-            for (int i = 0; i < activelyDestroying.size(); i++) {
-                activelyDestroying.get(i).destroy();
+            if (!activelyDestroying.isEmpty()) {
+                hgDevice.destroyAll(activelyDestroying);
                 cleanSweepDestroy = 0;
             }
             activelyDestroying.clear();
@@ -143,6 +159,7 @@ public class Hg3DGpuDevice implements C3DGpuDevice {
         
         clearPipelineCache();
         bufferManager.destroy();
+        textureManager.destroy();
         commandEncoder.destroy();
         swapchain.destroy();
         surface.destroy();
@@ -158,26 +175,48 @@ public class Hg3DGpuDevice implements C3DGpuDevice {
         return currentFrame;
     }
     
+    Hg3DGpuBuffer.Manager bufferManager() {
+        return bufferManager;
+    }
+    
+    Hg3DGpuTexture.Manager textureManager() {
+        return textureManager;
+    }
+    
     public void endFrame() {
         try (final var _ = TracyClient.beginZone("Hg3DGpuDevice.endFrame", false)) {
             bufferManager.endOfFrame();
+            textureManager.endOfFrame();
+            MemoryBudget.shedOverLimit();
+            if (!hgDevice.UMA()) {
+                // on UMA both would be the same heap
+                final var hostStats = hgDevice.hostLocalMemoryStats();
+                MemoryPressure.update(MemoryBudget.Location.HOST, hostStats.leftLong(), hostStats.rightLong());
+            }
+            final var deviceStats = hgDevice.deviceLocalMemoryStats();
+            MemoryPressure.update(MemoryBudget.Location.DEVICE, deviceStats.leftLong(), deviceStats.rightLong());
+            flushAsyncDestroys();
             WorkQueue.AFTER_END_OF_GPU_FRAME.signal(cleanupDoneSemaphore, currentFrame);
             commandEncoder.insertQueueItem(HgQueue.Item.signal(interFrameSemaphore, currentFrame, VK_PIPELINE_STAGE_ALL_COMMANDS_BIT));
             commandEncoder.flush();
             hgDevice.markFame();
             
             currentFrame++;
+            QueueSystem.onFrameStart();
             
             WorkQueue.AFTER_END_OF_GPU_FRAME.wait(interFrameSemaphore, currentFrame);
             // wait for the cleanup of the last time this frame index was submitted
             // the semaphore starts at MaximumFramesInFlight, so this returns immediately for the first few frames
-            cleanupDoneSemaphore.waitValue(currentFrame - MagicNumbers.MaximumFramesInFlight, -1L);
+            // the main thread helps with short background work while waiting, rather than sleeping in the driver
+            QueueSystem.waitValueHelping(cleanupDoneSemaphore, currentFrame - MagicNumbers.MaximumFramesInFlight);
             activelyDestroying = pendingDestroys.set((int) (currentFrame % MagicNumbers.MaximumFramesInFlight), activelyDestroying);
-            for (int i = 0; i < activelyDestroying.size(); i++) {
-                activelyDestroying.get(i).destroy();
-            }
+            hgDevice.destroyAll(activelyDestroying);
             activelyDestroying.clear();
             commandEncoder.resetUploadBuffer();
+            
+            QueueSystem.sampleTelemetry();
+            ProfilingQueuePlots.update();
+            ProfilingEvictedDataPlots.update();
         }
     }
     
@@ -342,7 +381,27 @@ public class Hg3DGpuDevice implements C3DGpuDevice {
     }
     
     public void destroyEndOfFrameAsync(Destroyable destroyable) {
-        WorkQueue.AFTER_END_OF_GPU_FRAME.enqueue(destroyable);
+        synchronized (spareAsyncDestroyBuckets) {
+            asyncDestroys.add(destroyable);
+        }
+    }
+    
+    private void flushAsyncDestroys() {
+        final ReferenceArrayList<Destroyable> bucket;
+        synchronized (spareAsyncDestroyBuckets) {
+            if (asyncDestroys.isEmpty()) {
+                return;
+            }
+            bucket = asyncDestroys;
+            asyncDestroys = spareAsyncDestroyBuckets.isEmpty() ? new ReferenceArrayList<>() : spareAsyncDestroyBuckets.pop();
+        }
+        WorkQueue.AFTER_END_OF_GPU_FRAME.enqueue(_ -> {
+            hgDevice.destroyAll(bucket);
+            bucket.clear();
+            synchronized (spareAsyncDestroyBuckets) {
+                spareAsyncDestroyBuckets.push(bucket);
+            }
+        });
     }
     
     public void destroyEndOfFrame(List<? extends Destroyable> destroyable) {
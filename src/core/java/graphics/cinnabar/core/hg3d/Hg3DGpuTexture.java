@@ -2,22 +2,53 @@ package graphics.cinnabar.core.hg3d;
 
 import com.mojang.blaze3d.textures.GpuTexture;
 import com.mojang.blaze3d.textures.TextureFormat;
+import graphics.cinnabar.api.hg.HgCommandBuffer;
 import graphics.cinnabar.api.hg.HgImage;
+import graphics.cinnabar.api.memory.MemoryBudget;
+import graphics.cinnabar.api.memory.MemoryPressure;
+import graphics.cinnabar.api.util.Destroyable;
+import graphics.cinnabar.core.residency.ResidencyPolicy;
+import graphics.cinnabar.core.util.MagicNumbers;
+import graphics.cinnabar.lib.datastructures.SpliceableLinkedList;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+import org.joml.Vector3i;
+
+import java.util.List;
 
 import static org.lwjgl.vulkan.VK10.VK_IMAGE_CREATE_CUBE_COMPATIBLE_BIT;
+import static org.lwjgl.vulkan.VK10.VK_IMAGE_USAGE_TRANSFER_SRC_BIT;
 
 public class Hg3DGpuTexture extends GpuTexture implements Hg3DObject {
+    
+    private static final boolean TEXTURE_RESIDENCY = Boolean.getBoolean("cinnabar.textureResidency");
+    
     private final Hg3DGpuDevice device;
-    private final HgImage image;
+    private final long usageBits;
+    private final int flags;
+    private HgImage image;
     private boolean closed = false;
-    private int liveViews = 0;
+    private final ReferenceArrayList<Hg3DGpuTextureView> liveViews = new ReferenceArrayList<>();
+    // only set for textures the manager may demote
+    @Nullable
+    private final Manager manager;
+    private final SpliceableLinkedList.Node<Hg3DGpuTexture> usageListNode = new SpliceableLinkedList.Node<>(this);
+    private long lastUsedFrame = -1;
     
     public Hg3DGpuTexture(Hg3DGpuDevice device, int usage, String label, TextureFormat format, int width, int height, int depthOrLayers, int mipLevels) {
         super(usage, label, format, width, height, depthOrLayers, mipLevels);
         this.device = device;
-        final var flags = (usage & GpuTexture.USAGE_CUBEMAP_COMPATIBLE) != 0 ? VK_IMAGE_CREATE_CUBE_COMPATIBLE_BIT : 0;
-        image = device.hgDevice().createImage(HgImage.Type.TYPE_2D, Hg3DConst.format(format), width, height, 1, depthOrLayers, mipLevels, Hg3DConst.textureUsageBits(usage, format.hasColorAspect()), flags, false);
-        image.setName(label);
+        manager = device.textureManager().manages(usage) ? device.textureManager() : null;
+        flags = (usage & GpuTexture.USAGE_CUBEMAP_COMPATIBLE) != 0 ? VK_IMAGE_CREATE_CUBE_COMPATIBLE_BIT : 0;
+        // demotion copies out of the image
+        usageBits = Hg3DConst.textureUsageBits(usage, format.hasColorAspect()) | (manager != null ? VK_IMAGE_USAGE_TRANSFER_SRC_BIT : 0);
+        image = createImage(false);
+    }
+    
+    private HgImage createImage(boolean hostMemory) {
+        final var newImage = device.hgDevice().createImage(HgImage.Type.TYPE_2D, Hg3DConst.format(getFormat()), getWidth(0), getHeight(0), 1, getDepthOrLayers(), getMipLevels(), usageBits, flags, hostMemory, MemoryBudget.Category.TEXTURES);
+        newImage.setName(getLabel());
+        return newImage;
     }
     
     @Override
@@ -31,12 +62,19 @@ public class Hg3DGpuTexture extends GpuTexture implements Hg3DObject {
             return;
         }
         closed = true;
-        if (liveViews == 0) {
+        if (manager != null) {
+            manager.destroy(this);
+        }
+        if (liveViews.isEmpty()) {
             device.destroyEndOfFrameAsync(image);
         }
     }
     
     public HgImage image() {
+        if (manager != null && !closed && lastUsedFrame != device.currentFrame()) {
+            // promoted before anything this frame is recorded against it
+            manager.used(this);
+        }
         return image;
     }
     
@@ -45,15 +83,165 @@ public class Hg3DGpuTexture extends GpuTexture implements Hg3DObject {
         return device;
     }
     
-    public void addView() {
-        liveViews++;
+    public void addView(Hg3DGpuTextureView view) {
+        liveViews.add(view);
     }
     
-    public void removeView() {
-        liveViews--;
-        assert liveViews >= 0;
-        if (closed && liveViews == 0) {
+    public void removeView(Hg3DGpuTextureView view) {
+        final var removed = liveViews.remove(view);
+        assert removed;
+        if (closed && liveViews.isEmpty()) {
             device.destroyEndOfFrameAsync(image);
         }
     }
+    
+    private boolean isInFlight() {
+        return device.currentFrame() - lastUsedFrame <= MagicNumbers.MaximumFramesInFlight || closed;
+    }
+    
+    private void replaceImage(HgImage newImage, HgCommandBuffer commandBuffer) {
+        final var oldImage = image;
+        commandBuffer.initImages(List.of(newImage));
+        commandBuffer.barrier();
+        for (int i = 0; i < getMipLevels(); i++) {
+            final var extent = new Vector3i(getWidth(i), getHeight(i), 1);
+            commandBuffer.copyImageToImage(oldImage.transferRange(new Vector3i(), extent, 0, getDepthOrLayers(), i), newImage.transferRange(new Vector3i(), extent, 0, getDepthOrLayers(), i));
+        }
+        commandBuffer.barrier();
+        image = newImage;
+        for (int i = 0; i < liveViews.size(); i++) {
+            liveViews.get(i).imageReplaced(newImage);
+        }
+        // after the views made from it
+        device.destroyEndOfFrame(oldImage);
+    }
+    
+    // LRU residency for sampled textures, enabled with -Dcinnabar.textureResidency=true
+    // render targets stay where they are, so do UMA devices where host and device memory are the same heap
+    // demoted textures are still sampled from host memory, slower but correct, and come back to device memory the next frame they're used with room for them
+    public static class Manager implements Destroyable {
+        private final Hg3DGpuDevice device;
+        private final SpliceableLinkedList<Hg3DGpuTexture> liveTextures = new SpliceableLinkedList<>();
+        private long lastPromotionFailedFrame = 0;
+        // device usage CRITICAL pressure asked to get down to, demoted towards at the end of the frame
+        private long pressureTargetUsage = Long.MAX_VALUE;
+        private final MemoryPressure.Listener pressureListener = this::memoryPressure;
+        
+        public Manager(Hg3DGpuDevice device) {
+            this.device = device;
+            if (TEXTURE_RESIDENCY) {
+                MemoryPressure.registerListener(pressureListener);
+            }
+        }
+        
+        @Override
+        public void destroy() {
+            if (TEXTURE_RESIDENCY) {
+                MemoryPressure.unregisterListener(pressureListener);
+            }
+        }
+        
+        boolean manages(int usage) {
+            return TEXTURE_RESIDENCY && !device.hgDevice().UMA() && (usage & GpuTexture.USAGE_RENDER_ATTACHMENT) == 0 && (usage & GpuTexture.USAGE_TEXTURE_BINDING) != 0;
+        }
+        
+        void destroy(Hg3DGpuTexture texture) {
+            if (texture.usageListNode.linked()) {
+                liveTextures.remove(texture.usageListNode);
+            }
+        }
+        
+        void used(Hg3DGpuTexture texture) {
+            final var currentFrame = device.currentFrame();
+            if (texture.image.memoryLocation() != MemoryBudget.Location.DEVICE && lastPromotionFailedFrame != currentFrame) {
+                promote(texture);
+            }
+            if (texture.usageListNode.linked()) {
+                liveTextures.remove(texture.usageListNode);
+            }
+            liveTextures.add(texture.usageListNode);
+            texture.lastUsedFrame = currentFrame;
+        }
+        
+        private void promote(Hg3DGpuTexture texture) {
+            // the new image is created before the old one is freed, it needs the room up front
+            final var memoryStats = device.hgDevice().deviceLocalMemoryStats();
+            if (memoryStats.leftLong() + texture.image.size() > promotionLimit(memoryStats.rightLong())) {
+                // the demotion step will make room, if it can
+                lastPromotionFailedFrame = device.currentFrame();
+                return;
+            }
+            final var commandBuffer = device.createCommandEncoder().earlyCommandBuffer();
+            commandBuffer.pushDebugGroup("Texture Promotion");
+            texture.replaceImage(texture.createImage(false), commandBuffer);
+            commandBuffer.popDebugGroup();
+        }
+        
+        private long memoryPressure(MemoryBudget.Location location, MemoryPressure.Level level, long bytes) {
+            if (location != MemoryBudget.Location.DEVICE || level != MemoryPressure.Level.CRITICAL) {
+                return 0;
+            }
+            // bytes is what is left after the buffer manager shed what it could, and counts from usage as it is now
+            pressureTargetUsage = Math.min(pressureTargetUsage, device.hgDevice().deviceLocalMemoryStats().leftLong() - bytes);
+            // demotion has to copy first, nothing is released by the time this returns
+            return 0;
+        }
+        
+        // promotions stay under both where demotion stops and where CRITICAL pressure starts, otherwise a promoted texture pushes usage back over and is demoted again
+        private static long promotionLimit(long budget) {
+            return Math.min(ResidencyPolicy.deviceTargetUsage(budget), MemoryPressure.moderateThreshold(budget));
+        }
+        
+        private void autoDemote() {
+            // demote any not in-flight device-local textures above 93.75% (15/16ths) of VMA's budget to host memory, matching buffer demotion
+            final var deviceStats = device.hgDevice().deviceLocalMemoryStats();
+            final var targetUsage = Math.min(ResidencyPolicy.deviceTargetUsage(deviceStats.rightLong()), pressureTargetUsage);
+            pressureTargetUsage = Long.MAX_VALUE;
+            // buffer demotion has just run, what it moved out is still in the stats, but is already off the overage
+            long currentUsage = deviceStats.leftLong() - device.bufferManager().deviceBytesDemotedThisFrame();
+            if (currentUsage <= targetUsage) {
+                return;
+            }
+            // and don't push host memory past where buffers get pushed out of it
+            final var hostStats = device.hgDevice().hostLocalMemoryStats();
+            final var hostTargetUsage = ResidencyPolicy.hostTargetUsage(hostStats.rightLong());
+            long hostUsage = hostStats.leftLong();
+            
+            @Nullable
+            HgCommandBuffer commandBuffer = null;
+            for (
+                    @Nullable var currentNode = liveTextures.peekFirst();
+                    currentUsage > targetUsage && currentNode != null && !currentNode.data.isInFlight();
+            ) {
+                final var currentTexture = currentNode.data;
+                currentNode = currentNode.next();
+                if (currentTexture.image.memoryLocation() != MemoryBudget.Location.DEVICE) {
+                    continue;
+                }
+                final var size = currentTexture.image.size();
+                if (hostUsage + size > hostTargetUsage) {
+                    break;
+                }
+                if (commandBuffer == null) {
+                    commandBuffer = device.createCommandEncoder().earlyCommandBuffer();
+                    commandBuffer.pushDebugGroup("Texture Demotions");
+                }
+                final var newImage = currentTexture.createImage(true);
+                currentTexture.replaceImage(newImage, commandBuffer);
+                if (newImage.memoryLocation() == MemoryBudget.Location.DEVICE) {
+                    // no host memory type can hold this image, nothing more to demote
+                    break;
+                }
+                currentUsage -= size;
+                hostUsage += newImage.size();
+            }
+            if (commandBuffer != null) {
+                commandBuffer.popDebugGroup();
+            }
+        }
+        
+        public void endOfFrame() {
+            autoDemote();
+        }
+    }
 }
@@ -15,16 +15,22 @@ import java.util.List;
 public class Hg3DGpuTextureView extends GpuTextureView implements Hg3DObject {
     
     private final Hg3DGpuTexture texture;
-    private final HgImage.View imageView;
+    private final HgImage.View.Type viewType;
+    private HgImage.View imageView;
     private final Reference2ReferenceMap<@NotNull HgRenderPass, Reference2ReferenceMap<HgImage.@NotNull View, @Nullable HgFramebuffer>> framebuffers = new Reference2ReferenceArrayMap<>();
     private boolean closed = false;
     
     public Hg3DGpuTextureView(Hg3DGpuTexture texture, int baseMipLevel, int mipLevels) {
         super(texture, baseMipLevel, mipLevels);
         this.texture = texture;
-        boolean cubemap = (texture.usage() & GpuTexture.USAGE_CUBEMAP_COMPATIBLE) != 0;
-        imageView = texture.image().createView(cubemap ? HgImage.View.Type.TYPE_CUBE : HgImage.View.Type.TYPE_2D, Hg3DConst.format(texture.getFormat()), baseMipLevel, mipLevels, 0, cubemap ? 6 : 1);
-        texture.addView();
+        viewType = (texture.usage() & GpuTexture.USAGE_CUBEMAP_COMPATIBLE) != 0 ? HgImage.View.Type.TYPE_CUBE : HgImage.View.Type.TYPE_2D;
+        imageView = createView(texture.image());
+        texture.addView(this);
+    }
+    
+    private HgImage.View createView(HgImage image) {
+        final var cubemap = viewType == HgImage.View.Type.TYPE_CUBE;
+        return image.createView(viewType, Hg3DConst.format(texture.getFormat()), baseMipLevel(), mipLevels(), 0, cubemap ? 6 : 1);
     }
     
     @Override
@@ -34,7 +40,11 @@ public class Hg3DGpuTextureView extends GpuTextureView implements Hg3DObject {
         }
         closed = true;
         texture.device().destroyEndOfFrameAsync(imageView);
-        texture.removeView();
+        texture.removeView(this);
+        destroyFramebuffers();
+    }
+    
+    private void destroyFramebuffers() {
         framebuffers.forEach((k, v) -> {
             v.forEach((k1, v1) -> {
                 if (v1 == null) {
@@ -45,6 +55,14 @@ public class Hg3DGpuTextureView extends GpuTextureView implements Hg3DObject {
         });
     }
     
+    // the texture moved to a new image, anything made from the old one goes with it
+    void imageReplaced(HgImage image) {
+        texture.device().destroyEndOfFrame(imageView);
+        imageView = createView(image);
+        destroyFramebuffers();
+        framebuffers.clear();
+    }
+    
     @Override
     public boolean isClosed() {
         return closed;
@@ -61,6 +79,8 @@ public class Hg3DGpuTextureView extends GpuTextureView implements Hg3DObject {
     }
     
     public HgImage.View imageView() {
+        // lets the texture promote itself, which replaces the view
+        texture.image();
         return imageView;
     }
     
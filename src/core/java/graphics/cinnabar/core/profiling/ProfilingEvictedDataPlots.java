@@ -0,0 +1,31 @@
+package graphics.cinnabar.core.profiling;
+
+import com.mojang.jtracy.Plot;
+import com.mojang.jtracy.TracyClient;
+import graphics.cinnabar.core.hg3d.Hg3DGpuBuffer;
+
+// pushes evicted buffer data compression stats to Tracy, once per frame
+public class ProfilingEvictedDataPlots {
+    
+    private static final Plot ratioPlot = TracyClient.createPlot("Evicted data compression ratio");
+    private static final Plot rejectedPlot = TracyClient.createPlot("Evicted data compression rejected");
+    private static final Plot compressionTimePlot = TracyClient.createPlot("Evicted data compression time (us)");
+    private static final Plot decompressionTimePlot = TracyClient.createPlot("Evicted data decompression time (us)");
+    
+    private static long lastCompressionNanos = 0;
+    private static long lastDecompressionNanos = 0;
+    
+    public static void update() {
+        if (!TracyClient.isAvailable()) {
+            return;
+        }
+        final var stats = Hg3DGpuBuffer.compressionStats();
+        ratioPlot.setValue(stats.ratio());
+        rejectedPlot.setValue(stats.rejected());
+        // codec time spent since the last frame
+        compressionTimePlot.setValue((stats.compressionNanos() - lastCompressionNanos) / 1000.0);
+        decompressionTimePlot.setValue((stats.decompressionNanos() - lastDecompressionNanos) / 1000.0);
+        lastCompressionNanos = stats.compressionNanos();
+        lastDecompressionNanos = stats.decompressionNanos();
+    }
+}
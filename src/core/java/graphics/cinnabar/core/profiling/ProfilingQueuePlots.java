@@ -0,0 +1,43 @@
+package graphics.cinnabar.core.profiling;
+
+import com.mojang.jtracy.Plot;
+import com.mojang.jtracy.TracyClient;
+import graphics.cinnabar.api.threading.ThreadIndex;
+import graphics.cinnabar.lib.threading.QueueSystem;
+import graphics.cinnabar.lib.threading.WorkQueueStats;
+import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap;
+
+// pushes the last QueueSystem telemetry sample to Tracy, once per frame
+public class ProfilingQueuePlots {
+    
+    private record QueuePlots(Plot depth, Plot highWaterMark, Plot itemsPerSecond, Plot latencyP99, Plot executionP99) {
+        QueuePlots(String name) {
+            this(
+                    TracyClient.createPlot("Queue " + name + " depth"),
+                    TracyClient.createPlot("Queue " + name + " peak depth"),
+                    TracyClient.createPlot("Queue " + name + " items/s"),
+                    TracyClient.createPlot("Queue " + name + " wait p99 (us)"),
+                    TracyClient.createPlot("Queue " + name + " run p99 (us)")
+            );
+        }
+    }
+    
+    private static final Reference2ReferenceOpenHashMap<WorkQueueStats, QueuePlots> queuePlots = new Reference2ReferenceOpenHashMap<>();
+    private static final Plot cleanupBusyPlot = TracyClient.createPlot("Cleanup thread busy %");
+    
+    public static void update() {
+        if (!TracyClient.isAvailable()) {
+            return;
+        }
+        for (final var stats : QueueSystem.queueStats()) {
+            final var plots = queuePlots.computeIfAbsent(stats, s -> new QueuePlots(stats.name));
+            final var sample = stats.lastSample();
+            plots.depth.setValue(sample.depth());
+            plots.highWaterMark.setValue(sample.highWaterMark());
+            plots.itemsPerSecond.setValue(sample.itemsPerSecond());
+            plots.latencyP99.setValue(sample.latencyP99() / 1000.0);
+            plots.executionP99.setValue(sample.executionP99() / 1000.0);
+        }
+        cleanupBusyPlot.setValue(QueueSystem.threadBusyFraction(ThreadIndex.CLEANUP) * 100);
+    }
+}
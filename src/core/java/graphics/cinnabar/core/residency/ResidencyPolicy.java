@@ -0,0 +1,307 @@
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.hg.HgBuffer;
+import graphics.cinnabar.lib.datastructures.SpliceableLinkedList;
+import it.unimi.dsi.fastutil.longs.LongLongPair;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+
+// which buffers get dropped, evicted, demoted and promoted, and when, for Hg3DGpuBuffer.Manager
+// nothing here touches a device, the moves themselves are left to the backend
+// the manager runs this against the real device and ResidencySimulator against modeled heaps, so a policy change here is what both see
+public final class ResidencyPolicy<B> {
+    
+    public interface Backend<B> {
+        SpliceableLinkedList.Node<B> usageListNode(B buffer);
+        
+        long size(B buffer);
+        
+        long currentFrame();
+        
+        // may still be read by a frame the GPU hasn't finished
+        boolean isInFlight(B buffer);
+        
+        boolean usedThisFrame(B buffer);
+        
+        // only called for buffers in the usage list, which always have memory
+        HgBuffer.MemoryType memoryType(B buffer);
+        
+        // the contents never change and a copy is kept in system memory, so the memory can be freed without saving anything
+        boolean hasSourceData(B buffer);
+        
+        boolean UMA();
+        
+        // usage, budget
+        LongLongPair hostLocalMemoryStats();
+        
+        LongLongPair deviceLocalMemoryStats();
+        
+        // frees the buffer's memory, its re-uploaded from the source data on next use
+        void drop(B buffer);
+        
+        // copies the buffer to system memory through a mapping, then frees its memory
+        void evictToHost(B buffer);
+        
+        // waits for the GPU to go idle, after which only this frame's buffers are still needed
+        void stall();
+        
+        // how much can go through one shuffleToHost
+        long shuffleCapacity();
+        
+        // copies non-mappable buffers to system memory with the GPU, waiting for it, then frees their memory
+        void shuffleToHost(ReferenceArrayList<B> buffers);
+        
+        // moves the buffer to host visible memory, false if there wasn't room for it
+        boolean demoteToHost(B buffer);
+        
+        // moves the buffer to device local memory, false if there wasn't room for it
+        boolean promoteToDevice(B buffer);
+    }
+    
+    // mappable memory over this much of its budget is pushed out to system memory at the end of the frame
+    // texture demotion stays under it too, so it doesn't demote into what buffers are about to be pushed out of
+    public static long hostTargetUsage(long budget) {
+        return (budget >> 3) * 7;
+    }
+    
+    // device local memory over this much of its budget is demoted to host visible memory at the end of the frame
+    // promotions and defragmentation stay under it, so they don't add to what gets demoted
+    public static long deviceTargetUsage(long budget) {
+        return (budget >> 4) * 15;
+    }
+    
+    private final Backend<B> backend;
+    // least recently used first
+    private final SpliceableLinkedList<B> liveBuffers = new SpliceableLinkedList<>();
+    private long lastPromotionFailedFrame = 0;
+    // demoted copies free their device memory a few frames later, until then it still counts towards the device's usage
+    private long deviceBytesDemoted = 0;
+    
+    public ResidencyPolicy(Backend<B> backend) {
+        this.backend = backend;
+    }
+    
+    @Nullable
+    public SpliceableLinkedList.Node<B> leastRecentlyUsed() {
+        return liveBuffers.peekFirst();
+    }
+    
+    public void used(B buffer) {
+        final var node = backend.usageListNode(buffer);
+        if (node.linked()) {
+            liveBuffers.remove(node);
+        }
+        liveBuffers.add(node);
+    }
+    
+    public void remove(B buffer) {
+        final var node = backend.usageListNode(buffer);
+        if (node.linked()) {
+            liveBuffers.remove(node);
+        }
+    }
+    
+    // device local bytes moved out by the last autoDemote
+    public long deviceBytesDemoted() {
+        return deviceBytesDemoted;
+    }
+    
+    public boolean promotionFailedThisFrame() {
+        return lastPromotionFailedFrame == backend.currentFrame();
+    }
+    
+    // a buffer that is in slower memory than it wants is being used
+    public void promoteToDevice(B buffer) {
+        if (promotionFailedThisFrame()) {
+            // if another promotion failed this frame, just skip an attempt this frame
+            // the demotion step will make room, if it can
+            return;
+        }
+        if (!backend.promoteToDevice(buffer)) {
+            // this is ok, the auto-demote process should make room next frame
+            // skip any other device promotions this frame though, we are out of room
+            lastPromotionFailedFrame = backend.currentFrame();
+        }
+    }
+    
+    // only the free evictions, buffers with source data that aren't in flight, LRU first
+    // anything more expensive is left to allocFailed
+    public long shed(boolean gpuLocal, long bytes) {
+        long released = 0;
+        for (@Nullable var currentNode = liveBuffers.peekFirst(); currentNode != null && released < bytes; ) {
+            final var currentBuffer = currentNode.data;
+            if (backend.isInFlight(currentBuffer)) {
+                break;
+            }
+            currentNode = currentNode.next();
+            if (!backend.hasSourceData(currentBuffer) || backend.memoryType(currentBuffer).gpuLocal != gpuLocal) {
+                continue;
+            }
+            backend.drop(currentBuffer);
+            remove(currentBuffer);
+            released += backend.size(currentBuffer);
+        }
+        return released;
+    }
+    
+    // returns true if anything was freed, and the allocation should be attempted again
+    public boolean allocFailed(boolean gpuLocal, long allocSize) {
+        // if this fails, the game may crash, so, make every attempt to free some memory.
+        // notable that the current frame's buffers can't be freed, because this may be within a renderpass and I cant end that early
+        // device can be stalled and anything for N-1 can be though
+        boolean anythingFreed = false;
+        
+        for (@Nullable var currentNode = liveBuffers.peekFirst(); currentNode != null && allocSize > 0; ) {
+            final var currentBuffer = currentNode.data;
+            if (backend.isInFlight(currentBuffer)) {
+                // buffer is too new, must fall to second pass
+                break;
+            }
+            currentNode = currentNode.next();
+            if (evictForAlloc(currentBuffer, gpuLocal)) {
+                allocSize -= backend.size(currentBuffer);
+                anythingFreed = true;
+            }
+        }
+        if (allocSize <= 0) {
+            // enough memory freed, attempt the alloc again
+            return true;
+        }
+        
+        backend.stall();
+        // anything for N-1 is now free to yeet too
+        for (@Nullable var currentNode = liveBuffers.peekFirst(); currentNode != null && allocSize > 0; ) {
+            final var currentBuffer = currentNode.data;
+            if (backend.usedThisFrame(currentBuffer)) {
+                break;
+            }
+            currentNode = currentNode.next();
+            if (evictForAlloc(currentBuffer, gpuLocal)) {
+                allocSize -= backend.size(currentBuffer);
+                anythingFreed = true;
+            }
+        }
+        if (allocSize <= 0) {
+            return true;
+        }
+        if (!gpuLocal || backend.UMA()) {
+            // if not trying to free GPU local memory (or UMA), anything we could free has already been freed
+            return anythingFreed;
+        }
+        
+        // anything that could be immediately evicted has been, this is a very shit situation
+        // time to start shuffling buffers out of VRAM, a pass at a time
+        final var shuffleCapacity = backend.shuffleCapacity();
+        final var shufflingBuffers = new ReferenceArrayList<B>();
+        while (allocSize > 0) {
+            long shuffleSize = 0;
+            for (@Nullable var currentNode = liveBuffers.peekFirst(); currentNode != null && shuffleSize < allocSize; ) {
+                final var currentBuffer = currentNode.data;
+                if (backend.usedThisFrame(currentBuffer)) {
+                    // buffer too new, SOL
+                    return false;
+                }
+                final var size = backend.size(currentBuffer);
+                if (backend.memoryType(currentBuffer).gpuLocal != gpuLocal || size > shuffleCapacity) {
+                    // wrong kind of memory, or too big to ever fit
+                    currentNode = currentNode.next();
+                    continue;
+                }
+                if (shuffleSize + size > shuffleCapacity) {
+                    // out of space for this pass
+                    break;
+                }
+                shuffleSize += size;
+                currentNode = currentNode.next();
+                remove(currentBuffer);
+                shufflingBuffers.add(currentBuffer);
+            }
+            if (shufflingBuffers.isEmpty()) {
+                return anythingFreed;
+            }
+            backend.shuffleToHost(shufflingBuffers);
+            shufflingBuffers.clear();
+            allocSize -= shuffleSize;
+            anythingFreed = true;
+        }
+        // shuffled enough from the GPU, attempt the alloc again
+        return true;
+    }
+    
+    private boolean evictForAlloc(B buffer, boolean gpuLocal) {
+        final var memoryType = backend.memoryType(buffer);
+        if (memoryType.gpuLocal != gpuLocal) {
+            // wrong kind of memory, freeing this won't help
+            return false;
+        }
+        if (backend.hasSourceData(buffer)) {
+            backend.drop(buffer);
+        } else if (memoryType.mappable && memoryType != HgBuffer.MemoryType.GPU_MAPPABLE) {
+            // mappable memory, can evict to CPU memory and then follow immediate eviction path
+            // UMA (iGPUs) will also end up here
+            // GPU_MAPPABLE is specifically for over-pcie devices, which is extremely slow to read (though you can), so its left to the shuffle
+            backend.evictToHost(buffer);
+        } else {
+            return false;
+        }
+        remove(buffer);
+        return true;
+    }
+    
+    public void autoDemote() {
+        deviceBytesDemoted = 0;
+        {
+            @Nullable
+            final var first = liveBuffers.peekFirst();
+            if (first != null && backend.isInFlight(first.data)) {
+                // everything live is in-flight, can't purge anything from VK
+                return;
+            }
+        }
+        
+        // stage 1, demote any not in-flight mappable memory over its target to system memory
+        {
+            final var memoryStats = backend.hostLocalMemoryStats();
+            final var targetUsage = hostTargetUsage(memoryStats.rightLong());
+            long currentUsage = memoryStats.leftLong();
+            for (@Nullable var currentNode = liveBuffers.peekFirst(); currentUsage > targetUsage && currentNode != null && !backend.isInFlight(currentNode.data); ) {
+                final var currentBuffer = currentNode.data;
+                currentNode = currentNode.next();
+                if (!backend.memoryType(currentBuffer).cpuLocal) {
+                    continue;
+                }
+                assert backend.memoryType(currentBuffer).mappable;
+                if (backend.hasSourceData(currentBuffer)) {
+                    // easy route, this buffer can re-upload itself when it gets used next
+                    backend.drop(currentBuffer);
+                } else {
+                    backend.evictToHost(currentBuffer);
+                }
+                remove(currentBuffer);
+                currentUsage -= backend.size(currentBuffer);
+            }
+        }
+        
+        // stage 2, demote anything not in-flight device-local over its target to host visible memory
+        {
+            final var memoryStats = backend.deviceLocalMemoryStats();
+            final var targetUsage = deviceTargetUsage(memoryStats.rightLong());
+            long currentUsage = memoryStats.leftLong();
+            for (@Nullable var currentNode = liveBuffers.peekFirst(); currentUsage > targetUsage && currentNode != null && !backend.isInFlight(currentNode.data); ) {
+                final var currentBuffer = currentNode.data;
+                currentNode = currentNode.next();
+                if (!backend.memoryType(currentBuffer).gpuLocal) {
+                    continue;
+                }
+                if (!backend.demoteToHost(currentBuffer)) {
+                    // alloc failed, next demotion cycle(s) should free enough to demote this buffer
+                    break;
+                }
+                // for demotion process, consider it used
+                used(currentBuffer);
+                currentUsage -= backend.size(currentBuffer);
+                deviceBytesDemoted += backend.size(currentBuffer);
+            }
+        }
+    }
+}
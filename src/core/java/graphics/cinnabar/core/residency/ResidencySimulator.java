@@ -0,0 +1,424 @@
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.hg.HgBuffer;
+import graphics.cinnabar.api.memory.MagicMemorySizes;
+import graphics.cinnabar.core.util.MagicNumbers;
+import graphics.cinnabar.lib.datastructures.SpliceableLinkedList;
+import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongLongImmutablePair;
+import it.unimi.dsi.fastutil.longs.LongLongPair;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+// replays a residency trace through ResidencyPolicy, with a fixed amount of device and host visible memory
+// only the memory is modeled, the decisions are the same code Hg3DGpuBuffer.Manager runs
+// there is no GPU, "device" and "host" are just two heaps, no ReBAR and no UMA, and the budgets are the heap sizes
+// usage: ResidencySimulator <trace> <device MiB> [host visible MiB]
+public final class ResidencySimulator implements ResidencyTraceReader.Visitor, ResidencyPolicy.Backend<ResidencySimulator.Buffer> {
+    
+    private static final long EMERGENCY_EVICTION_BUFFER_SIZE = MagicMemorySizes.MiB;
+    
+    public record Result(long frames, long bytesPromoted, long bytesEvicted, long bytesDropped, long bytesDemoted, long bytesWritten, long stalls, long failedPromotions, long outOfMemory, long framesOverDeviceTarget, long peakDeviceBytes, long peakHostBytes) {
+        @Override
+        public String toString() {
+            return String.format("""
+                            frames:            %d
+                            promoted:          %d MiB
+                            evicted to host:   %d MiB
+                            dropped:           %d MiB
+                            demoted:           %d MiB
+                            written:           %d MiB
+                            stalls:            %d
+                            failed promotions: %d
+                            out of memory:     %d
+                            over target:       %d frames
+                            peak device:       %d MiB
+                            peak host:         %d MiB""",
+                    frames, bytesPromoted / MagicMemorySizes.MiB, bytesEvicted / MagicMemorySizes.MiB, bytesDropped / MagicMemorySizes.MiB, bytesDemoted / MagicMemorySizes.MiB, bytesWritten / MagicMemorySizes.MiB,
+                    stalls, failedPromotions, outOfMemory, framesOverDeviceTarget, peakDeviceBytes / MagicMemorySizes.MiB, peakHostBytes / MagicMemorySizes.MiB);
+        }
+    }
+    
+    static final class Buffer {
+        private final int id;
+        private final long size;
+        private final HgBuffer.MemoryRequest request;
+        private final boolean constantData;
+        private final SpliceableLinkedList.Node<Buffer> usageListNode = new SpliceableLinkedList.Node<>(this);
+        // CPU for the host visible heap, GPU for the device heap, null when in neither
+        @Nullable
+        private HgBuffer.MemoryType memoryType;
+        private boolean hasEvictedData;
+        // has been pushed out of vulkan memory at least once, the next upload is a promotion rather than its first
+        private boolean wasEvicted;
+        private long lastUsedFrame = -1;
+        private boolean closed;
+        
+        private Buffer(int id, long size, HgBuffer.MemoryRequest request, boolean constantData) {
+            this.id = id;
+            this.size = size;
+            this.request = request;
+            this.constantData = constantData;
+        }
+    }
+    
+    private final long deviceCapacity;
+    private final long hostCapacity;
+    private final ResidencyPolicy<Buffer> policy = new ResidencyPolicy<>(this);
+    
+    private final Int2ReferenceOpenHashMap<Buffer> buffers = new Int2ReferenceOpenHashMap<>();
+    private final long[] pendingDeviceFrees = new long[MagicNumbers.MaximumFramesInFlight];
+    private final long[] pendingHostFrees = new long[MagicNumbers.MaximumFramesInFlight];
+    private final ReferenceArrayList<ReferenceArrayList<Buffer>> pendingDestroys = new ReferenceArrayList<>();
+    
+    // same starting point as Hg3DGpuDevice
+    private long currentFrame = MagicNumbers.MaximumFramesInFlight;
+    private long deviceUsed;
+    private long hostUsed;
+    private long evictedBytes;
+    private long sourceBytes;
+    
+    private long frames;
+    private long bytesPromoted;
+    private long bytesEvicted;
+    private long bytesDropped;
+    private long bytesDemoted;
+    private long bytesWritten;
+    private long stalls;
+    private long failedPromotions;
+    private long outOfMemory;
+    private long framesOverDeviceTarget;
+    private long peakDeviceBytes;
+    private long peakHostBytes;
+    
+    public ResidencySimulator(long deviceCapacity, long hostCapacity) {
+        this.deviceCapacity = deviceCapacity;
+        this.hostCapacity = hostCapacity;
+        for (int i = 0; i < MagicNumbers.MaximumFramesInFlight; i++) {
+            pendingDestroys.add(new ReferenceArrayList<>());
+        }
+    }
+    
+    public static Result simulate(Path trace, long deviceCapacity, long hostCapacity) throws IOException {
+        final var simulator = new ResidencySimulator(deviceCapacity, hostCapacity);
+        ResidencyTraceReader.read(trace, simulator);
+        return simulator.result();
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ResidencySimulator <trace> <device MiB> [host visible MiB]");
+            System.exit(1);
+        }
+        final var deviceCapacity = Long.parseLong(args[1]) * MagicMemorySizes.MiB;
+        final var hostCapacity = args.length > 2 ? Long.parseLong(args[2]) * MagicMemorySizes.MiB : Long.MAX_VALUE;
+        System.out.println(simulate(Path.of(args[0]), deviceCapacity, hostCapacity));
+    }
+    
+    public Result result() {
+        return new Result(frames, bytesPromoted, bytesEvicted, bytesDropped, bytesDemoted, bytesWritten, stalls, failedPromotions, outOfMemory, framesOverDeviceTarget, peakDeviceBytes, peakHostBytes);
+    }
+    
+    // ResidencyTraceReader.Visitor, the events Hg3DGpuBuffer records
+    
+    @Override
+    public void frame() {
+        // Hg3DGpuBuffer.Manager.endOfFrame
+        policy.autoDemote();
+        if (overDeviceTargetWithRoomToDemote()) {
+            framesOverDeviceTarget++;
+        }
+        frames++;
+        currentFrame++;
+        // Hg3DGpuDevice.endFrame retires this slot after waiting on the GPU
+        final var slot = (int) (currentFrame % MagicNumbers.MaximumFramesInFlight);
+        deviceUsed -= pendingDeviceFrees[slot];
+        hostUsed -= pendingHostFrees[slot];
+        pendingDeviceFrees[slot] = 0;
+        pendingHostFrees[slot] = 0;
+        final var destroys = pendingDestroys.get(slot);
+        destroys.forEach(this::destroyNow);
+        destroys.clear();
+    }
+    
+    @Override
+    public void create(int id, long size, HgBuffer.MemoryRequest request, boolean constantData, boolean initialData, boolean immediate) {
+        final var buffer = new Buffer(id, size, request, constantData);
+        buffers.put(id, buffer);
+        if (constantData) {
+            sourceBytes += size;
+        }
+        if (initialData) {
+            buffer.hasEvictedData = true;
+            evictedBytes += size;
+        }
+        updatePeaks();
+        if (immediate) {
+            promoteImmediate(buffer);
+        }
+    }
+    
+    @Override
+    public void use(int id) {
+        final var buffer = buffers.get(id);
+        if (buffer == null) {
+            return;
+        }
+        // Hg3DGpuBuffer.hgSlice
+        if (currentFrame != buffer.lastUsedFrame || buffer.memoryType == null) {
+            if (buffer.memoryType == null) {
+                promoteImmediate(buffer);
+            } else if (buffer.request == HgBuffer.MemoryRequest.GPU && !buffer.memoryType.gpuLocal) {
+                policy.promoteToDevice(buffer);
+            }
+            policy.used(buffer);
+            buffer.lastUsedFrame = currentFrame;
+        }
+    }
+    
+    @Override
+    public void write(int id, long bytes) {
+        // the use that goes with it is its own event
+        bytesWritten += bytes;
+    }
+    
+    @Override
+    public void destroy(int id) {
+        final var buffer = buffers.get(id);
+        if (buffer == null) {
+            return;
+        }
+        // a closed buffer always counts as in flight, so Hg3DGpuBuffer.close always defers the destroy
+        buffer.closed = true;
+        pendingDestroys.get((int) (currentFrame % MagicNumbers.MaximumFramesInFlight)).add(buffer);
+    }
+    
+    // ResidencyPolicy.Backend, the moves it asks for, applied to the modeled heaps
+    
+    @Override
+    public SpliceableLinkedList.Node<Buffer> usageListNode(Buffer buffer) {
+        return buffer.usageListNode;
+    }
+    
+    @Override
+    public long size(Buffer buffer) {
+        return buffer.size;
+    }
+    
+    @Override
+    public long currentFrame() {
+        return currentFrame;
+    }
+    
+    @Override
+    public boolean isInFlight(Buffer buffer) {
+        return currentFrame - buffer.lastUsedFrame <= MagicNumbers.MaximumFramesInFlight || buffer.closed;
+    }
+    
+    @Override
+    public boolean usedThisFrame(Buffer buffer) {
+        return buffer.lastUsedFrame == currentFrame;
+    }
+    
+    @Override
+    public HgBuffer.MemoryType memoryType(Buffer buffer) {
+        assert buffer.memoryType != null;
+        return buffer.memoryType;
+    }
+    
+    @Override
+    public boolean hasSourceData(Buffer buffer) {
+        return buffer.constantData;
+    }
+    
+    @Override
+    public boolean UMA() {
+        return false;
+    }
+    
+    @Override
+    public LongLongPair hostLocalMemoryStats() {
+        return new LongLongImmutablePair(hostUsed, hostCapacity);
+    }
+    
+    @Override
+    public LongLongPair deviceLocalMemoryStats() {
+        return new LongLongImmutablePair(deviceUsed, deviceCapacity);
+    }
+    
+    @Override
+    public void drop(Buffer buffer) {
+        free(buffer);
+        buffer.wasEvicted = true;
+        bytesDropped += buffer.size;
+    }
+    
+    @Override
+    public void evictToHost(Buffer buffer) {
+        buffer.hasEvictedData = true;
+        evictedBytes += buffer.size;
+        free(buffer);
+        buffer.wasEvicted = true;
+        bytesEvicted += buffer.size;
+        updatePeaks();
+    }
+    
+    @Override
+    public void stall() {
+        // waitIdle
+        stalls++;
+    }
+    
+    @Override
+    public long shuffleCapacity() {
+        return EMERGENCY_EVICTION_BUFFER_SIZE;
+    }
+    
+    @Override
+    public void shuffleToHost(ReferenceArrayList<Buffer> buffers) {
+        // a submit and waitIdle per pass
+        stall();
+        buffers.forEach(this::evictToHost);
+    }
+    
+    @Override
+    public boolean demoteToHost(Buffer buffer) {
+        if (!tryAllocate(HgBuffer.MemoryType.CPU, buffer.size)) {
+            return false;
+        }
+        freeEndOfFrame(buffer);
+        buffer.memoryType = HgBuffer.MemoryType.CPU;
+        bytesDemoted += buffer.size;
+        return true;
+    }
+    
+    @Override
+    public boolean promoteToDevice(Buffer buffer) {
+        if (!tryAllocate(HgBuffer.MemoryType.GPU, buffer.size)) {
+            failedPromotions++;
+            return false;
+        }
+        freeEndOfFrame(buffer);
+        buffer.memoryType = HgBuffer.MemoryType.GPU;
+        bytesPromoted += buffer.size;
+        return true;
+    }
+    
+    // the memory model
+    
+    private void destroyNow(Buffer buffer) {
+        if (buffer.memoryType != null) {
+            free(buffer);
+        }
+        policy.remove(buffer);
+        if (buffer.hasEvictedData) {
+            evictedBytes -= buffer.size;
+            buffer.hasEvictedData = false;
+        }
+        if (buffer.constantData) {
+            sourceBytes -= buffer.size;
+        }
+        buffers.remove(buffer.id);
+    }
+    
+    // Hg3DGpuBuffer.Manager.promoteImmediate, the requested memory if there's room for it, host visible memory if not
+    private void promoteImmediate(Buffer buffer) {
+        if (buffer.memoryType == null) {
+            var memoryType = buffer.request == HgBuffer.MemoryRequest.GPU ? HgBuffer.MemoryType.GPU : HgBuffer.MemoryType.CPU;
+            if (!tryAllocate(memoryType, buffer.size)) {
+                memoryType = HgBuffer.MemoryType.CPU;
+                allocate(memoryType, buffer.size);
+            }
+            buffer.memoryType = memoryType;
+        }
+        policy.used(buffer);
+        if (buffer.wasEvicted) {
+            bytesPromoted += buffer.size;
+            buffer.wasEvicted = false;
+        }
+        if (buffer.hasEvictedData) {
+            evictedBytes -= buffer.size;
+            buffer.hasEvictedData = false;
+        }
+    }
+    
+    private boolean tryAllocate(HgBuffer.MemoryType memoryType, long size) {
+        if (memoryType.gpuLocal) {
+            if (deviceUsed + size > deviceCapacity) {
+                return false;
+            }
+            deviceUsed += size;
+        } else {
+            if (hostUsed + size > hostCapacity) {
+                return false;
+            }
+            hostUsed += size;
+        }
+        updatePeaks();
+        return true;
+    }
+    
+    // MercuryDevice.createBuffer, asks the policy to make room until it can't
+    private void allocate(HgBuffer.MemoryType memoryType, long size) {
+        while (!tryAllocate(memoryType, size)) {
+            if (!policy.allocFailed(memoryType.gpuLocal, size)) {
+                // the game would crash here, count it and carry on so the rest of the trace still says something
+                outOfMemory++;
+                if (memoryType.gpuLocal) {
+                    deviceUsed += size;
+                } else {
+                    hostUsed += size;
+                }
+                updatePeaks();
+                return;
+            }
+        }
+    }
+    
+    private void free(Buffer buffer) {
+        assert buffer.memoryType != null;
+        if (buffer.memoryType.gpuLocal) {
+            deviceUsed -= buffer.size;
+        } else {
+            hostUsed -= buffer.size;
+        }
+        buffer.memoryType = null;
+    }
+    
+    // the old memory of a moved buffer, freed once the frames that may still read it are done
+    private void freeEndOfFrame(Buffer buffer) {
+        assert buffer.memoryType != null;
+        final var slot = (int) (currentFrame % MagicNumbers.MaximumFramesInFlight);
+        if (buffer.memoryType.gpuLocal) {
+            pendingDeviceFrees[slot] += buffer.size;
+        } else {
+            pendingHostFrees[slot] += buffer.size;
+        }
+    }
+    
+    // what stays once the old copies of this frame's moves are freed is over the target, yet a device local buffer that isn't in flight, and would fit in host visible memory, was left there
+    // buffers still in flight can't be moved, being over with only those left isn't the policy's doing
+    private boolean overDeviceTargetWithRoomToDemote() {
+        long pendingFrees = 0;
+        for (final var bytes : pendingDeviceFrees) {
+            pendingFrees += bytes;
+        }
+        if (deviceUsed - pendingFrees <= ResidencyPolicy.deviceTargetUsage(deviceCapacity)) {
+            return false;
+        }
+        for (@Nullable var node = policy.leastRecentlyUsed(); node != null && !isInFlight(node.data); node = node.next()) {
+            if (memoryType(node.data).gpuLocal && hostUsed + node.data.size <= hostCapacity) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void updatePeaks() {
+        peakDeviceBytes = Math.max(peakDeviceBytes, deviceUsed);
+        peakHostBytes = Math.max(peakHostBytes, hostUsed + evictedBytes + sourceBytes);
+    }
+}
@@ -0,0 +1,149 @@
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.hg.HgBuffer;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static graphics.cinnabar.core.hg3d.Hg3D.HG3D_LOG;
+import static graphics.cinnabar.core.residency.ResidencyTraceReader.*;
+
+// records Hg3DGpuBuffer lifecycle events to a gzipped trace, enabled with -Dcinnabar.residencyTracePath=<file>
+// only what the buffer manager's policy sees is recorded, one use per buffer per frame, so ResidencySimulator can replay it
+public final class ResidencyTrace {
+    
+    @Nullable
+    private static final String TRACE_PATH = System.getProperty("cinnabar.residencyTracePath");
+    public static final boolean ENABLED = TRACE_PATH != null;
+    
+    @Nullable
+    private static DataOutputStream out;
+    private static int nextBufferId = 0;
+    
+    static {
+        if (ENABLED) {
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(Path.of(TRACE_PATH)))));
+                out.writeInt(MAGIC);
+                writeVarLong(VERSION);
+                HG3D_LOG.info("Recording buffer residency trace to {}", TRACE_PATH);
+            } catch (IOException e) {
+                HG3D_LOG.error("Unable to open buffer residency trace", e);
+                out = null;
+            }
+        }
+    }
+    
+    @ThreadSafety.MainGraphics
+    public static int nextBufferId() {
+        return nextBufferId++;
+    }
+    
+    @ThreadSafety.MainGraphics
+    public static void frame() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EVENT_FRAME);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+    
+    @ThreadSafety.MainGraphics
+    public static void create(int id, long size, HgBuffer.MemoryRequest request, boolean constantData, boolean initialData, boolean immediate) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EVENT_CREATE);
+            writeVarLong(id);
+            writeVarLong(size);
+            out.writeByte(request.ordinal());
+            out.writeByte((constantData ? FLAG_CONSTANT_DATA : 0) | (initialData ? FLAG_INITIAL_DATA : 0) | (immediate ? FLAG_IMMEDIATE : 0));
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+    
+    @ThreadSafety.MainGraphics
+    public static void use(int id) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EVENT_USE);
+            writeVarLong(id);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+    
+    @ThreadSafety.MainGraphics
+    public static void write(int id, long bytes) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EVENT_WRITE);
+            writeVarLong(id);
+            writeVarLong(bytes);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+    
+    @ThreadSafety.MainGraphics
+    public static void destroy(int id) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EVENT_DESTROY);
+            writeVarLong(id);
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+    
+    @ThreadSafety.MainGraphics
+    public static void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeByte(EVENT_END);
+            out.close();
+        } catch (IOException e) {
+            HG3D_LOG.error("Failed to finish buffer residency trace", e);
+        }
+        out = null;
+    }
+    
+    private static void writeVarLong(long value) throws IOException {
+        assert out != null;
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    private static void failed(IOException e) {
+        // a broken trace is only a lost trace, stop recording and let the game keep going
+        HG3D_LOG.error("Failed to write buffer residency trace, recording stopped", e);
+        try {
+            assert out != null;
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,104 @@
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.hg.HgBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+// reads traces written by ResidencyTrace
+// nothing here touches Minecraft or Vulkan, so it can run outside the game
+public final class ResidencyTraceReader {
+    
+    static final int MAGIC = 0x434E5254; // CNRT
+    static final int VERSION = 1;
+    
+    static final int EVENT_FRAME = 0;
+    static final int EVENT_CREATE = 1;
+    static final int EVENT_USE = 2;
+    static final int EVENT_WRITE = 3;
+    static final int EVENT_DESTROY = 4;
+    static final int EVENT_END = 5;
+    
+    // buffer data never changes, can be dropped from memory and re-uploaded from the source copy at any time
+    static final int FLAG_CONSTANT_DATA = 1;
+    // initial data was given, and is held in host memory as evicted data until first use
+    static final int FLAG_INITIAL_DATA = 1 << 1;
+    // uploaded as its created, rather than on first use
+    static final int FLAG_IMMEDIATE = 1 << 2;
+    
+    public interface Visitor {
+        void frame();
+        
+        void create(int id, long size, HgBuffer.MemoryRequest request, boolean constantData, boolean initialData, boolean immediate);
+        
+        void use(int id);
+        
+        void write(int id, long bytes);
+        
+        void destroy(int id);
+    }
+    
+    public static void read(Path path, Visitor visitor) throws IOException {
+        try (final var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a residency trace: " + path);
+            }
+            final var version = readVarInt(in);
+            if (version != VERSION) {
+                throw new IOException("Unsupported residency trace version " + version);
+            }
+            final var requests = HgBuffer.MemoryRequest.values();
+            while (true) {
+                final int event;
+                try {
+                    event = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    // the game didn't shut down cleanly, everything up to here is still usable
+                    return;
+                }
+                switch (event) {
+                    case EVENT_FRAME -> visitor.frame();
+                    case EVENT_CREATE -> {
+                        final var id = readVarInt(in);
+                        final var size = readVarLong(in);
+                        final var request = requests[in.readUnsignedByte()];
+                        final var flags = in.readUnsignedByte();
+                        visitor.create(id, size, request, (flags & FLAG_CONSTANT_DATA) != 0, (flags & FLAG_INITIAL_DATA) != 0, (flags & FLAG_IMMEDIATE) != 0);
+                    }
+                    case EVENT_USE -> visitor.use(readVarInt(in));
+                    case EVENT_WRITE -> visitor.write(readVarInt(in), readVarLong(in));
+                    case EVENT_DESTROY -> visitor.destroy(readVarInt(in));
+                    case EVENT_END -> {
+                        return;
+                    }
+                    default -> throw new IOException("Unknown residency trace event " + event);
+                }
+            }
+        }
+    }
+    
+    private static int readVarInt(InputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+    
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final var b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
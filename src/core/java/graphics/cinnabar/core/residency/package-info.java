@@ -0,0 +1,4 @@
+@NotNullDefault
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.annotations.NotNullDefault;
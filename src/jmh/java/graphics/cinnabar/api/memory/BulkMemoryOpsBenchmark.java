@@ -0,0 +1,94 @@
+package graphics.cinnabar.api.memory;
+
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+// BulkMemoryOps.LibC, the original path, against BulkMemoryOps.Segment, what -Dcinnabar.memorySegmentBulkOps=true picks
+// ./gradlew jmh -PjmhArgs="BulkMemoryOpsBenchmark"
+// sliceFill is the per call slice fill Segment.set used to do, -prof gc shows whether escape analysis removed its allocation
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+@State(Scope.Thread)
+public class BulkMemoryOpsBenchmark {
+    
+    // a uniform, a staging upload, and a texture sized copy
+    @Param({"64", "4096", "1048576"})
+    public long size;
+    
+    @Param({"libc", "segment"})
+    public String backend;
+    
+    private BulkMemoryOps ops;
+    private MemorySegment everything;
+    private long a;
+    private long b;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        ops = switch (backend) {
+            case "libc" -> new BulkMemoryOps.LibC();
+            case "segment" -> new BulkMemoryOps.Segment();
+            default -> throw new IllegalArgumentException(backend);
+        };
+        everything = MemorySegment.NULL.reinterpret(Long.MAX_VALUE);
+        // one extra long, so the overlapping copy stays in bounds
+        a = MemoryUtil.nmemAlignedAlloc(64, size + 8);
+        b = MemoryUtil.nmemAlignedAlloc(64, size + 8);
+        ops.set(a, (byte) 0x5A, size + 8);
+        ops.set(b, (byte) 0x5A, size + 8);
+    }
+    
+    @TearDown(Level.Trial)
+    public void teardown() {
+        MemoryUtil.nmemAlignedFree(a);
+        MemoryUtil.nmemAlignedFree(b);
+    }
+    
+    @Benchmark
+    public void set() {
+        ops.set(a, (byte) 0x5A, size);
+    }
+    
+    @Benchmark
+    public void sliceFill() {
+        everything.asSlice(a, size).fill((byte) 0x5A);
+    }
+    
+    @Benchmark
+    public void copy() {
+        ops.copy(a, b, size);
+    }
+    
+    // LibC takes memmove here, Segment's copy is overlap safe either way
+    @Benchmark
+    public void copyOverlapping() {
+        ops.copy(a, a + 8, size);
+    }
+    
+    // the ranges are identical, so the whole size is compared
+    @Benchmark
+    public long mismatch() {
+        return ops.mismatch(a, b, size);
+    }
+    
+    @Benchmark
+    public void copySwapBytes2() {
+        ops.copySwapBytes(a, b, size / 2, 2);
+    }
+    
+    @Benchmark
+    public void copySwapBytes4() {
+        ops.copySwapBytes(a, b, size / 4, 4);
+    }
+    
+    @Benchmark
+    public void copySwapBytes8() {
+        ops.copySwapBytes(a, b, size / 8, 8);
+    }
+}
@@ -0,0 +1,168 @@
+package graphics.cinnabar.lib.datastructures;
+
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+// RingQueue throughput and per-op latency percentiles at 1, 4, and all available threads
+// ./gradlew jmh -PjmhArgs="RingQueueBenchmark"
+// every invocation is one successful op, producers wait for room and consumers wait for an element, so neither throughput nor the percentiles count misses
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingQueueBenchmark {
+    
+    private static final int RING_BITS = 12;
+    // producers wait below a full ring, a producer blocked in forceEnqueue when the consumers stop at the end of an iteration never returns
+    private static final long HIGH_WATER = (1 << RING_BITS) / 2;
+    private static final Object ELEMENT = new Object();
+    
+    // one queue shared by every thread of the benchmark
+    @State(Scope.Benchmark)
+    public static class SharedQueue {
+        RingQueue<Object> queue;
+        
+        @Setup(Level.Iteration)
+        public void setup() {
+            queue = new RingQueue<>(RING_BITS);
+        }
+    }
+    
+    // one queue per producer/consumer group
+    @State(Scope.Group)
+    public static class GroupQueue {
+        RingQueue<Object> queue;
+        
+        @Setup(Level.Iteration)
+        public void setup() {
+            queue = new RingQueue<>(RING_BITS);
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class DequeueBuffer {
+        final Object[] out = new Object[16];
+    }
+    
+    // a batched dequeue is one invocation but up to DequeueBuffer.out.length elements, this counts the elements
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class DequeuedElements {
+        public long dequeued;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            dequeued = 0;
+        }
+    }
+    
+    // the waits give up once the iteration is over, the other side may have already stopped
+    private static void produce(RingQueue<Object> queue, Control control) {
+        while (queue.size() >= HIGH_WATER) {
+            if (control.stopMeasurement) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        queue.forceEnqueue(ELEMENT);
+    }
+    
+    private static Object consume(RingQueue<Object> queue, Control control) {
+        @Nullable
+        Object element;
+        while ((element = queue.dequeue()) == null && !control.stopMeasurement) {
+            Thread.onSpinWait();
+        }
+        return element;
+    }
+    
+    // every thread enqueues then dequeues, so all threads contend on both indices, one op is the pair
+    @Benchmark
+    @Threads(1)
+    public Object paired1(SharedQueue state, Control control) {
+        produce(state.queue, control);
+        return consume(state.queue, control);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public Object paired4(SharedQueue state, Control control) {
+        produce(state.queue, control);
+        return consume(state.queue, control);
+    }
+    
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object pairedN(SharedQueue state, Control control) {
+        produce(state.queue, control);
+        return consume(state.queue, control);
+    }
+    
+    // split producers and consumers, the shape the work queues see
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public void spscProduce(GroupQueue state, Control control) {
+        produce(state.queue, control);
+    }
+    
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public Object spscConsume(GroupQueue state, Control control) {
+        return consume(state.queue, control);
+    }
+    
+    @Benchmark
+    @Group("mpmc4")
+    @GroupThreads(4)
+    public void mpmc4Produce(GroupQueue state, Control control) {
+        produce(state.queue, control);
+    }
+    
+    @Benchmark
+    @Group("mpmc4")
+    @GroupThreads(4)
+    public Object mpmc4Consume(GroupQueue state, Control control) {
+        return consume(state.queue, control);
+    }
+    
+    // group sizes are fixed at compile time, so all available threads are split by index instead, even ones produce and odd ones consume
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object mpmcN(SharedQueue state, Control control, ThreadParams thread) {
+        if ((thread.getThreadIndex() & 1) == 0) {
+            produce(state.queue, control);
+            return null;
+        }
+        return consume(state.queue, control);
+    }
+    
+    // the consumer side of the worker loop, claiming a run of elements with one CAS
+    // throughput only, dequeued is per element and aux counters are only reported for throughput and average time
+    @Benchmark
+    @Group("mpmc4Batched")
+    @GroupThreads(4)
+    @BenchmarkMode(Mode.Throughput)
+    public void mpmc4BatchedProduce(GroupQueue state, Control control) {
+        produce(state.queue, control);
+    }
+    
+    @Benchmark
+    @Group("mpmc4Batched")
+    @GroupThreads(4)
+    @BenchmarkMode(Mode.Throughput)
+    public int mpmc4BatchedConsume(GroupQueue state, DequeueBuffer buffer, DequeuedElements counters, Control control) {
+        int count;
+        while ((count = state.queue.dequeueMany(buffer.out, null, buffer.out.length)) == 0 && !control.stopMeasurement) {
+            Thread.onSpinWait();
+        }
+        counters.dequeued += count;
+        return count;
+    }
+}
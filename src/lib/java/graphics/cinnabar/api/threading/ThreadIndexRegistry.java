@@ -1,8 +1,11 @@
 package graphics.cinnabar.api.threading;
 
 import graphics.cinnabar.api.annotations.Internal;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 import org.jetbrains.annotations.Nullable;
 
+import static graphics.cinnabar.lib.CinnabarLib.CINNABAR_LIB_LOG;
+
 
 @Internal
 public class ThreadIndexRegistry {
@@ -11,18 +14,32 @@ public class ThreadIndexRegistry {
     public static final int mainThreadCount = 1;
     // reserve one for the render thread, server thread, and OS
     // granted, i cant control other mods making threads too
-    public static final int backgroundWorkThreadCount = Math.max(0, Runtime.getRuntime().availableProcessors() - 3);
+    // this is the upper bound, QueueSystem grows and shrinks the live worker count between the min and this
+    public static final int backgroundWorkThreadCount = Math.max(0, Integer.getInteger("cinnabar.maxWorkerThreads", Runtime.getRuntime().availableProcessors() - 3));
+    public static final int minBackgroundWorkThreadCount = Math.clamp(Integer.getInteger("cinnabar.minWorkerThreads", 1), 0, backgroundWorkThreadCount);
     // a single cleaner thread should be more than enough, this is where queued destroys will be called from
     public static final int backgroundCleanerThreadCount = 1;
-    public static final int totalThreads = mainThreadCount + backgroundWorkThreadCount + backgroundCleanerThreadCount;
+    // slots for ThreadIndexLease, external threads attaching for a scoped region, kept at the top of the index space
+    public static final int leasedThreadCount = Math.max(0, Integer.getInteger("cinnabar.threadIndexLeases", 8));
+    public static final int totalThreads = mainThreadCount + backgroundWorkThreadCount + backgroundCleanerThreadCount + leasedThreadCount;
+    public static final int firstLeasedIndex = totalThreads - leasedThreadCount;
     
     static {
         ThreadIndex.Bootstrapper.threadCount = totalThreads;
         ThreadIndex.registryLookupFunc = ThreadIndexRegistry::currentThreadIndex;
+        ThreadIndexLease.leaseFunc = ThreadIndexRegistry::leaseIndex;
+        ThreadIndexLease.releaseFunc = ThreadIndexRegistry::releaseLease;
     }
     
     private static final ThreadLocal<@Nullable ThreadIndex> threadIndexThreadLocal = new ThreadLocal<>();
-    private static int nextVal = 0;
+    // indices are handed out lowest first, and returned when a thread unregisters, so the index space never grows past totalThreads
+    private static final boolean[] indexInUse = new boolean[totalThreads];
+    // owning thread of each lease slot, so slots of threads that died without detaching can be reclaimed
+    private static final @Nullable Thread[] leaseOwners = new Thread[leasedThreadCount];
+    // where each lease was attached, reported if it's reclaimed from a dead thread, leases are rare enough to always capture it
+    private static final @Nullable Throwable[] leaseSites = new Throwable[leasedThreadCount];
+    // run on the releasing thread before its index is handed back, for dropping thread local caches of per index objects
+    private static final ReferenceArrayList<Runnable> releaseListeners = new ReferenceArrayList<>();
     
     public static ThreadIndex currentThreadIndex() {
         @Nullable
@@ -39,11 +56,97 @@ public class ThreadIndexRegistry {
         if (existingIndex != null) {
             return existingIndex;
         }
-        if (nextVal == totalThreads) {
-            throw new IllegalStateException("Too many threads attempted to register a threadIndex");
+        for (int i = 0; i < firstLeasedIndex; i++) {
+            if (!indexInUse[i]) {
+                indexInUse[i] = true;
+                final var index = new ThreadIndex(i);
+                threadIndexThreadLocal.set(index);
+                return index;
+            }
+        }
+        throw new IllegalStateException("Too many threads attempted to register a threadIndex");
+    }
+    
+    // the thread must not touch anything keyed by its index after this, the next thread to register may get it
+    public static synchronized void unregisterThisThread() {
+        @Nullable
+        final var existingIndex = threadIndexThreadLocal.get();
+        if (existingIndex == null) {
+            return;
+        }
+        if (existingIndex.equals(ThreadIndex.MAIN) || existingIndex.equals(ThreadIndex.CLEANUP)) {
+            throw new IllegalStateException("Main and cleanup thread indices cannot be released");
+        }
+        if (existingIndex.index() >= firstLeasedIndex) {
+            throw new IllegalStateException("Leased thread indices must be released through their lease");
+        }
+        releaseCurrentThreadIndex(existingIndex);
+    }
+    
+    private static void releaseCurrentThreadIndex(ThreadIndex index) {
+        for (int i = 0; i < releaseListeners.size(); i++) {
+            releaseListeners.get(i).run();
+        }
+        indexInUse[index.index()] = false;
+        threadIndexThreadLocal.remove();
+    }
+    
+    public static synchronized void addReleaseListener(Runnable listener) {
+        releaseListeners.add(listener);
+    }
+    
+    public static synchronized boolean isRegistered(int index) {
+        return indexInUse[index];
+    }
+    
+    public static boolean isLeasedIndex(int index) {
+        return index >= firstLeasedIndex;
+    }
+    
+    @Nullable
+    private static synchronized ThreadIndex leaseIndex() {
+        assert threadIndexThreadLocal.get() == null;
+        do {
+            for (int i = 0; i < leasedThreadCount; i++) {
+                if (leaseOwners[i] == null) {
+                    leaseOwners[i] = Thread.currentThread();
+                    leaseSites[i] = new Throwable("ThreadIndexLease attached");
+                    indexInUse[firstLeasedIndex + i] = true;
+                    final var index = new ThreadIndex(firstLeasedIndex + i);
+                    threadIndexThreadLocal.set(index);
+                    return index;
+                }
+            }
+        } while (reclaimDeadLeases());
+        return null;
+    }
+    
+    // only checked when the table is full, a dead thread's thread locals went with it, so the slot can just be freed
+    // with assertions enabled, a leak fails the attach that found it, after every dead slot has been reclaimed
+    private static boolean reclaimDeadLeases() {
+        boolean anyReclaimed = false;
+        for (int i = 0; i < leasedThreadCount; i++) {
+            @Nullable
+            final var owner = leaseOwners[i];
+            if (owner != null && !owner.isAlive()) {
+                CINNABAR_LIB_LOG.warn("ThreadIndex {} leaked, thread \"{}\" exited without closing its ThreadIndexLease", firstLeasedIndex + i, owner.getName(), leaseSites[i]);
+                leaseOwners[i] = null;
+                leaseSites[i] = null;
+                indexInUse[firstLeasedIndex + i] = false;
+                anyReclaimed = true;
+            }
+        }
+        assert !anyReclaimed : "ThreadIndexLease leaked, attach sites logged above";
+        return anyReclaimed;
+    }
+    
+    private static synchronized void releaseLease(ThreadIndex index) {
+        final var slot = index.index() - firstLeasedIndex;
+        if (slot < 0 || leaseOwners[slot] != Thread.currentThread() || !index.equals(threadIndexThreadLocal.get())) {
+            throw new IllegalStateException("ThreadIndex lease released by a thread that doesn't own it");
         }
-        final var index = new ThreadIndex(nextVal++);
-        threadIndexThreadLocal.set(index);
-        return index;
+        releaseCurrentThreadIndex(index);
+        leaseOwners[slot] = null;
+        leaseSites[slot] = null;
     }
 }
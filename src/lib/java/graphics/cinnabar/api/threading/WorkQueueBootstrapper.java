@@ -4,10 +4,12 @@ import graphics.cinnabar.lib.threading.QueueSystem;
 
 public class WorkQueueBootstrapper {
     public static void bootstrap() {
-        IWorkQueue.Bootstrapper.MAIN_THREAD = QueueSystem.createMainThreadQueue();
-        IWorkQueue.Bootstrapper.BACKGROUND_CLEANUP = QueueSystem.createCleanupThreadQueue();
-        IWorkQueue.Bootstrapper.BACKGROUND_THREADS = QueueSystem.createBackgroundThreadsQueue();
-        IWorkQueue.Bootstrapper.AFTER_END_OF_GPU_FRAME = QueueSystem.createCleanupThreadQueue();
+        IWorkQueue.Bootstrapper.MAIN_THREAD = QueueSystem.createMainThreadQueue("MainThread");
+        IWorkQueue.Bootstrapper.BACKGROUND_CLEANUP = QueueSystem.createCleanupThreadQueue("BackgroundCleanup");
+        IWorkQueue.Bootstrapper.BACKGROUND_THREADS = QueueSystem.createBackgroundThreadsQueue("BackgroundThreads");
+        IWorkQueue.Bootstrapper.AFTER_END_OF_GPU_FRAME = QueueSystem.createCleanupThreadQueue("AfterEndOfGpuFrame");
+        
+        WorkFuture.helpWhileWaitingFunc = QueueSystem::onSemaphoreSpinWait;
         
         QueueSystem.startThreads();
     }
@@ -1,18 +1,38 @@
 package graphics.cinnabar.lib;
 
 import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.threading.ThreadIndexRegistry;
 import graphics.cinnabar.api.util.Destroyable;
 
 import static org.lwjgl.util.shaderc.Shaderc.*;
 
 public class ThreadGlobals implements Destroyable {
     
-    private static final ThreadLocal<ThreadGlobals> globals = ThreadLocal.withInitial(ThreadGlobals::new);
+    // owned by the thread index when there is one, so a recycled worker index reuses the compilers rather than leaking them
+    private static final ThreadGlobals[] indexedGlobals = new ThreadGlobals[ThreadIndexRegistry.totalThreads];
+    private static final ThreadLocal<ThreadGlobals> globals = ThreadLocal.withInitial(ThreadGlobals::forCurrentThread);
+    
+    static {
+        ThreadIndexRegistry.addReleaseListener(globals::remove);
+    }
     
     public static ThreadGlobals get() {
         return globals.get();
     }
     
+    private static ThreadGlobals forCurrentThread() {
+        final var threadIndex = ThreadIndexRegistry.currentThreadIndex();
+        if (!threadIndex.valid()) {
+            return new ThreadGlobals();
+        }
+        synchronized (indexedGlobals) {
+            if (indexedGlobals[threadIndex.index()] == null) {
+                indexedGlobals[threadIndex.index()] = new ThreadGlobals();
+            }
+            return indexedGlobals[threadIndex.index()];
+        }
+    }
+    
     public final long ShaderCCompiler = shaderc_compiler_initialize();
     public final long ShaderCCompilerVKOptions = shaderc_compile_options_initialize();
     public final long ShaderCCompilerGLOptions = shaderc_compile_options_initialize();
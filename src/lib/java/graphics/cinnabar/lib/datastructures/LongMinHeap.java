@@ -0,0 +1,128 @@
+package graphics.cinnabar.lib.datastructures;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+// binary min-heap of long keys with a value riding along, parallel arrays so pushes don't allocate once grown
+// not thread safe, callers are expected to hold their own (small) lock
+public class LongMinHeap<T> {
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    
+    public LongMinHeap() {
+        this(16);
+    }
+    
+    public LongMinHeap(int initialCapacity) {
+        keys = new long[Math.max(1, initialCapacity)];
+        values = new Object[Math.max(1, initialCapacity)];
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    // Long.MAX_VALUE if empty
+    public long peekKey() {
+        return size == 0 ? Long.MAX_VALUE : keys[0];
+    }
+    
+    @Nullable
+    public T peekValue() {
+        //noinspection unchecked
+        return size == 0 ? null : (T) values[0];
+    }
+    
+    public long keyAt(int index) {
+        return keys[index];
+    }
+    
+    public T valueAt(int index) {
+        //noinspection unchecked
+        return (T) values[index];
+    }
+    
+    public void push(long key, T value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int index = size++;
+        while (index > 0) {
+            final var parent = (index - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            keys[index] = keys[parent];
+            values[index] = values[parent];
+            index = parent;
+        }
+        keys[index] = key;
+        values[index] = value;
+    }
+    
+    public T pop() {
+        if (size == 0) {
+            throw new IllegalStateException("Heap empty");
+        }
+        //noinspection unchecked
+        final var top = (T) values[0];
+        removeAt(0);
+        return top;
+    }
+    
+    // removes the entry at the given array index, order of the remaining entries is maintained
+    public void removeAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        size--;
+        final var lastKey = keys[size];
+        final var lastValue = values[size];
+        values[size] = null;
+        if (index == size) {
+            return;
+        }
+        // the moved entry may need to go either direction
+        int slot = index;
+        while (slot > 0) {
+            final var parent = (slot - 1) >>> 1;
+            if (keys[parent] <= lastKey) {
+                break;
+            }
+            keys[slot] = keys[parent];
+            values[slot] = values[parent];
+            slot = parent;
+        }
+        if (slot == index) {
+            while (true) {
+                int child = slot * 2 + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= lastKey) {
+                    break;
+                }
+                keys[slot] = keys[child];
+                values[slot] = values[child];
+                slot = child;
+            }
+        }
+        keys[slot] = lastKey;
+        values[slot] = lastValue;
+    }
+    
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
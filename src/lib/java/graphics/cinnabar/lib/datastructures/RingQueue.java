@@ -20,7 +20,11 @@ public class RingQueue<T> {
     private final long RING_INDEX_MASK;
     
     private final Object[] ringObjects;
+    // versions are (lap * 2) while a slot is free for that lap's producer, and (lap * 2 + 1) while full
+    // indices are longs, so even at a billion ops a second it takes ~290 years before the versions overflow
     private final long[] ringVersions;
+    // enqueue System.nanoTime() per slot, only when requested, used for queue latency telemetry
+    private final long @Nullable [] ringTimestamps;
     
     // this is done as an array with indices 8 and 16 used to forcefully push these onto their own cache lines
     private static final int PUSH_ARRAY_INDEX = 8;
@@ -28,11 +32,25 @@ public class RingQueue<T> {
     private final long[] pushPopIndices = new long[24];
     
     public RingQueue(int ringBits) {
+        this(ringBits, false);
+    }
+    
+    public RingQueue(int ringBits, boolean trackEnqueueTime) {
         RING_SIZE_BITS = ringBits;
         RING_SIZE = 1 << ringBits;
         RING_INDEX_MASK = RING_SIZE - 1;
         ringObjects = new Object[RING_SIZE];
         ringVersions = new long[RING_SIZE];
+        ringTimestamps = trackEnqueueTime ? new long[RING_SIZE] : null;
+    }
+    
+    // approximate, only exact when there are no concurrent enqueues or dequeues
+    @ThreadSafety.Many
+    public long size() {
+        VarHandle.acquireFence();
+        final var popIndex = (long) LONG_ARRAY_VAR_HANDLE.getOpaque(pushPopIndices, POP_ARRAY_INDEX);
+        final var pushIndex = (long) LONG_ARRAY_VAR_HANDLE.getOpaque(pushPopIndices, PUSH_ARRAY_INDEX);
+        return Math.max(0, pushIndex - popIndex);
     }
     
     @ThreadSafety.Many
@@ -45,6 +63,11 @@ public class RingQueue<T> {
             VarHandle.acquireFence();
             Thread.onSpinWait();
         }
+        // the previous lap's consumer nulls the slot before handing it back, anything else means two producers own the slot
+        assert OBJECT_ARRAY_VAR_HANDLE.getAcquire(ringObjects, ringIndex) == null : "RingQueue slot reused before being emptied";
+        if (ringTimestamps != null) {
+            ringTimestamps[ringIndex] = System.nanoTime();
+        }
         VarHandle.releaseFence();
         OBJECT_ARRAY_VAR_HANDLE.setRelease(ringObjects, ringIndex, data);
         LONG_ARRAY_VAR_HANDLE.setRelease(ringVersions, ringIndex, expectedVersion + 1);
@@ -54,6 +77,7 @@ public class RingQueue<T> {
     public void forceEnqueueMany(List<@Nullable T> data) {
         final var baseIndex = (long) LONG_ARRAY_VAR_HANDLE.getAndAddAcquire(pushPopIndices, PUSH_ARRAY_INDEX, data.size());
         final var count = data.size();
+        final var timestamp = ringTimestamps != null ? System.nanoTime() : 0;
         for (int i = 0; i < count; i++) {
             final var index = baseIndex + i;
             final var ringIndex = (int) (index & RING_INDEX_MASK);
@@ -63,7 +87,11 @@ public class RingQueue<T> {
                 VarHandle.acquireFence();
                 Thread.onSpinWait();
             }
+            assert OBJECT_ARRAY_VAR_HANDLE.getAcquire(ringObjects, ringIndex) == null : "RingQueue slot reused before being emptied";
             
+            if (ringTimestamps != null) {
+                ringTimestamps[ringIndex] = timestamp;
+            }
             VarHandle.releaseFence();
             OBJECT_ARRAY_VAR_HANDLE.setRelease(ringObjects, ringIndex, data.get(i));
             LONG_ARRAY_VAR_HANDLE.setRelease(ringVersions, ringIndex, expectedVersion + 1);
@@ -73,6 +101,56 @@ public class RingQueue<T> {
     @Nullable
     @ThreadSafety.Many
     public T dequeue() {
+        return dequeue(null, 0);
+    }
+    
+    // claims up to max consecutive elements with a single CAS, returns how many were written to out
+    // if enqueue times are tracked, each element's enqueue time is written to the matching index of enqueueTimesOut
+    @ThreadSafety.Many
+    public int dequeueMany(@Nullable Object[] out, long @Nullable [] enqueueTimesOut, int max) {
+        max = Math.min(Math.min(max, out.length), RING_SIZE);
+        VarHandle.acquireFence();
+        final var index = (long) LONG_ARRAY_VAR_HANDLE.get(pushPopIndices, POP_ARRAY_INDEX);
+        int count = 0;
+        while (count < max) {
+            final var elementIndex = index + count;
+            final var ringIndex = (int) (elementIndex & RING_INDEX_MASK);
+            final var expectedVersion = (elementIndex >> RING_SIZE_BITS) * 2 + 1;
+            if ((long) LONG_ARRAY_VAR_HANDLE.getAcquire(ringVersions, ringIndex) != expectedVersion) {
+                break;
+            }
+            count++;
+        }
+        if (count == 0) {
+            Thread.onSpinWait();
+            return 0;
+        }
+        VarHandle.acquireFence();
+        if (index != (long) LONG_ARRAY_VAR_HANDLE.compareAndExchange(pushPopIndices, POP_ARRAY_INDEX, index, index + count)) {
+            Thread.onSpinWait();
+            return 0;
+        }
+        VarHandle.acquireFence();
+        for (int i = 0; i < count; i++) {
+            final var elementIndex = index + i;
+            final var ringIndex = (int) (elementIndex & RING_INDEX_MASK);
+            final var expectedVersion = (elementIndex >> RING_SIZE_BITS) * 2 + 1;
+            assert (long) LONG_ARRAY_VAR_HANDLE.getAcquire(ringVersions, ringIndex) == expectedVersion : "RingQueue slot changed after being claimed";
+            out[i] = OBJECT_ARRAY_VAR_HANDLE.get(ringObjects, ringIndex);
+            if (ringTimestamps != null && enqueueTimesOut != null) {
+                enqueueTimesOut[i] = ringTimestamps[ringIndex];
+            }
+            VarHandle.releaseFence();
+            OBJECT_ARRAY_VAR_HANDLE.set(ringObjects, ringIndex, null);
+            LONG_ARRAY_VAR_HANDLE.set(ringVersions, ringIndex, expectedVersion + 1);
+        }
+        return count;
+    }
+    
+    // if enqueue times are tracked, and an element is dequeued, its enqueue time is written to enqueueTimeOut[enqueueTimeOutIndex]
+    @Nullable
+    @ThreadSafety.Many
+    public T dequeue(long @Nullable [] enqueueTimeOut, int enqueueTimeOutIndex) {
         VarHandle.acquireFence();
         final var index = (long) LONG_ARRAY_VAR_HANDLE.get(pushPopIndices, POP_ARRAY_INDEX);
         final var ringIndex = (int) (index & RING_INDEX_MASK);
@@ -89,8 +167,14 @@ public class RingQueue<T> {
             Thread.onSpinWait();
             return null;
         }
+        // claimed, nothing else can touch this slot until its version is bumped below
+        assert (long) LONG_ARRAY_VAR_HANDLE.getAcquire(ringVersions, ringIndex) == expectedVersion : "RingQueue slot changed after being claimed";
+        assert index < (long) LONG_ARRAY_VAR_HANDLE.getAcquire(pushPopIndices, PUSH_ARRAY_INDEX) : "RingQueue popped past push index";
         VarHandle.acquireFence();
         final var data = OBJECT_ARRAY_VAR_HANDLE.get(ringObjects, ringIndex);
+        if (ringTimestamps != null && enqueueTimeOut != null) {
+            enqueueTimeOut[enqueueTimeOutIndex] = ringTimestamps[ringIndex];
+        }
         VarHandle.releaseFence();
         OBJECT_ARRAY_VAR_HANDLE.set(ringObjects, ringIndex, null);
         LONG_ARRAY_VAR_HANDLE.set(ringVersions, ringIndex, expectedVersion + 1);
@@ -102,6 +186,12 @@ public class RingQueue<T> {
     @Nullable
     @ThreadSafety.Many
     public LongReferencePair<@Nullable T> conditionalDequeue(Predicate<@Nullable T> condition) {
+        return conditionalDequeue(condition, null, 0);
+    }
+    
+    @Nullable
+    @ThreadSafety.Many
+    public LongReferencePair<@Nullable T> conditionalDequeue(Predicate<@Nullable T> condition, long @Nullable [] enqueueTimeOut, int enqueueTimeOutIndex) {
         VarHandle.acquireFence();
         final var index = (long) LONG_ARRAY_VAR_HANDLE.get(pushPopIndices, POP_ARRAY_INDEX);
         final var ringIndex = (int) (index & RING_INDEX_MASK);
@@ -124,6 +214,11 @@ public class RingQueue<T> {
             Thread.onSpinWait();
             return null;
         }
+        assert (long) LONG_ARRAY_VAR_HANDLE.getAcquire(ringVersions, ringIndex) == expectedVersion : "RingQueue slot changed after being claimed";
+        assert OBJECT_ARRAY_VAR_HANDLE.getAcquire(ringObjects, ringIndex) == data : "RingQueue slot data changed after condition check";
+        if (ringTimestamps != null && enqueueTimeOut != null) {
+            enqueueTimeOut[enqueueTimeOutIndex] = ringTimestamps[ringIndex];
+        }
         VarHandle.releaseFence();
         OBJECT_ARRAY_VAR_HANDLE.set(ringObjects, ringIndex, null);
         LONG_ARRAY_VAR_HANDLE.set(ringVersions, ringIndex, expectedVersion + 1);
@@ -2,25 +2,38 @@ package graphics.cinnabar.lib.threading;
 
 import graphics.cinnabar.api.threading.ISemaphore;
 import graphics.cinnabar.api.threading.ThreadIndex;
+import graphics.cinnabar.lib.datastructures.LongMinHeap;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
 
 public class AtomicQueueSemaphore implements ISemaphore {
     
     private static final VarHandle VALUE_VAR_HANDLE;
+    private static final VarHandle LOWEST_WAITER_VAR_HANDLE;
     
     static {
         try {
-            VALUE_VAR_HANDLE = MethodHandles.lookup().findVarHandle(AtomicQueueSemaphore.class, "value", long.class);
+            final var lookup = MethodHandles.lookup();
+            VALUE_VAR_HANDLE = lookup.findVarHandle(AtomicQueueSemaphore.class, "value", long.class);
+            LOWEST_WAITER_VAR_HANDLE = lookup.findVarHandle(AtomicQueueSemaphore.class, "lowestWaiter", long.class);
         } catch (NoSuchFieldException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
     }
     
+    // bounds how long a parked thread can miss new work for, new work wakes the queue threads, not parked waiters
+    private static final long PARK_NANOS = 1_000_000;
+    
     // its used, indirectly, thx VarHandle
     @SuppressWarnings("unused")
     private long value;
+    // smallest target in the waiter heap, lets signals skip the lock when nothing can be woken
+    @SuppressWarnings("unused")
+    private long lowestWaiter = Long.MAX_VALUE;
+    // values are either a Runnable to call, or a Thread to unpark
+    private final LongMinHeap<Object> waiters = new LongMinHeap<>(4);
     
     @Override
     public long value() {
@@ -33,16 +46,96 @@ public class AtomicQueueSemaphore implements ISemaphore {
             return;
         }
         final var threadIndex = ThreadIndex.currentThreadIndex();
+        final var thread = Thread.currentThread();
+        // negative timeout waits forever, same as HgSemaphore
+        final var timed = timeout >= 0;
+        final var deadline = timed ? System.nanoTime() + timeout : 0;
         while (value() < value) {
-            QueueSystem.onSemaphoreSpinWait(threadIndex);
+            final var remaining = timed ? deadline - System.nanoTime() : PARK_NANOS;
+            if (remaining <= 0) {
+                return;
+            }
+            if (QueueSystem.onSemaphoreSpinWait(threadIndex) || threadIndex.isMainThread()) {
+                // main thread queues have no wake, so it can never sleep here
+                continue;
+            }
+            if (addWaiter(value, thread)) {
+                LockSupport.parkNanos(this, Math.min(PARK_NANOS, remaining));
+                removeWaiter(thread);
+            }
+        }
+    }
+    
+    // calls wake once the value reaches the target, immediately (on this thread) if it already has
+    void wakeOnValue(long value, Runnable wake) {
+        if (!addWaiter(value, wake)) {
+            wake.run();
+        }
+    }
+    
+    // false if the value was already reached, in which case nothing is left registered
+    private boolean addWaiter(long target, Object waiter) {
+        synchronized (waiters) {
+            waiters.push(target, waiter);
+            LOWEST_WAITER_VAR_HANDLE.setVolatile(this, waiters.peekKey());
+        }
+        // pairs with the volatile write+read in singlaValue, one side is guaranteed to see the other
+        if ((long) VALUE_VAR_HANDLE.getVolatile(this) >= target) {
+            if (waiter instanceof Thread thread) {
+                removeWaiter(thread);
+                return false;
+            }
+            synchronized (waiters) {
+                for (int i = 0; i < waiters.size(); i++) {
+                    if (waiters.valueAt(i) == waiter && waiters.keyAt(i) == target) {
+                        waiters.removeAt(i);
+                        LOWEST_WAITER_VAR_HANDLE.setVolatile(this, waiters.peekKey());
+                        return false;
+                    }
+                }
+            }
+            // a signal already took it, and will run it
+            return true;
+        }
+        return true;
+    }
+    
+    private void removeWaiter(Thread thread) {
+        synchronized (waiters) {
+            for (int i = 0; i < waiters.size(); i++) {
+                if (waiters.valueAt(i) == thread) {
+                    waiters.removeAt(i);
+                    LOWEST_WAITER_VAR_HANDLE.setVolatile(this, waiters.peekKey());
+                    return;
+                }
+            }
         }
     }
     
     @Override
     public void singlaValue(long value) {
-        VALUE_VAR_HANDLE.setRelease(this, value);
-        // wake workers, this may have unblocked a queue
-        // TODO: is there a better way to handle this?
-        QueueSystem.wakeWorkers(Integer.MAX_VALUE);
+        VALUE_VAR_HANDLE.setVolatile(this, value);
+        if ((long) LOWEST_WAITER_VAR_HANDLE.getVolatile(this) > value) {
+            // nobody is waiting for this value yet
+            return;
+        }
+        // only the waiters whose target was reached get woken, later targets stay asleep
+        // wakes happen outside the lock, one at a time, so a wake that registers another waiter doesn't deadlock
+        while (true) {
+            final Object waiter;
+            synchronized (waiters) {
+                if (waiters.peekKey() > value) {
+                    LOWEST_WAITER_VAR_HANDLE.setVolatile(this, waiters.peekKey());
+                    return;
+                }
+                waiter = waiters.pop();
+                LOWEST_WAITER_VAR_HANDLE.setVolatile(this, waiters.peekKey());
+            }
+            if (waiter instanceof Thread thread) {
+                LockSupport.unpark(thread);
+            } else {
+                ((Runnable) waiter).run();
+            }
+        }
     }
 }
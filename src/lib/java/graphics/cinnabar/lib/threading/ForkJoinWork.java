@@ -0,0 +1,77 @@
+package graphics.cinnabar.lib.threading;
+
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.threading.IWorkQueue;
+import graphics.cinnabar.api.threading.ThreadIndex;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// the forked half of a forkJoin, whoever claims it first runs it, either a queue thread or the joining thread
+final class ForkJoinWork implements IWorkQueue.Work {
+    
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    
+    private static final VarHandle STATE_VAR_HANDLE;
+    
+    static {
+        try {
+            STATE_VAR_HANDLE = MethodHandles.lookup().findVarHandle(ForkJoinWork.class, "state", int.class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private final IWorkQueue.Work work;
+    // its used, indirectly, thx VarHandle
+    @SuppressWarnings("unused")
+    private int state = STATE_PENDING;
+    @Nullable
+    private Throwable exception;
+    
+    ForkJoinWork(IWorkQueue.Work work) {
+        this.work = work;
+    }
+    
+    @Override
+    @ThreadSafety.Many
+    public void accept(ThreadIndex threadIndex) {
+        if (!STATE_VAR_HANDLE.compareAndSet(this, STATE_PENDING, STATE_RUNNING)) {
+            // already claimed by the joining thread, this is just the stale queue entry
+            return;
+        }
+        try {
+            work.accept(threadIndex);
+        } catch (Throwable e) {
+            exception = e;
+        }
+        STATE_VAR_HANDLE.setRelease(this, STATE_DONE);
+    }
+    
+    @Override
+    public Class<?> costClass() {
+        return work.costClass();
+    }
+    
+    void join(ThreadIndex threadIndex, boolean canSteal) {
+        if (canSteal) {
+            // nothing picked it up yet, faster to run it here than wait for it
+            accept(threadIndex);
+        }
+        while ((int) STATE_VAR_HANDLE.getAcquire(this) != STATE_DONE) {
+            QueueSystem.onSemaphoreSpinWait(threadIndex);
+        }
+        if (exception != null) {
+            if (exception instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (exception instanceof Error error) {
+                throw error;
+            }
+            throw new RuntimeException(exception);
+        }
+    }
+}
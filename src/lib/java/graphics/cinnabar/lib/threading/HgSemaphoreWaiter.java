@@ -0,0 +1,198 @@
+package graphics.cinnabar.lib.threading;
+
+import graphics.cinnabar.api.hg.HgDevice;
+import graphics.cinnabar.api.hg.HgSemaphore;
+import graphics.cinnabar.lib.datastructures.LongMinHeap;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// one per HgDevice, owns a thread that sits in vkWaitSemaphores (ANY) on the lowest pending target of every semaphore with waiters
+// registration is a lock free push, the thread is kicked out of the wait by host signaling a private wake semaphore
+// everything past the push is only touched by the wait thread, so there are no locks there either
+final class HgSemaphoreWaiter {
+    
+    private static final VarHandle INCOMING_VAR_HANDLE;
+    private static final VarHandle WAKE_SIGNALED_VAR_HANDLE;
+    private static final VarHandle WAKE_TARGET_VAR_HANDLE;
+    
+    static {
+        try {
+            final var lookup = MethodHandles.lookup();
+            INCOMING_VAR_HANDLE = lookup.findVarHandle(HgSemaphoreWaiter.class, "incoming", Registration.class);
+            WAKE_SIGNALED_VAR_HANDLE = lookup.findVarHandle(HgSemaphoreWaiter.class, "wakeSignaled", boolean.class);
+            WAKE_TARGET_VAR_HANDLE = lookup.findVarHandle(HgSemaphoreWaiter.class, "wakeTarget", long.class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private static final class Registration {
+        private final HgSemaphore semaphore;
+        private final long value;
+        private final Runnable callback;
+        @Nullable
+        private Registration next;
+        
+        private Registration(HgSemaphore semaphore, long value, Runnable callback) {
+            this.semaphore = semaphore;
+            this.value = value;
+            this.callback = callback;
+        }
+    }
+    
+    // all the pending targets of a single semaphore, only the lowest is waited on
+    private static final class Slot {
+        private final HgSemaphore semaphore;
+        private final LongMinHeap<Runnable> targets = new LongMinHeap<>(4);
+        // one per slot for its whole life, only the target changes
+        private final HgSemaphore.Op waitOp;
+        
+        private Slot(HgSemaphore semaphore) {
+            this.semaphore = semaphore;
+            this.waitOp = new HgSemaphore.Op(semaphore, 0);
+        }
+        
+        private HgSemaphore.Op waitOp() {
+            return waitOp.value(targets.peekKey());
+        }
+    }
+    
+    final HgDevice device;
+    private final HgSemaphore wakeSemaphore;
+    private final Thread thread;
+    
+    // treiber stack of new registrations, drained by the wait thread
+    // its used, indirectly, thx VarHandle
+    @Nullable
+    @SuppressWarnings("unused")
+    private Registration incoming;
+    @SuppressWarnings("unused")
+    private boolean wakeSignaled;
+    // only advanced by the wait thread, and only after the wake semaphore has reached it
+    @SuppressWarnings("unused")
+    private long wakeTarget = 1;
+    private volatile boolean shutdown;
+    
+    // only accessed from the wait thread
+    private final ReferenceArrayList<Slot> slots = new ReferenceArrayList<>();
+    private final ReferenceArrayList<HgSemaphore.Op> waitOps = new ReferenceArrayList<>();
+    private final HgSemaphore.Op wakeOp;
+    
+    HgSemaphoreWaiter(HgDevice device, int waiterIndex) {
+        this.device = device;
+        this.wakeSemaphore = device.createSemaphore(0);
+        this.wakeOp = new HgSemaphore.Op(wakeSemaphore, 1);
+        thread = new Thread(this::waitThreadFunc);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.setName("CinnabarSemaphoreWait" + waiterIndex);
+        thread.start();
+    }
+    
+    void register(HgSemaphore semaphore, long value, Runnable callback) {
+        final var registration = new Registration(semaphore, value, callback);
+        @Nullable
+        Registration head = (Registration) INCOMING_VAR_HANDLE.getAcquire(this);
+        while (true) {
+            registration.next = head;
+            final var witnessed = (Registration) INCOMING_VAR_HANDLE.compareAndExchangeRelease(this, head, registration);
+            if (witnessed == head) {
+                break;
+            }
+            head = witnessed;
+        }
+        requestWake();
+    }
+    
+    private void requestWake() {
+        // only one registration per wait gets to signal, the rest see the flag already set
+        if (WAKE_SIGNALED_VAR_HANDLE.compareAndSet(this, false, true)) {
+            wakeSemaphore.singlaValue((long) WAKE_TARGET_VAR_HANDLE.getVolatile(this));
+        }
+    }
+    
+    // blocks until every pending registration has fired, and the wait thread exits
+    void shutdown() {
+        shutdown = true;
+        requestWake();
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        wakeSemaphore.destroy();
+    }
+    
+    private void waitThreadFunc() {
+        try {
+            while (true) {
+                final var wakeTarget = (long) WAKE_TARGET_VAR_HANDLE.getVolatile(this);
+                if ((boolean) WAKE_SIGNALED_VAR_HANDLE.getVolatile(this) && wakeSemaphore.value() >= wakeTarget) {
+                    // the signal has landed, re-arm for the next one
+                    // target first, so the next registration to win the flag reads the new one
+                    WAKE_TARGET_VAR_HANDLE.setVolatile(this, wakeTarget + 1);
+                    wakeOp.value(wakeTarget + 1);
+                    WAKE_SIGNALED_VAR_HANDLE.setVolatile(this, false);
+                }
+                
+                drainIncoming();
+                fireReached();
+                
+                if (slots.isEmpty() && shutdown && INCOMING_VAR_HANDLE.getVolatile(this) == null) {
+                    return;
+                }
+                
+                waitOps.clear();
+                for (int i = 0; i < slots.size(); i++) {
+                    waitOps.add(slots.get(i).waitOp());
+                }
+                waitOps.add(wakeOp);
+                device.waitSemaphores(waitOps, -1, true);
+                
+                fireReached();
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+    
+    private void drainIncoming() {
+        @Nullable
+        var registration = (Registration) INCOMING_VAR_HANDLE.getAndSetAcquire(this, null);
+        while (registration != null) {
+            @Nullable
+            Slot slot = null;
+            for (int i = 0; i < slots.size(); i++) {
+                if (slots.get(i).semaphore == registration.semaphore) {
+                    slot = slots.get(i);
+                    break;
+                }
+            }
+            if (slot == null) {
+                slot = new Slot(registration.semaphore);
+                slots.add(slot);
+            }
+            slot.targets.push(registration.value, registration.callback);
+            registration = registration.next;
+        }
+    }
+    
+    private void fireReached() {
+        for (int i = slots.size() - 1; i >= 0; i--) {
+            final var slot = slots.get(i);
+            final var value = slot.semaphore.value();
+            while (!slot.targets.isEmpty() && slot.targets.peekKey() <= value) {
+                slot.targets.pop().run();
+            }
+            if (slot.targets.isEmpty()) {
+                // don't hold onto semaphores that may be destroyed
+                slots.remove(i);
+            }
+        }
+    }
+}
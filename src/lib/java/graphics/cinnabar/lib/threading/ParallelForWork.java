@@ -0,0 +1,123 @@
+package graphics.cinnabar.lib.threading;
+
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.threading.IWorkQueue;
+import graphics.cinnabar.api.threading.ThreadIndex;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// a single instance of this is enqueued once per helper thread, each one claims chunks until the range runs out
+// so the only allocation per parallelFor is this object
+final class ParallelForWork implements IWorkQueue.Work {
+    
+    private static final VarHandle NEXT_VAR_HANDLE;
+    private static final VarHandle PENDING_VAR_HANDLE;
+    private static final VarHandle EXCEPTION_VAR_HANDLE;
+    
+    static {
+        try {
+            final var lookup = MethodHandles.lookup();
+            NEXT_VAR_HANDLE = lookup.findVarHandle(ParallelForWork.class, "next", int.class);
+            PENDING_VAR_HANDLE = lookup.findVarHandle(ParallelForWork.class, "pending", int.class);
+            EXCEPTION_VAR_HANDLE = lookup.findVarHandle(ParallelForWork.class, "exception", Throwable.class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private final IWorkQueue.RangeWork body;
+    // the caller's body, not the IntConsumer adapter lambda, which is one class for every parallelFor
+    private final Class<?> costClass;
+    private final int end;
+    private final int grain;
+    // guided scheduling, each claim takes 1/splitFactor of what remains, but never less than grain
+    private final int splitFactor;
+    
+    // its used, indirectly, thx VarHandle
+    @SuppressWarnings("unused")
+    private int next;
+    @SuppressWarnings("unused")
+    private int pending;
+    @Nullable
+    @SuppressWarnings("unused")
+    private Throwable exception;
+    
+    ParallelForWork(int start, int end, int grain, int participants, IWorkQueue.RangeWork body, Class<?> costClass) {
+        this.body = body;
+        this.costClass = costClass;
+        this.end = end;
+        this.grain = Math.max(1, grain);
+        this.splitFactor = Math.max(1, participants * 2);
+        this.next = start;
+        this.pending = end - start;
+        VarHandle.releaseFence();
+    }
+    
+    @Override
+    @ThreadSafety.Many
+    public void accept(ThreadIndex threadIndex) {
+        //noinspection StatementWithEmptyBody
+        while (runChunk(threadIndex)) {
+        }
+    }
+    
+    @Override
+    public Class<?> costClass() {
+        return costClass;
+    }
+    
+    private boolean runChunk(ThreadIndex threadIndex) {
+        while (true) {
+            final var chunkStart = (int) NEXT_VAR_HANDLE.getAcquire(this);
+            final var remaining = end - chunkStart;
+            if (remaining <= 0) {
+                return false;
+            }
+            final var chunkSize = Math.min(remaining, Math.max(grain, remaining / splitFactor));
+            if (!NEXT_VAR_HANDLE.compareAndSet(this, chunkStart, chunkStart + chunkSize)) {
+                Thread.onSpinWait();
+                continue;
+            }
+            try {
+                // once something has thrown, the rest of the range is just drained
+                if (EXCEPTION_VAR_HANDLE.getAcquire(this) == null) {
+                    body.accept(threadIndex, chunkStart, chunkStart + chunkSize);
+                }
+            } catch (Throwable e) {
+                // the first one thrown is rethrown, anything thrown by chunks already running alongside it is attached to it
+                @Nullable final var first = (Throwable) EXCEPTION_VAR_HANDLE.compareAndExchange(this, null, e);
+                if (first != null) {
+                    first.addSuppressed(e);
+                }
+            } finally {
+                PENDING_VAR_HANDLE.getAndAddRelease(this, -chunkSize);
+            }
+            return true;
+        }
+    }
+    
+    boolean isDone() {
+        return (int) PENDING_VAR_HANDLE.getAcquire(this) <= 0;
+    }
+    
+    void join(ThreadIndex threadIndex, boolean participate) {
+        if (participate) {
+            accept(threadIndex);
+        }
+        while (!isDone()) {
+            QueueSystem.onSemaphoreSpinWait(threadIndex);
+        }
+        @Nullable final var thrown = (Throwable) EXCEPTION_VAR_HANDLE.getAcquire(this);
+        if (thrown != null) {
+            if (thrown instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (thrown instanceof Error error) {
+                throw error;
+            }
+            throw new RuntimeException(thrown);
+        }
+    }
+}
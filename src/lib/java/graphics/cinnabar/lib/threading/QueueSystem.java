@@ -2,10 +2,17 @@ package graphics.cinnabar.lib.threading;
 
 import graphics.cinnabar.api.hg.HgDevice;
 import graphics.cinnabar.api.hg.HgSemaphore;
+import graphics.cinnabar.api.threading.ISemaphore;
 import graphics.cinnabar.api.threading.ThreadIndex;
 import graphics.cinnabar.api.threading.ThreadIndexRegistry;
+import graphics.cinnabar.lib.util.MathUtil;
 import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+
 public final class QueueSystem {
     private static int nextMainThreadQueue = 0;
     private static final ReferenceArrayList<WorkQueue.SingleThread> mainThreadQueues = new ReferenceArrayList<>();
@@ -13,41 +20,166 @@ public final class QueueSystem {
     private static final ReferenceArrayList<WorkQueue.SingleThread> cleanupThreadQueues = new ReferenceArrayList<>();
     private static int nextBackgroundQueue = 0;
     private static final ReferenceArrayList<WorkQueue.MultiThreaded> backgroundQueues = new ReferenceArrayList<>();
-    private static final ReferenceArrayList<HgSemaphore.Op> hgSemaphores = new ReferenceArrayList<>();
-    private static final ReferenceArrayList<HgSemaphore.Op> hgSemaphoresWaitCopy = new ReferenceArrayList<>();
+    // copy on write, so registering a wait doesn't need to lock to find the device's waiter
+    private static volatile HgSemaphoreWaiter[] semaphoreWaiters = new HgSemaphoreWaiter[0];
+    private static int nextSemaphoreWaiterIndex = 0;
+    private static final ReferenceArrayList<WorkQueue> allQueues = new ReferenceArrayList<>();
+    
+    private static final VarHandle LONG_ARRAY_VAR_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
+    // time each thread spent asleep waiting for work, striped a cache line apart, only written by the owning thread
+    private static final int IDLE_STRIDE = 8;
+    private static final long[] threadIdleNanos = new long[ThreadIndexRegistry.totalThreads * IDLE_STRIDE];
+    private static final long[] lastThreadIdleNanos = new long[ThreadIndexRegistry.totalThreads];
+    private static final double[] threadBusyFraction = new double[ThreadIndexRegistry.totalThreads];
+    private static long lastTelemetrySampleTime = System.nanoTime();
+    
+    // worker pool scaling, all guarded by the backgroundQueues monitor, same as the worker sleep/wake
+    // a worker that sleeps this long without being woken retires, if above the min
+    private static final long WORKER_RETIRE_IDLE_MILLIS = Long.getLong("cinnabar.workerRetireIdleMillis", 2000);
+    // limits how fast the pool can grow, so a single burst doesn't spin up every worker at once
+    private static final long WORKER_SPAWN_INTERVAL_NANOS = 1_000_000;
+    private static volatile int activeWorkers = 0;
+    private static int sleepingWorkers = 0;
+    private static int nextWorkerNumber = 0;
+    private static long lastWorkerSpawnTime = 0;
+    // bumped on every wake, so a worker whose wait times out right as it's notified can tell it was still wanted
+    private static long workerWakeGeneration = 0;
     
-    public static WorkQueue createMainThreadQueue() {
+    // main thread frame budget, only written by the main thread
+    private static final long MAIN_THREAD_WAIT_SLICE_NANOS = 100_000;
+    private static long lastFrameStartTime = 0;
+    private static long averageFrameNanos = 0;
+    
+    public static WorkQueue createMainThreadQueue(String name) {
         synchronized (mainThreadQueues) {
-            final var newQueue = new WorkQueue.SingleThread(ThreadIndex.MAIN, i -> {
+            final var newQueue = new WorkQueue.SingleThread(name, ThreadIndex.MAIN, i -> {
             });
             mainThreadQueues.add(newQueue);
+            registerQueue(newQueue);
             return newQueue;
         }
     }
     
-    public static WorkQueue createCleanupThreadQueue() {
+    public static WorkQueue createCleanupThreadQueue(String name) {
         synchronized (cleanupThreadQueues) {
-            final var newQueue = new WorkQueue.SingleThread(ThreadIndex.CLEANUP, QueueSystem::wakeCleanupThread);
+            final var newQueue = new WorkQueue.SingleThread(name, ThreadIndex.CLEANUP, QueueSystem::wakeCleanupThread);
             cleanupThreadQueues.add(newQueue);
+            registerQueue(newQueue);
             return newQueue;
         }
     }
     
-    public static WorkQueue createBackgroundThreadsQueue() {
+    public static WorkQueue createBackgroundThreadsQueue(String name) {
         synchronized (backgroundQueues) {
-            final var newQueue = new WorkQueue.MultiThreaded(QueueSystem::wakeWorkers);
+            final var newQueue = new WorkQueue.MultiThreaded(name, QueueSystem::wakeWorkers);
             backgroundQueues.add(newQueue);
+            registerQueue(newQueue);
             return newQueue;
         }
     }
     
+    private static void registerQueue(WorkQueue queue) {
+        synchronized (allQueues) {
+            allQueues.add(queue);
+        }
+    }
+    
+    private static void recordIdle(ThreadIndex threadIndex, long idleNanos) {
+        final var index = threadIndex.index() * IDLE_STRIDE;
+        LONG_ARRAY_VAR_HANDLE.setOpaque(threadIdleNanos, index, (long) LONG_ARRAY_VAR_HANDLE.getOpaque(threadIdleNanos, index) + idleNanos);
+    }
+    
+    // expected to be called once per frame, from a single thread
+    public static void sampleTelemetry() {
+        synchronized (allQueues) {
+            for (int i = 0; i < allQueues.size(); i++) {
+                allQueues.get(i).stats.sample();
+            }
+        }
+        final var now = System.nanoTime();
+        final var elapsed = Math.max(1, now - lastTelemetrySampleTime);
+        lastTelemetrySampleTime = now;
+        for (int i = 0; i < ThreadIndexRegistry.totalThreads; i++) {
+            final var idle = (long) LONG_ARRAY_VAR_HANDLE.getOpaque(threadIdleNanos, i * IDLE_STRIDE);
+            threadBusyFraction[i] = Math.clamp(1.0 - (double) (idle - lastThreadIdleNanos[i]) / elapsed, 0.0, 1.0);
+            lastThreadIdleNanos[i] = idle;
+        }
+    }
+    
+    public static List<WorkQueueStats> queueStats() {
+        synchronized (allQueues) {
+            final var stats = new ReferenceArrayList<WorkQueueStats>(allQueues.size());
+            for (int i = 0; i < allQueues.size(); i++) {
+                stats.add(allQueues.get(i).stats);
+            }
+            return stats;
+        }
+    }
+    
+    // fraction of the last sample period the thread spent not asleep, the main thread is never considered idle
+    public static double threadBusyFraction(ThreadIndex threadIndex) {
+        return threadBusyFraction[threadIndex.index()];
+    }
+    
+    public static void addDebugText(List<String> lines) {
+        for (final var stats : queueStats()) {
+            final var sample = stats.lastSample();
+            lines.add(String.format("Queue %s: depth %d (peak %d), %.0f/s, wait %s/%s, run %s/%s",
+                    stats.name, sample.depth(), sample.highWaterMark(), sample.itemsPerSecond(),
+                    MathUtil.nanosString(sample.latencyP50()), MathUtil.nanosString(sample.latencyP99()),
+                    MathUtil.nanosString(sample.executionP50()), MathUtil.nanosString(sample.executionP99())
+            ));
+        }
+        double workerBusy = 0;
+        int liveWorkers = 0;
+        for (int i = ThreadIndex.CLEANUP.index() + 1; i < ThreadIndexRegistry.firstLeasedIndex; i++) {
+            // retired indices don't record idle time, so they would read as fully busy
+            if (ThreadIndexRegistry.isRegistered(i)) {
+                workerBusy += threadBusyFraction[i];
+                liveWorkers++;
+            }
+        }
+        workerBusy /= Math.max(1, liveWorkers);
+        lines.add(String.format("Cleanup busy: %.0f%%, workers busy: %.0f%% (%d/%d)", threadBusyFraction[ThreadIndex.CLEANUP.index()] * 100, workerBusy * 100, activeWorkers, ThreadIndexRegistry.backgroundWorkThreadCount));
+    }
+    
+    // called once per frame from the main thread, the frame budget is a running average of recent frame times
+    public static void onFrameStart() {
+        final var now = System.nanoTime();
+        if (lastFrameStartTime != 0) {
+            final var frameTime = now - lastFrameStartTime;
+            averageFrameNanos = averageFrameNanos == 0 ? frameTime : averageFrameNanos + (frameTime - averageFrameNanos) / 8;
+        }
+        lastFrameStartTime = now;
+    }
+    
+    // latest a background item the main thread picks up now may finish by, whatever is left of the average frame time
+    // never less than one wait slice, once the frame is over budget the main thread is only helping while it would otherwise sleep that long
+    private static long mainThreadHelpDeadline() {
+        final var now = System.nanoTime();
+        final var frameRemaining = averageFrameNanos - (now - lastFrameStartTime);
+        return now + Math.max(MAIN_THREAD_WAIT_SLICE_NANOS, frameRemaining);
+    }
+    
+    // waits with the main thread helping out with work, and only sleeping on the semaphore in short slices when there is none
+    // HgSemaphore waits otherwise block in the driver for the entire time
+    public static void waitValueHelping(ISemaphore semaphore, long value) {
+        final var threadIndex = ThreadIndex.currentThreadIndex();
+        while (semaphore.value() < value) {
+            if (!onSemaphoreSpinWait(threadIndex)) {
+                semaphore.waitValue(value, MAIN_THREAD_WAIT_SLICE_NANOS);
+            }
+        }
+    }
+    
     // TODO: expose to API, this is to allow a waiting thread to do work
     //       also, maybe return as soon as the semaphore signals, rather than after a queue that had work runs out of work?
-    public static void onSemaphoreSpinWait(ThreadIndex threadIndex) {
+    // returns if any work was run, so the caller knows if its worth sleeping
+    public static boolean onSemaphoreSpinWait(ThreadIndex threadIndex) {
         if (!threadIndex.valid()) {
             // don't know what thread this is, just loop
             Thread.onSpinWait();
-            return;
+            return false;
         }
         switch (threadIndex.index()) {
             case 0 -> {
@@ -55,16 +187,28 @@ public final class QueueSystem {
                     final var queue = mainThreadQueues.get(nextMainThreadQueue++);
                     nextMainThreadQueue %= mainThreadQueues.size();
                     if (queue.runUntilStalled()) {
-                        return;
+                        return true;
                     }
                 }
                 // if all main thread work done, try and run some background work
+                // only what's expected to fit in what's left of the frame, the rest is left for the workers
+                final long deadline;
+                if (ThreadIndexRegistry.backgroundWorkThreadCount == 0) {
+                    // no workers will ever exist to run it instead
+                    deadline = Long.MAX_VALUE;
+                } else {
+                    if (activeWorkers == 0) {
+                        // all retired, whatever this thread leaves behind still needs someone to run it
+                        wakeWorkers(1);
+                    }
+                    deadline = mainThreadHelpDeadline();
+                }
                 for (int i = 0; i < backgroundQueues.size(); i++) {
                     // yes there is a race condition with `nextBackgroundQueue++`, 
                     // it doesn't matter because this is just trying to keep it from always only executing the first one  
                     final var queue = backgroundQueues.get(nextBackgroundQueue++ % backgroundQueues.size());
-                    if (queue.runUntilStalled(threadIndex)) {
-                        return;
+                    if (queue.runUntilDeadline(threadIndex, deadline)) {
+                        return true;
                     }
                 }
             }
@@ -73,7 +217,7 @@ public final class QueueSystem {
                     final var queue = cleanupThreadQueues.get(nextCleanupQueue++);
                     nextCleanupQueue %= cleanupThreadQueues.size();
                     if (queue.runUntilStalled()) {
-                        return;
+                        return true;
                     }
                 }
             }
@@ -83,22 +227,17 @@ public final class QueueSystem {
                     // it doesn't matter because this is just trying to keep it from always only executing the first one  
                     final var queue = backgroundQueues.get(nextBackgroundQueue++ % backgroundQueues.size());
                     if (queue.runUntilStalled(threadIndex)) {
-                        return;
+                        return true;
                     }
                 }
             }
         }
+        return false;
     }
     
     public static void startThreads() {
         ThreadIndexRegistry.registerThisThread();
         
-        final var waitThread = new Thread(QueueSystem::vkSemaphoreWaitThread);
-        waitThread.setDaemon(true);
-        waitThread.setPriority(Thread.MAX_PRIORITY);
-        waitThread.setName("CinnabarSemaphoreWait");
-        waitThread.start();
-        
         final var cleanupThread = new Thread(QueueSystem::cleanupThreadFunc);
         cleanupThread.setDaemon(true);
         cleanupThread.setPriority(7);
@@ -111,32 +250,75 @@ public final class QueueSystem {
             throw new RuntimeException(e);
         }
         
-        for (int i = 0; i < ThreadIndexRegistry.backgroundWorkThreadCount; i++) {
-            final var workerThread = new Thread(QueueSystem::workerThreadFunc);
-            workerThread.setDaemon(true);
-            workerThread.setName("CinnabarWorker" + i);
-            workerThread.start();
+        synchronized (backgroundQueues) {
+            for (int i = 0; i < ThreadIndexRegistry.minBackgroundWorkThreadCount; i++) {
+                spawnWorker();
+            }
+        }
+    }
+    
+    // must hold the backgroundQueues monitor
+    private static void spawnWorker() {
+        activeWorkers++;
+        lastWorkerSpawnTime = System.nanoTime();
+        final var workerThread = new Thread(QueueSystem::workerThreadFunc);
+        workerThread.setDaemon(true);
+        workerThread.setName("CinnabarWorker" + nextWorkerNumber++);
+        workerThread.start();
+    }
+    
+    // must hold the backgroundQueues monitor
+    private static void maybeSpawnWorker() {
+        if (activeWorkers >= ThreadIndexRegistry.backgroundWorkThreadCount || System.nanoTime() - lastWorkerSpawnTime < WORKER_SPAWN_INTERVAL_NANOS) {
+            return;
+        }
+        long backlog = 0;
+        for (int i = 0; i < backgroundQueues.size(); i++) {
+            backlog += backgroundQueues.get(i).queuedItems();
+        }
+        // every live worker is already busy, and there is more queued than them
+        if (backlog > activeWorkers) {
+            spawnWorker();
         }
-        
     }
     
+    // must hold the backgroundQueues monitor
+    private static boolean backgroundWorkQueued() {
+        for (int i = 0; i < backgroundQueues.size(); i++) {
+            if (backgroundQueues.get(i).queuedItems() != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // number of worker threads currently alive, between ThreadIndexRegistry.minBackgroundWorkThreadCount and backgroundWorkThreadCount
+    public static int activeWorkerCount() {
+        return activeWorkers;
+    }
+    
+    // waits for all pending semaphore callbacks on the device to fire, then stops its wait thread
     public static void deviceShutdown(HgDevice device) {
-        while (true) {
-            synchronized (hgSemaphores) {
-                boolean hasPendingSemaphore = false;
-                for (int i = 0; i < hgSemaphores.size(); i++) {
-                    if (hgSemaphores.get(i).semaphore().device() == device) {
-                        hasPendingSemaphore = true;
-                        break;
-                    }
-                }
-                if (!hasPendingSemaphore) {
-                    return;
+        final HgSemaphoreWaiter waiter;
+        synchronized (QueueSystem.class) {
+            final var waiters = semaphoreWaiters;
+            int index = -1;
+            for (int i = 0; i < waiters.length; i++) {
+                if (waiters[i].device == device) {
+                    index = i;
+                    break;
                 }
-                // force wake that thread, in case its asleep
-                hgSemaphores.notify();
             }
+            if (index == -1) {
+                return;
+            }
+            waiter = waiters[index];
+            final var newWaiters = new HgSemaphoreWaiter[waiters.length - 1];
+            System.arraycopy(waiters, 0, newWaiters, 0, index);
+            System.arraycopy(waiters, index + 1, newWaiters, index, waiters.length - index - 1);
+            semaphoreWaiters = newWaiters;
         }
+        waiter.shutdown();
     }
     
     private static void cleanupThreadFunc() {
@@ -152,12 +334,14 @@ public final class QueueSystem {
                     }
                 }
                 
+                final var idleStart = System.nanoTime();
                 synchronized (cleanupThreadQueues) {
                     try {
                         cleanupThreadQueues.wait(1);
                     } catch (InterruptedException ignored) {
                     }
                 }
+                recordIdle(ThreadIndex.CLEANUP, System.nanoTime() - idleStart);
             }
         } catch (Throwable e) {
             e.printStackTrace();
@@ -186,11 +370,26 @@ public final class QueueSystem {
                     continue;
                 }
                 
+                final var idleStart = System.nanoTime();
                 synchronized (backgroundQueues) {
+                    final var wakeGeneration = workerWakeGeneration;
+                    sleepingWorkers++;
                     try {
-                        backgroundQueues.wait();
+                        backgroundQueues.wait(WORKER_RETIRE_IDLE_MILLIS);
                     } catch (InterruptedException ignored) {
                     }
+                    sleepingWorkers--;
+                    final var idleTime = System.nanoTime() - idleStart;
+                    recordIdle(threadIndex, idleTime);
+                    // slept the whole timeout, wasn't woken, and nothing was queued since, nothing needed this thread
+                    // a notify landing right at the timeout is otherwise swallowed by a retiring thread
+                    if (idleTime >= WORKER_RETIRE_IDLE_MILLIS * 1_000_000 && wakeGeneration == workerWakeGeneration && !backgroundWorkQueued() && activeWorkers > ThreadIndexRegistry.minBackgroundWorkThreadCount) {
+                        activeWorkers--;
+                        // released while still holding the lock, so a replacement spawned right after is guaranteed a free index
+                        // nothing is executing under it anymore
+                        ThreadIndexRegistry.unregisterThisThread();
+                        return;
+                    }
                 }
             }
         } catch (Throwable e) {
@@ -201,6 +400,11 @@ public final class QueueSystem {
     
     public static void wakeWorkers(int count) {
         synchronized (backgroundQueues) {
+            if (sleepingWorkers == 0) {
+                maybeSpawnWorker();
+                return;
+            }
+            workerWakeGeneration++;
             if (count == 1) {
                 backgroundQueues.notify();
             } else {
@@ -209,61 +413,30 @@ public final class QueueSystem {
         }
     }
     
-    public static void wakeThreadsOnSinal(HgSemaphore semaphore, long value) {
-        synchronized (hgSemaphores) {
-            hgSemaphores.add(new HgSemaphore.Op(semaphore, value));
-            hgSemaphores.notify();
-        }
+    // callback is run on the device's semaphore wait thread once the value is reached, so it should be quick, like waking threads
+    public static void onSignal(HgSemaphore semaphore, long value, Runnable callback) {
+        semaphoreWaiter(semaphore.device()).register(semaphore, value, callback);
     }
     
-    public static void vkSemaphoreWaitThread() {
-        try {
-            
-            while (true) {
-                if (hgSemaphores.isEmpty()) {
-                    synchronized (hgSemaphores) {
-                        if(hgSemaphores.isEmpty()) {
-                            try {
-                                hgSemaphores.wait();
-                            } catch (InterruptedException ignored) {
-                            }
-                        }
-                    }
-                    continue;
-                }
-                final var hgDevice = hgSemaphores.getFirst().semaphore().device();
-                
-                synchronized (hgSemaphores){
-                    hgSemaphoresWaitCopy.clear();
-                    hgSemaphoresWaitCopy.addAll(hgSemaphores);
-                }
-                
-                for (int i = 0; i < hgSemaphoresWaitCopy.size(); i++) {
-                    final var semaphore = hgSemaphoresWaitCopy.get(i);
-                    if (hgDevice != semaphore.semaphore().device()) {
-                        System.exit(-1);
-                    }
-                }
-                
-                hgDevice.waitSemaphores(hgSemaphoresWaitCopy, -1, true);
-                
-                wakeWorkers(-1);
-                wakeCleanupThread(-1);
-                
-                synchronized (hgSemaphores) {
-                    for (int i = 0; i < hgSemaphores.size(); i++) {
-                        final var op = hgSemaphores.get(i);
-                        if (op.value() <= op.semaphore().value()) {
-                            // this semaphore signaled, remove it from the list
-                            hgSemaphores.remove(i);
-                            i--;
-                        }
-                    }
+    private static HgSemaphoreWaiter semaphoreWaiter(HgDevice device) {
+        var waiters = semaphoreWaiters;
+        for (int i = 0; i < waiters.length; i++) {
+            if (waiters[i].device == device) {
+                return waiters[i];
+            }
+        }
+        synchronized (QueueSystem.class) {
+            waiters = semaphoreWaiters;
+            for (int i = 0; i < waiters.length; i++) {
+                if (waiters[i].device == device) {
+                    return waiters[i];
                 }
             }
-        } catch (Throwable e) {
-            e.printStackTrace();
-            System.exit(1);
+            final var newWaiter = new HgSemaphoreWaiter(device, nextSemaphoreWaiterIndex++);
+            final var newWaiters = Arrays.copyOf(waiters, waiters.length + 1);
+            newWaiters[waiters.length] = newWaiter;
+            semaphoreWaiters = newWaiters;
+            return newWaiter;
         }
     }
 }
@@ -0,0 +1,40 @@
+package graphics.cinnabar.lib.threading;
+
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.threading.IWorkQueue;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+// learned execution time per Work.costClass(), lambdas get a class per call site, so this is roughly per task kind
+// wrappers like WorkFuture and parallelFor report the class of what they wrap, so they don't all share one average
+// updates race, a lost sample just means the average moves a little slower
+final class TaskCostEstimates {
+    
+    private static final VarHandle LONG_ARRAY_VAR_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
+    
+    // something never seen before is assumed to be short, it will be learned after it runs once
+    static final long UNKNOWN_COST_NANOS = 50_000;
+    
+    private static final ClassValue<long[]> ESTIMATES = new ClassValue<>() {
+        @Override
+        protected long[] computeValue(Class<?> type) {
+            return new long[]{-1};
+        }
+    };
+    
+    @ThreadSafety.Many
+    static long estimate(IWorkQueue.Work work) {
+        final var estimate = (long) LONG_ARRAY_VAR_HANDLE.getOpaque(ESTIMATES.get(work.costClass()), 0);
+        return estimate < 0 ? UNKNOWN_COST_NANOS : estimate;
+    }
+    
+    @ThreadSafety.Many
+    static void record(IWorkQueue.Work work, long nanos) {
+        final var estimate = ESTIMATES.get(work.costClass());
+        final var previous = (long) LONG_ARRAY_VAR_HANDLE.getOpaque(estimate, 0);
+        // EWMA with 1/8 weight, but a sudden expensive run is taken immediately so a slow task stops fitting in budgets right away
+        final var updated = previous < 0 || nanos > previous * 4 ? nanos : previous + (nanos - previous) / 8;
+        LONG_ARRAY_VAR_HANDLE.setOpaque(estimate, 0, updated);
+    }
+}
@@ -14,8 +14,10 @@ import org.jetbrains.annotations.Nullable;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.IntConsumer;
+import java.util.function.Predicate;
 
 public abstract class WorkQueue implements IWorkQueue {
     
@@ -24,20 +26,32 @@ public abstract class WorkQueue implements IWorkQueue {
     @ThreadSafety.Many
     public void wait(ISemaphore semaphore, long value) {
         workRing.forceEnqueue(new SemaphoreOp(semaphore, value, false));
-        if (semaphore.value() < value && semaphore instanceof HgSemaphore hgSemaphore) {
+        stats.onEnqueue();
+        if (semaphore.value() < value) {
             // this semaphore isn't signaled yet, so this is a submit before signal
-            // wake all the threads when it signals 
-            QueueSystem.wakeThreadsOnSinal(hgSemaphore, value);
+            // wake this queue's threads when it signals
+            if (semaphore instanceof HgSemaphore hgSemaphore) {
+                QueueSystem.onSignal(hgSemaphore, value, unblockedWake);
+            } else if (semaphore instanceof AtomicQueueSemaphore atomicSemaphore) {
+                atomicSemaphore.wakeOnValue(value, unblockedWake);
+            }
         }
     }
     
     private static final VarHandle LONG_ARRAY_VAR_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
+    // max items a single thread queue claims from its ring at once
+    private static final int BATCH_SIZE = Math.max(1, Integer.getInteger("cinnabar.queueBatchSize", 32));
     
-    protected final RingQueue<Object> workRing = new RingQueue<>(16);
+    protected final RingQueue<Object> workRing = new RingQueue<>(16, true);
     private final IntConsumer threadWake;
+    // everything queued behind the wait may be runnable now, so wake as many threads as there could be work for
+    private final Runnable unblockedWake;
+    public final WorkQueueStats stats;
     
-    protected WorkQueue(IntConsumer threadWake) {
+    protected WorkQueue(String name, IntConsumer threadWake) {
         this.threadWake = threadWake;
+        this.unblockedWake = () -> threadWake.accept(Math.clamp(queuedItems(), 1, Integer.MAX_VALUE));
+        this.stats = new WorkQueueStats(name, this::queuedItems);
     }
     
     @API
@@ -50,6 +64,7 @@ public abstract class WorkQueue implements IWorkQueue {
         // its fine, probably
         //noinspection unchecked
         workRing.forceEnqueueMany((List<Object>) (Object) work);
+        stats.onEnqueue();
         threadWake.accept(work.size());
     }
     
@@ -58,6 +73,7 @@ public abstract class WorkQueue implements IWorkQueue {
     @ThreadSafety.Many
     public void enqueue(Work work) {
         workRing.forceEnqueue(work);
+        stats.onEnqueue();
         threadWake.accept(1);
     }
     
@@ -80,10 +96,108 @@ public abstract class WorkQueue implements IWorkQueue {
     @ThreadSafety.Many
     public void signal(ISemaphore semaphore, long value) {
         workRing.forceEnqueue(new SemaphoreOp(semaphore, value, true));
+        stats.onEnqueue();
         QueueSystem.wakeWorkers(1);
         QueueSystem.wakeCleanupThread(1);
     }
     
+    // can the given thread execute work from this queue directly
+    protected abstract boolean canRunOn(ThreadIndex threadIndex);
+    
+    // number of threads that could be executing work from this queue at once
+    protected abstract int parallelism();
+    
+    // everything enqueued that hasn't started running yet
+    abstract long queuedItems();
+    
+    // where the helper side of a parallelFor/forkJoin is queued
+    protected RingQueue<Object> helperRing() {
+        return workRing;
+    }
+    
+    // queues the same work count times
+    private void enqueueHelpers(Work work, int count) {
+        helperRing().forceEnqueueMany(Collections.<@Nullable Object>nCopies(count, work));
+        stats.onEnqueue();
+        threadWake.accept(count);
+    }
+    
+    @API
+    @Override
+    @ThreadSafety.Many
+    public void parallelFor(int start, int end, int grain, IntConsumer body) {
+        parallelFor(start, end, grain, (threadIndex, chunkStart, chunkEnd) -> {
+            for (int i = chunkStart; i < chunkEnd; i++) {
+                body.accept(i);
+            }
+        }, body.getClass());
+    }
+    
+    @API
+    @Override
+    @ThreadSafety.Many
+    public void parallelFor(int start, int end, int grain, RangeWork body) {
+        parallelFor(start, end, grain, body, body.getClass());
+    }
+    
+    private void parallelFor(int start, int end, int grain, RangeWork body, Class<?> costClass) {
+        if (end <= start) {
+            return;
+        }
+        final var threadIndex = ThreadIndex.currentThreadIndex();
+        final var participate = canRunOn(threadIndex);
+        final var chunks = Math.ceilDiv(end - start, Math.max(1, grain));
+        var helpers = Math.min(parallelism(), chunks);
+        if (participate) {
+            helpers--;
+            if (helpers <= 0) {
+                // not worth splitting, skip the queue entirely
+                body.accept(threadIndex, start, end);
+                return;
+            }
+        }
+        helpers = Math.max(1, helpers);
+        final var work = new ParallelForWork(start, end, grain, helpers + (participate ? 1 : 0), body, costClass);
+        // same object enqueued for each helper, whichever copies run after the range is drained are no-ops
+        enqueueHelpers(work, helpers);
+        work.join(threadIndex, participate);
+    }
+    
+    @API
+    @Override
+    @ThreadSafety.Many
+    public void forkJoin(Work first, Work second) {
+        final var threadIndex = ThreadIndex.currentThreadIndex();
+        final var forked = new ForkJoinWork(second);
+        enqueueHelpers(forked, 1);
+        @Nullable
+        Throwable thrown = null;
+        try {
+            first.accept(threadIndex);
+        } catch (Throwable e) {
+            thrown = e;
+        }
+        // always joined, second may still be running and can't be left behind
+        try {
+            forked.join(threadIndex, canRunOn(threadIndex));
+        } catch (Throwable e) {
+            if (thrown == null) {
+                thrown = e;
+            } else {
+                thrown.addSuppressed(e);
+            }
+        }
+        if (thrown != null) {
+            if (thrown instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (thrown instanceof Error error) {
+                throw error;
+            }
+            throw new RuntimeException(thrown);
+        }
+    }
+    
     public static class SingleThread extends WorkQueue {
         
         private final ThreadIndex index;
@@ -93,12 +207,41 @@ public abstract class WorkQueue implements IWorkQueue {
         protected long nextBreakpoint = 0;
         @Nullable
         private SemaphoreOp pendingWait;
+        // items already claimed from the ring but not run yet, only touched by the owning thread
+        private final @Nullable Object[] batch = new Object[BATCH_SIZE];
+        private final long[] batchEnqueueTimes = new long[BATCH_SIZE];
+        private int batchPosition = 0;
+        private int batchCount = 0;
+        // parallelFor/forkJoin helpers, a fork from another thread joins by spinning until this thread runs its helper
+        // so it must not queue behind a wait in workRing, which may only be signaled after that join returns
+        private final RingQueue<Object> helperRing = new RingQueue<>(12, true);
         
-        SingleThread(ThreadIndex index, IntConsumer wakeThread) {
-            super(wakeThread);
+        SingleThread(String name, ThreadIndex index, IntConsumer wakeThread) {
+            super(name, wakeThread);
             this.index = index;
         }
         
+        @Override
+        protected boolean canRunOn(ThreadIndex threadIndex) {
+            return index.equals(threadIndex);
+        }
+        
+        @Override
+        protected int parallelism() {
+            return 1;
+        }
+        
+        @Override
+        protected RingQueue<Object> helperRing() {
+            return helperRing;
+        }
+        
+        // the batch is read unsynchronized from other threads, a refill between the two reads can make it negative for a moment
+        @Override
+        long queuedItems() {
+            return workRing.size() + helperRing.size() + Math.max(0, batchCount - batchPosition);
+        }
+        
         @ThreadSafety.Any
         private void incrementBreakpointCounter(ThreadIndex index) {
             breakpointCounter++;
@@ -113,18 +256,36 @@ public abstract class WorkQueue implements IWorkQueue {
         
         private boolean runOne() {
             assert ThreadIndex.currentThreadIndex().equals(index);
+            // helpers run on behalf of something already executing, so they skip both the pending wait and the ordering of workRing
+            if (runHelper()) {
+                return true;
+            }
             if (pendingWait != null) {
                 if (!pendingWait.isSignaled()) {
                     return false;
                 }
                 pendingWait = null;
             }
-            @Nullable final var item = workRing.dequeue();
+            if (batchPosition == batchCount) {
+                // single owner, so a whole burst can be claimed at once
+                batchCount = workRing.dequeueMany(batch, batchEnqueueTimes, BATCH_SIZE);
+                batchPosition = 0;
+                if (batchCount == 0) {
+                    return false;
+                }
+            }
+            @Nullable final var item = batch[batchPosition];
+            stats.enqueueTimeArray()[stats.enqueueTimeIndex(index)] = batchEnqueueTimes[batchPosition];
+            batch[batchPosition++] = null;
             if (item == null) {
                 return false;
             }
             switch (item) {
-                case Work work -> work.accept(index);
+                case Work work -> {
+                    final var startTime = stats.onStart(index);
+                    work.accept(index);
+                    stats.onEnd(index, startTime);
+                }
                 case SemaphoreOp op -> {
                     if (op.signal) {
                         op.doSignal();
@@ -141,6 +302,17 @@ public abstract class WorkQueue implements IWorkQueue {
             return true;
         }
         
+        private boolean runHelper() {
+            @Nullable final var item = helperRing.dequeue(stats.enqueueTimeArray(), stats.enqueueTimeIndex(index));
+            if (!(item instanceof Work work)) {
+                return false;
+            }
+            final var startTime = stats.onStart(index);
+            work.accept(index);
+            stats.onEnd(index, startTime);
+            return true;
+        }
+        
         @API
         @ThreadSafety.Any
         public boolean runUntilBreakpointNumber(final long breakValue) {
@@ -176,17 +348,52 @@ public abstract class WorkQueue implements IWorkQueue {
         
         private final long[] executingIndex = new long[ThreadIndexRegistry.totalThreads];
         private final RingQueue<LongReferencePair<SemaphoreOp>> pendingSignals = new RingQueue<>(8);
+        // parallelFor/forkJoin helpers, kept out of workRing so they can't end up behind a wait, which may only be signaled after the join they're needed for
+        // they're only ever run on behalf of something already executing, so there is no ordering to keep with the rest of the queue
+        private final RingQueue<Object> helperRing = new RingQueue<>(12, true);
         
-        MultiThreaded(IntConsumer wakeThread) {
-            super(wakeThread);
+        MultiThreaded(String name, IntConsumer wakeThread) {
+            super(name, wakeThread);
             Arrays.fill(executingIndex, Long.MAX_VALUE);
         }
         
+        @Override
+        protected boolean canRunOn(ThreadIndex threadIndex) {
+            return threadIndex.valid();
+        }
+        
+        @Override
+        protected int parallelism() {
+            // main thread helps out too when its waiting
+            return QueueSystem.activeWorkerCount() + 1;
+        }
+        
+        @Override
+        protected RingQueue<Object> helperRing() {
+            return helperRing;
+        }
+        
+        @Override
+        long queuedItems() {
+            return workRing.size() + helperRing.size();
+        }
+        
         private static boolean waitConditionCheck(@Nullable Object item) {
             // a signal doesn't need to wait on anything for being dequeued, only waits do
             return !(item instanceof SemaphoreOp semaphoreOp) || semaphoreOp.signal || semaphoreOp.isSignaled();
         }
         
+        // only the main thread runs with a deadline, so a single field is enough
+        private long mainThreadDeadline = Long.MAX_VALUE;
+        private final Predicate<@Nullable Object> mainThreadDeadlineCheck = this::deadlineConditionCheck;
+        
+        private boolean deadlineConditionCheck(@Nullable Object item) {
+            if (!(item instanceof Work work)) {
+                return waitConditionCheck(item);
+            }
+            return System.nanoTime() + TaskCostEstimates.estimate(work) <= mainThreadDeadline;
+        }
+        
         private boolean signalConditionCheck(@Nullable LongReferencePair<SemaphoreOp> entry) {
             if (entry == null) {
                 return true;
@@ -208,25 +415,31 @@ public abstract class WorkQueue implements IWorkQueue {
             }
         }
         
-        private boolean runOne(ThreadIndex index) {
+        private boolean runOne(ThreadIndex index, Predicate<@Nullable Object> condition) {
             assert ThreadIndex.currentThreadIndex() == index;
             if (!index.valid()) {
                 throw new IllegalStateException();
             }
             processPendingSignals();
+            if (runHelper(index, condition)) {
+                return true;
+            }
+            // this may be nested inside another item's execution (helping while waiting), so restore rather than clear
+            // otherwise the outer item would stop blocking signals enqueued after it
+            final var outerExecutingIndex = (long) LONG_ARRAY_VAR_HANDLE.getAcquire(executingIndex, index.index());
             // prevent signaling a semaphore
             LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), 0);
-            @Nullable final var entry = workRing.conditionalDequeue(MultiThreaded::waitConditionCheck);
+            @Nullable final var entry = workRing.conditionalDequeue(condition, stats.enqueueTimeArray(), stats.enqueueTimeIndex(index));
             if (entry == null) {
-                LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), Long.MAX_VALUE);
+                LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), outerExecutingIndex);
                 return false;
             }
-            LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), entry.firstLong());
+            LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), Math.min(outerExecutingIndex, entry.firstLong()));
             
             @Nullable final var item = entry.value();
             switch (item) {
                 case null -> {
-                    LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), Long.MAX_VALUE);
+                    LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), outerExecutingIndex);
                     return false;
                 }
                 case SemaphoreOp semaphoreOp -> {
@@ -236,21 +449,50 @@ public abstract class WorkQueue implements IWorkQueue {
                     }
                     // waits don't actually execute anything
                 }
-                case Work work -> work.accept(index);
+                case Work work -> {
+                    final var startTime = stats.onStart(index);
+                    work.accept(index);
+                    TaskCostEstimates.record(work, stats.onEnd(index, startTime));
+                }
                 default -> {
                 }
             }
             
-            LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), Long.MAX_VALUE);
+            LONG_ARRAY_VAR_HANDLE.setRelease(executingIndex, index.index(), outerExecutingIndex);
             processPendingSignals();
             return true;
         }
         
+        // helpers don't take part in signal ordering, whatever they were forked from is still executing and holds back later signals
+        private boolean runHelper(ThreadIndex index, Predicate<@Nullable Object> condition) {
+            @Nullable final var entry = helperRing.conditionalDequeue(condition, stats.enqueueTimeArray(), stats.enqueueTimeIndex(index));
+            if (entry == null || !(entry.value() instanceof Work work)) {
+                return false;
+            }
+            final var startTime = stats.onStart(index);
+            work.accept(index);
+            TaskCostEstimates.record(work, stats.onEnd(index, startTime));
+            return true;
+        }
+        
         @API
         @ThreadSafety.Any
         public boolean runUntilStalled(ThreadIndex threadIndex) {
             boolean anyRan = false;
-            while (runOne(threadIndex)) {
+            while (runOne(threadIndex, MultiThreaded::waitConditionCheck)) {
+                anyRan = true;
+            }
+            return anyRan;
+        }
+        
+        // only runs items expected to finish before the deadline, stops at the first one that isn't
+        @API
+        @ThreadSafety.MainGraphics
+        public boolean runUntilDeadline(ThreadIndex threadIndex, long deadlineNanos) {
+            assert threadIndex.isMainThread();
+            mainThreadDeadline = deadlineNanos;
+            boolean anyRan = false;
+            while (runOne(threadIndex, mainThreadDeadlineCheck)) {
                 anyRan = true;
             }
             return anyRan;
@@ -0,0 +1,172 @@
+package graphics.cinnabar.lib.threading;
+
+import graphics.cinnabar.api.annotations.ThreadSafety;
+import graphics.cinnabar.api.threading.ThreadIndex;
+import graphics.cinnabar.api.threading.ThreadIndexRegistry;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.LongSupplier;
+
+// always on telemetry for a single WorkQueue
+// recording is striped per ThreadIndex, each stripe only ever has a single writer (the thread executing work), so no atomics are needed there
+// histograms are log2 buckets of nanoseconds, good enough to tell 10us from 10ms
+public class WorkQueueStats {
+    
+    private static final VarHandle LONG_ARRAY_VAR_HANDLE = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle HIGH_WATER_VAR_HANDLE;
+    
+    static {
+        try {
+            HIGH_WATER_VAR_HANDLE = MethodHandles.lookup().findVarHandle(WorkQueueStats.class, "highWaterMark", long.class);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    // 2^40 ns is ~18 minutes, anything longer lands in the last bucket
+    private static final int BUCKETS = 40;
+    private static final int LATENCY_OFFSET = 0;
+    private static final int EXECUTION_OFFSET = BUCKETS;
+    // slot after the histograms is scratch space for the enqueue time of the item being dequeued
+    private static final int ENQUEUE_TIME_SCRATCH = BUCKETS * 2;
+    // rounded up to whole cache lines, plus one more, so neighboring stripes never share a line
+    private static final int STRIPE_STRIDE = ((ENQUEUE_TIME_SCRATCH + 1 + 7) & ~7) + 8;
+    
+    public final String name;
+    // items queued but not run yet, anywhere in the queue
+    private final LongSupplier depth;
+    private final long[] stripes = new long[STRIPE_STRIDE * ThreadIndexRegistry.totalThreads];
+    // its used, indirectly, thx VarHandle
+    @SuppressWarnings("unused")
+    private long highWaterMark;
+    private long allTimeHighWaterMark;
+    
+    // previous totals, for per-sample deltas, only touched by whoever samples
+    private final long[] lastTotals = new long[BUCKETS * 2];
+    private final long[] deltaScratch = new long[BUCKETS * 2];
+    private long lastSampleTime = System.nanoTime();
+    private volatile Sample lastSample = new Sample(0, 0, 0, 0, 0, 0, 0, 0, 0);
+    
+    WorkQueueStats(String name, LongSupplier depth) {
+        this.name = name;
+        this.depth = depth;
+    }
+    
+    public record Sample(long depth, long highWaterMark, long allTimeHighWaterMark, double itemsPerSecond, long latencyP50, long latencyP99, long executionP50, long executionP99, long executionMax) {
+    }
+    
+    @ThreadSafety.Many
+    void onEnqueue() {
+        final var depth = this.depth.getAsLong();
+        long currentHighWater = (long) HIGH_WATER_VAR_HANDLE.getOpaque(this);
+        // only contended while the queue is growing
+        while (depth > currentHighWater) {
+            final var witnessed = (long) HIGH_WATER_VAR_HANDLE.compareAndExchange(this, currentHighWater, depth);
+            if (witnessed == currentHighWater) {
+                break;
+            }
+            currentHighWater = witnessed;
+        }
+    }
+    
+    // array and index to hand to the RingQueue dequeue for this thread
+    long[] enqueueTimeArray() {
+        return stripes;
+    }
+    
+    int enqueueTimeIndex(ThreadIndex threadIndex) {
+        return threadIndex.index() * STRIPE_STRIDE + ENQUEUE_TIME_SCRATCH;
+    }
+    
+    @ThreadSafety.Any(note = "only from the thread the ThreadIndex belongs to")
+    long onStart(ThreadIndex threadIndex) {
+        final var now = System.nanoTime();
+        final var stripeBase = threadIndex.index() * STRIPE_STRIDE;
+        final var enqueueTime = stripes[stripeBase + ENQUEUE_TIME_SCRATCH];
+        increment(stripeBase + LATENCY_OFFSET + bucket(now - enqueueTime));
+        return now;
+    }
+    
+    // returns how long the item ran for
+    @ThreadSafety.Any(note = "only from the thread the ThreadIndex belongs to")
+    long onEnd(ThreadIndex threadIndex, long startTime) {
+        final var stripeBase = threadIndex.index() * STRIPE_STRIDE;
+        final var executionTime = System.nanoTime() - startTime;
+        increment(stripeBase + EXECUTION_OFFSET + bucket(executionTime));
+        return executionTime;
+    }
+    
+    private void increment(int index) {
+        // single writer, opaque is enough for the sampler to eventually see it
+        LONG_ARRAY_VAR_HANDLE.setOpaque(stripes, index, (long) LONG_ARRAY_VAR_HANDLE.getOpaque(stripes, index) + 1);
+    }
+    
+    private static int bucket(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+    }
+    
+    // upper bound of the bucket, in nanoseconds
+    private static long bucketValue(int bucket) {
+        return bucket == 0 ? 0 : 1L << bucket;
+    }
+    
+    private static long percentile(long[] deltas, int offset, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        final var target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += deltas[offset + i];
+            if (seen >= target) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(BUCKETS - 1);
+    }
+    
+    // computes stats since the last call, and resets the windowed high water mark
+    @ThreadSafety.Any
+    public Sample sample() {
+        final var now = System.nanoTime();
+        for (int i = 0; i < BUCKETS * 2; i++) {
+            long total = 0;
+            for (int j = 0; j < ThreadIndexRegistry.totalThreads; j++) {
+                total += (long) LONG_ARRAY_VAR_HANDLE.getOpaque(stripes, j * STRIPE_STRIDE + i);
+            }
+            deltaScratch[i] = total - lastTotals[i];
+            lastTotals[i] = total;
+        }
+        long executed = 0;
+        long executionMax = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            executed += deltaScratch[EXECUTION_OFFSET + i];
+            if (deltaScratch[EXECUTION_OFFSET + i] != 0) {
+                executionMax = bucketValue(i);
+            }
+        }
+        long started = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            started += deltaScratch[LATENCY_OFFSET + i];
+        }
+        final var depth = this.depth.getAsLong();
+        final var highWater = (long) HIGH_WATER_VAR_HANDLE.getAndSet(this, depth);
+        allTimeHighWaterMark = Math.max(allTimeHighWaterMark, highWater);
+        final var elapsed = Math.max(1, now - lastSampleTime);
+        lastSampleTime = now;
+        lastSample = new Sample(
+                depth, highWater, allTimeHighWaterMark,
+                executed * 1_000_000_000.0 / elapsed,
+                percentile(deltaScratch, LATENCY_OFFSET, started, 0.5), percentile(deltaScratch, LATENCY_OFFSET, started, 0.99),
+                percentile(deltaScratch, EXECUTION_OFFSET, executed, 0.5), percentile(deltaScratch, EXECUTION_OFFSET, executed, 0.99),
+                executionMax
+        );
+        return lastSample;
+    }
+    
+    @ThreadSafety.Many
+    public Sample lastSample() {
+        return lastSample;
+    }
+}
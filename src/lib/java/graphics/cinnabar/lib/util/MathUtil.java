@@ -61,4 +61,17 @@ public class MathUtil {
         }
         return String.format("%.1f%s", fpBytes, suffixes[suffixIndex]);
     }
+    
+    public static String nanosString(long nanos) {
+        if (nanos < 1_000) {
+            return String.format("%dns", nanos);
+        }
+        if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1_000d);
+        }
+        if (nanos < 1_000_000_000) {
+            return String.format("%.1fms", nanos / 1_000_000d);
+        }
+        return String.format("%.1fs", nanos / 1_000_000_000d);
+    }
 }
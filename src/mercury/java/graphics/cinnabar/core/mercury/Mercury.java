@@ -4,6 +4,7 @@ import com.mojang.logging.LogUtils;
 import graphics.cinnabar.api.annotations.UsedFromReflection;
 import graphics.cinnabar.api.hg.HgDevice;
 import graphics.cinnabar.api.memory.GrowingMemoryStack;
+import graphics.cinnabar.api.threading.ThreadIndexRegistry;
 import org.lwjgl.system.MemoryStack;
 import org.slf4j.Logger;
 
@@ -16,12 +17,29 @@ public class Mercury {
     // vulkan validation doesnt work with renderdoc attached
     public static final boolean VULKAN_VALIDATION = !RENDERDOC_ATTACHED && Config.vulkanValidationLayers;
     
-    public static final ThreadLocal<MemoryStack> MEMORY_STACK = ThreadLocal.withInitial(GrowingMemoryStack::new);
+    // stacks are owned by the thread index, not the thread, so when a worker retires and its index is recycled the stack goes with it
+    private static final MemoryStack[] INDEXED_MEMORY_STACKS = new MemoryStack[ThreadIndexRegistry.totalThreads];
+    public static final ThreadLocal<MemoryStack> MEMORY_STACK = ThreadLocal.withInitial(Mercury::threadMemoryStack);
     
     static {
+        // the thread local would otherwise keep pointing at the stack after the index moves to another thread
+        ThreadIndexRegistry.addReleaseListener(MEMORY_STACK::remove);
         MERCURY_LOG.info("Config loaded");
     }
     
+    private static MemoryStack threadMemoryStack() {
+        final var threadIndex = ThreadIndexRegistry.currentThreadIndex();
+        if (!threadIndex.valid()) {
+            return new GrowingMemoryStack();
+        }
+        synchronized (INDEXED_MEMORY_STACKS) {
+            if (INDEXED_MEMORY_STACKS[threadIndex.index()] == null) {
+                INDEXED_MEMORY_STACKS[threadIndex.index()] = new GrowingMemoryStack();
+            }
+            return INDEXED_MEMORY_STACKS[threadIndex.index()];
+        }
+    }
+    
     @UsedFromReflection
     public static HgDevice createDevice(HgDevice.CreateInfo createInfo) {
         return new MercuryDevice(createInfo);
@@ -3,6 +3,8 @@ package graphics.cinnabar.core.mercury;
 import graphics.cinnabar.api.exceptions.NotImplemented;
 import graphics.cinnabar.api.hg.HgBuffer;
 import graphics.cinnabar.api.hg.enums.HgFormat;
+import graphics.cinnabar.api.memory.AllocationProfiler;
+import graphics.cinnabar.api.memory.MemoryBudget;
 import graphics.cinnabar.api.memory.PointerWrapper;
 import it.unimi.dsi.fastutil.longs.LongIntImmutablePair;
 import org.jetbrains.annotations.Nullable;
@@ -19,11 +21,23 @@ public class MercuryBuffer extends MercuryObject<HgBuffer> implements HgBuffer {
     
     private final MemoryType memoryType;
     private final long size;
+    private final long usage;
     private final long handle;
     private final long vmaAllocation;
+    private final MemoryBudget.Category memoryCategory;
+    private final long allocationSize;
+    @Nullable
+    private final PointerWrapper persistentMapping;
+    private final boolean coherent;
+    // moved by defragmentation, the allocation now belongs to the buffer it was moved to
+    private boolean relocatedAway = false;
+    // this buffer is the destination of a defragmentation move, until the pass ends it is bound to VMA's temporary allocation
+    @Nullable
+    private MercuryDefragmentation relocation;
+    private int relocationMove;
     
     @Nullable
-    public static MercuryBuffer attemptCreate(MercuryDevice device, MemoryRequest memoryRequest, long size, long usage) {
+    public static MercuryBuffer attemptCreate(MercuryDevice device, MemoryRequest memoryRequest, long size, long usage, MemoryBudget.Category memoryCategory) {
         try (final var stack = memoryStack().push()) {
             final var bufferPtr = stack.callocLong(1);
             final var allocPtr = stack.callocPointer(1);
@@ -36,19 +50,21 @@ public class MercuryBuffer extends MercuryObject<HgBuffer> implements HgBuffer {
             createInfo.pQueueFamilyIndices(null);
             
             final var allocCreateInfo = VmaAllocationCreateInfo.calloc(stack);
+            // anything that ends up host visible is mapped for its entire lifetime, VMA leaves pMappedData null otherwise
+            // VMA only accepts MAPPED_BIT alongside a HOST_ACCESS flag, so its set per branch
             allocCreateInfo.flags(VMA_ALLOCATION_CREATE_WITHIN_BUDGET_BIT);
             
             switch (memoryRequest) {
                 case CPU -> {
                     allocCreateInfo.usage(VMA_MEMORY_USAGE_AUTO_PREFER_HOST);
-                    allocCreateInfo.flags(allocCreateInfo.flags() | VMA_ALLOCATION_CREATE_HOST_ACCESS_RANDOM_BIT);
+                    allocCreateInfo.flags(allocCreateInfo.flags() | VMA_ALLOCATION_CREATE_HOST_ACCESS_RANDOM_BIT | VMA_ALLOCATION_CREATE_MAPPED_BIT);
                     allocCreateInfo.requiredFlags(VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
                     allocCreateInfo.preferredFlags(VK_MEMORY_PROPERTY_HOST_CACHED_BIT);
                     allocCreateInfo.memoryTypeBits(device.allowedHostBufferMemoryBits);
                 }
                 case MAPPABLE_PREF_GPU -> {
                     allocCreateInfo.usage(VMA_MEMORY_USAGE_AUTO_PREFER_DEVICE);
-                    allocCreateInfo.flags(allocCreateInfo.flags() | VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT);
+                    allocCreateInfo.flags(allocCreateInfo.flags() | VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT | VMA_ALLOCATION_CREATE_MAPPED_BIT);
                     allocCreateInfo.requiredFlags(VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
                     allocCreateInfo.preferredFlags(VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
                     // because this buffer is allowed on both host and device, both's memory types can be used
@@ -59,7 +75,7 @@ public class MercuryBuffer extends MercuryObject<HgBuffer> implements HgBuffer {
                     allocCreateInfo.requiredFlags(VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT);
                     allocCreateInfo.memoryTypeBits(device.allowedDeviceBufferMemoryBits);
                     if (!RENDERDOC_ATTACHED) {
-                        allocCreateInfo.flags(allocCreateInfo.flags() | VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT | VMA_ALLOCATION_CREATE_HOST_ACCESS_ALLOW_TRANSFER_INSTEAD_BIT);
+                        allocCreateInfo.flags(allocCreateInfo.flags() | VMA_ALLOCATION_CREATE_HOST_ACCESS_SEQUENTIAL_WRITE_BIT | VMA_ALLOCATION_CREATE_HOST_ACCESS_ALLOW_TRANSFER_INSTEAD_BIT | VMA_ALLOCATION_CREATE_MAPPED_BIT);
                         allocCreateInfo.preferredFlags(VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
                     }
                 }
@@ -77,6 +93,7 @@ public class MercuryBuffer extends MercuryObject<HgBuffer> implements HgBuffer {
             vmaGetMemoryTypeProperties(device.vmaAllocator(), vmaAllocationInfo.memoryType(), flags);
             final var deviceLocal = (flags.get(0) & VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT) != 0;
             final var mappable = (flags.get(0) & VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT) != 0;
+            final var coherent = (flags.get(0) & VK_MEMORY_PROPERTY_HOST_COHERENT_BIT) != 0;
             
             final MemoryType memoryType;
             if (device.UMA) {
@@ -90,24 +107,115 @@ public class MercuryBuffer extends MercuryObject<HgBuffer> implements HgBuffer {
                 memoryType = mappable && !RENDERDOC_ATTACHED ? MemoryType.GPU_MAPPABLE : MemoryType.GPU;
             }
             
-            return new MercuryBuffer(device, memoryType, size, bufferPtr.get(0), allocPtr.get(0));
+            AllocationProfiler.recordAlloc(AllocationProfiler.Kind.VMA, allocPtr.get(0), vmaAllocationInfo.size());
+            MemoryBudget.allocated(memoryCategory, budgetLocation(memoryType), vmaAllocationInfo.size());
+            final var buffer = new MercuryBuffer(device, memoryType, size, usage, bufferPtr.get(0), allocPtr.get(0), memoryCategory, vmaAllocationInfo.size(), vmaAllocationInfo.pMappedData(), coherent);
+            if (memoryType == MemoryType.GPU) {
+                // never mapped, so nothing outside this object holds on to where the memory is, defragmentation can move it
+                device.registerRelocatable(buffer);
+            }
+            return buffer;
         }
         
     }
     
-    private MercuryBuffer(MercuryDevice device, MemoryType memoryType, long size, long handle, long vmaAllocation) {
+    private MercuryBuffer(MercuryDevice device, MemoryType memoryType, long size, long usage, long handle, long vmaAllocation, MemoryBudget.Category memoryCategory, long allocationSize, long mappedPointer, boolean coherent) {
         super(device);
         this.memoryType = memoryType;
         this.size = size;
+        this.usage = usage;
         this.handle = handle;
         this.vmaAllocation = vmaAllocation;
+        this.memoryCategory = memoryCategory;
+        this.allocationSize = allocationSize;
+        this.persistentMapping = mappedPointer != 0 ? new PointerWrapper(mappedPointer, size) : null;
+        this.coherent = coherent;
+    }
+    
+    private static MemoryBudget.Location budgetLocation(MemoryType memoryType) {
+        return memoryType.gpuLocal ? MemoryBudget.Location.DEVICE : MemoryBudget.Location.HOST;
+    }
+    
+    // creates the buffer for a defragmentation move, bound to the move's temporary allocation
+    // once the pass ends, VMA hands this allocation's new memory to the original handle, so thats what this keeps
+    MercuryBuffer relocate(long dstTmpAllocation, MercuryDefragmentation defragmentation, int move) {
+        assert memoryType == MemoryType.GPU;
+        try (final var stack = memoryStack().push()) {
+            final var createInfo = VkBufferCreateInfo.calloc(stack);
+            createInfo.sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO);
+            createInfo.size(size);
+            createInfo.usage(Math.toIntExact(usage));
+            createInfo.sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+            final var bufferPtr = stack.callocLong(1);
+            checkVkCode(vkCreateBuffer(device.vkDevice(), createInfo, null, bufferPtr));
+            checkVkCode(vmaBindBufferMemory(device.vmaAllocator(), dstTmpAllocation, bufferPtr.get(0)));
+            final var buffer = new MercuryBuffer(device, memoryType, size, usage, bufferPtr.get(0), vmaAllocation, memoryCategory, allocationSize, 0, coherent);
+            buffer.relocation = defragmentation;
+            buffer.relocationMove = move;
+            return buffer;
+        }
+    }
+    
+    // move was skipped, nothing has used the new handle, and the source keeps its allocation
+    void abandonRelocation(MercuryBuffer source) {
+        assert relocation != null;
+        relocation = null;
+        source.relocatedAway = false;
+        device.registerRelocatable(source);
+        vkDestroyBuffer(device.vkDevice(), handle, null);
+    }
+    
+    void relocatedTo(MercuryBuffer destination) {
+        relocatedAway = true;
+        device.registerRelocatable(destination);
+    }
+    
+    void relocationFinished() {
+        relocation = null;
+    }
+    
+    // relocated buffers own only their handle, destroyAll can't batch them with the allocation frees
+    boolean batchableDestroy() {
+        return !relocatedAway && relocation == null;
     }
     
     @Override
     public void destroy() {
+        if (relocatedAway) {
+            vkDestroyBuffer(device.vkDevice(), handle, null);
+            return;
+        }
+        AllocationProfiler.recordFree(AllocationProfiler.Kind.VMA, vmaAllocation);
+        MemoryBudget.freed(memoryCategory, budgetLocation(memoryType), allocationSize);
+        if (memoryType == MemoryType.GPU) {
+            device.unregisterRelocatable(this);
+        }
+        if (relocation != null) {
+            // mid move, the allocations are VMA's to free when the pass ends
+            relocation.relocationDestroyed(this, relocationMove);
+            relocation = null;
+            vkDestroyBuffer(device.vkDevice(), handle, null);
+            return;
+        }
         vmaDestroyBuffer(device.vmaAllocator(), handle, vmaAllocation);
     }
     
+    long vmaAllocation() {
+        return vmaAllocation;
+    }
+    
+    // destroys only the buffer handle, the allocation is freed by the caller, see MercuryDevice.destroyAll
+    long destroyHandleOnly() {
+        assert batchableDestroy();
+        if (memoryType == MemoryType.GPU) {
+            device.unregisterRelocatable(this);
+        }
+        vkDestroyBuffer(device.vkDevice(), handle, null);
+        AllocationProfiler.recordFree(AllocationProfiler.Kind.VMA, vmaAllocation);
+        MemoryBudget.freed(memoryCategory, budgetLocation(memoryType), allocationSize);
+        return vmaAllocation;
+    }
+    
     public long vkBuffer() {
         return handle;
     }
@@ -124,6 +232,12 @@ public class MercuryBuffer extends MercuryObject<HgBuffer> implements HgBuffer {
     
     @Override
     public PointerWrapper map() {
+        if (persistentMapping != null) {
+            if (!coherent) {
+                invalidate(0, size);
+            }
+            return persistentMapping;
+        }
         try (final var stack = memoryStack().push()) {
             final var pointerReturn = stack.pointers(0);
             checkVkCode(vmaMapMemory(device.vmaAllocator(), vmaAllocation, pointerReturn));
@@ -133,9 +247,31 @@ public class MercuryBuffer extends MercuryObject<HgBuffer> implements HgBuffer {
     
     @Override
     public void unmap() {
+        if (persistentMapping != null) {
+            if (!coherent) {
+                flush(0, size);
+            }
+            return;
+        }
         vmaUnmapMemory(device.vmaAllocator(), vmaAllocation);
     }
     
+    @Override
+    public void flush(long offset, long size) {
+        if (coherent) {
+            return;
+        }
+        checkVkCode(vmaFlushAllocation(device.vmaAllocator(), vmaAllocation, offset, size));
+    }
+    
+    @Override
+    public void invalidate(long offset, long size) {
+        if (coherent) {
+            return;
+        }
+        checkVkCode(vmaInvalidateAllocation(device.vmaAllocator(), vmaAllocation, offset, size));
+    }
+    
     @Override
     public View view(HgFormat format, long offset, long size) {
         return new MercuryBufferView(this, format, offset, size);
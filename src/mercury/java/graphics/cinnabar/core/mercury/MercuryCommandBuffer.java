@@ -1,6 +1,5 @@
 package graphics.cinnabar.core.mercury;
 
-import graphics.cinnabar.api.exceptions.NotImplemented;
 import graphics.cinnabar.api.hg.*;
 import graphics.cinnabar.api.memory.GrowingMemoryStack;
 import it.unimi.dsi.fastutil.ints.IntList;
@@ -34,6 +33,8 @@ public class MercuryCommandBuffer extends MercuryObject<HgCommandBuffer> impleme
     @Override
     public void destroy() {
         freeFunction.accept(commandBuffer);
+        // returns any blocks still held, if the buffer was never ended, to the shared pool
+        memoryStack.destroy();
     }
     
     public VkCommandBuffer vkCommandBuffer() {
@@ -54,7 +55,7 @@ public class MercuryCommandBuffer extends MercuryObject<HgCommandBuffer> impleme
     @Override
     public HgCommandBuffer end() {
         vkEndCommandBuffer(commandBuffer);
-        memoryStack.reset(); // frees most of the memory held by the stack
+        memoryStack.reset(); // returns the stack's blocks to the shared pool for the next command buffer
         return this;
     }
     
@@ -109,7 +110,62 @@ public class MercuryCommandBuffer extends MercuryObject<HgCommandBuffer> impleme
     
     @Override
     public HgCommandBuffer queueOwnershipTransfer(HgQueue fromQueue, HgQueue toQueue, @Nullable List<HgBuffer.Slice> buffers, @Nullable List<HgImage.ResourceRange> images, long sourceStage, long srcAccess, long destStage, long dstAccess) {
-        throw new NotImplemented();
+        if (!fromQueue.needsOwnershipTransfer(toQueue)) {
+            // same family, just a plain dependency
+            return barrier(sourceStage, srcAccess, destStage, dstAccess);
+        }
+        // the same barrier is recorded for both halves, the release ignores the dst masks, and the acquire ignores the src masks
+        final var srcFamily = ((MercuryQueue) fromQueue).familyIndex();
+        final var dstFamily = ((MercuryQueue) toQueue).familyIndex();
+        try (final var stack = memoryStack.push()) {
+            final var depInfo = VkDependencyInfo.calloc(stack).sType$Default();
+            if (buffers != null && !buffers.isEmpty()) {
+                final var bufferBarriers = VkBufferMemoryBarrier2.calloc(buffers.size(), stack);
+                for (int i = 0; i < buffers.size(); i++) {
+                    final var slice = buffers.get(i);
+                    bufferBarriers.position(i).sType$Default();
+                    bufferBarriers.srcStageMask(sourceStage);
+                    bufferBarriers.srcAccessMask(srcAccess);
+                    bufferBarriers.dstStageMask(destStage);
+                    bufferBarriers.dstAccessMask(dstAccess);
+                    bufferBarriers.srcQueueFamilyIndex(srcFamily);
+                    bufferBarriers.dstQueueFamilyIndex(dstFamily);
+                    bufferBarriers.buffer(((MercuryBuffer) slice.buffer()).vkBuffer());
+                    bufferBarriers.offset(slice.offset());
+                    bufferBarriers.size(slice.size());
+                }
+                bufferBarriers.position(0);
+                depInfo.pBufferMemoryBarriers(bufferBarriers);
+            }
+            if (images != null && !images.isEmpty()) {
+                final var imageBarriers = VkImageMemoryBarrier2.calloc(images.size(), stack);
+                for (int i = 0; i < images.size(); i++) {
+                    final var range = images.get(i);
+                    final var image = (MercuryImage) range.image();
+                    imageBarriers.position(i).sType$Default();
+                    imageBarriers.srcStageMask(sourceStage);
+                    imageBarriers.srcAccessMask(srcAccess);
+                    imageBarriers.dstStageMask(destStage);
+                    imageBarriers.dstAccessMask(dstAccess);
+                    // images are always kept in general
+                    imageBarriers.oldLayout(VK_IMAGE_LAYOUT_GENERAL);
+                    imageBarriers.newLayout(VK_IMAGE_LAYOUT_GENERAL);
+                    imageBarriers.srcQueueFamilyIndex(srcFamily);
+                    imageBarriers.dstQueueFamilyIndex(dstFamily);
+                    imageBarriers.image(image.vkImage());
+                    final var subresourceRange = imageBarriers.subresourceRange();
+                    subresourceRange.aspectMask(image.format().aspects());
+                    subresourceRange.baseMipLevel(range.baseMipLevel());
+                    subresourceRange.levelCount(range.mipLevels());
+                    subresourceRange.baseArrayLayer(range.baseArrayLayer());
+                    subresourceRange.layerCount(range.layerCount());
+                }
+                imageBarriers.position(0);
+                depInfo.pImageMemoryBarriers(imageBarriers);
+            }
+            vkCmdPipelineBarrier2KHR(commandBuffer, depInfo);
+        }
+        return this;
     }
     
     @Override
@@ -167,26 +223,77 @@ public class MercuryCommandBuffer extends MercuryObject<HgCommandBuffer> impleme
         return this;
     }
     
+    @Override
+    public HgCommandBuffer copyBufferToBuffer(List<HgBuffer.Slice> srcs, List<HgBuffer.Slice> dsts) {
+        assert srcs.size() == dsts.size();
+        if (srcs.isEmpty()) {
+            return this;
+        }
+        try (final var stack = memoryStack.push()) {
+            final var bufferCopies = VkBufferCopy.calloc(srcs.size(), stack);
+            for (int i = 0; i < srcs.size(); i++) {
+                final var src = srcs.get(i);
+                final var dst = dsts.get(i);
+                assert src.buffer() == srcs.getFirst().buffer();
+                assert dst.buffer() == dsts.getFirst().buffer();
+                bufferCopies.position(i);
+                bufferCopies.srcOffset(src.offset());
+                bufferCopies.dstOffset(dst.offset());
+                bufferCopies.size(Math.min(src.size(), dst.size()));
+                if (bufferCopies.size() == 0) {
+                    throw new IllegalArgumentException(src.size() + ", " + dst.size());
+                }
+            }
+            bufferCopies.position(0);
+            
+            vkCmdCopyBuffer(commandBuffer, ((MercuryBuffer) srcs.getFirst().buffer()).vkBuffer(), ((MercuryBuffer) dsts.getFirst().buffer()).vkBuffer(), bufferCopies);
+        }
+        return this;
+    }
+    
+    private static void setBufferImageCopy(VkBufferImageCopy copy, HgBuffer.ImageSlice buffer, HgImage.TransferRange imageRange) {
+        copy.bufferOffset(buffer.offset());
+        final var subresource = copy.imageSubresource();
+        subresource.aspectMask(imageRange.image().format().aspects());
+        subresource.mipLevel(imageRange.mipLevel());
+        subresource.baseArrayLayer(imageRange.baseLayer());
+        subresource.layerCount(imageRange.layerCount());
+        copy.imageOffset().set(imageRange.offset().x(), imageRange.offset().y(), imageRange.offset().z());
+        copy.imageExtent().set(imageRange.extent().x(), imageRange.extent().y(), imageRange.extent().z());
+        copy.bufferRowLength(buffer.width());
+        copy.bufferImageHeight(buffer.height());
+    }
+    
     @Override
     public HgCommandBuffer copyBufferToImage(HgBuffer.ImageSlice buffer, HgImage.TransferRange imageRange) {
         try (final var stack = memoryStack.push()) {
             final var copy = VkBufferImageCopy.calloc(1, stack);
-            copy.bufferOffset(buffer.offset());
-            final var subresource = copy.imageSubresource();
-            subresource.aspectMask(imageRange.image().format().aspects());
-            subresource.mipLevel(imageRange.mipLevel());
-            subresource.baseArrayLayer(imageRange.baseLayer());
-            subresource.layerCount(imageRange.layerCount());
-            copy.imageOffset().set(imageRange.offset().x(), imageRange.offset().y(), imageRange.offset().z());
-            copy.imageExtent().set(imageRange.extent().x(), imageRange.extent().y(), imageRange.extent().z());
-            copy.bufferRowLength(buffer.width());
-            copy.bufferImageHeight(buffer.height());
+            setBufferImageCopy(copy.get(0), buffer, imageRange);
             
             vkCmdCopyBufferToImage(commandBuffer, ((MercuryBuffer) buffer.buffer()).vkBuffer(), ((MercuryImage) imageRange.image()).vkImage(), VK_IMAGE_LAYOUT_GENERAL, copy);
         }
         return this;
     }
     
+    @Override
+    public HgCommandBuffer copyBufferToImage(List<HgBuffer.ImageSlice> buffers, List<HgImage.TransferRange> images) {
+        assert buffers.size() == images.size();
+        if (buffers.isEmpty()) {
+            return this;
+        }
+        try (final var stack = memoryStack.push()) {
+            final var copies = VkBufferImageCopy.calloc(buffers.size(), stack);
+            for (int i = 0; i < buffers.size(); i++) {
+                assert buffers.get(i).buffer() == buffers.getFirst().buffer();
+                assert images.get(i).image() == images.getFirst().image();
+                setBufferImageCopy(copies.get(i), buffers.get(i), images.get(i));
+            }
+            
+            vkCmdCopyBufferToImage(commandBuffer, ((MercuryBuffer) buffers.getFirst().buffer()).vkBuffer(), ((MercuryImage) images.getFirst().image()).vkImage(), VK_IMAGE_LAYOUT_GENERAL, copies);
+        }
+        return this;
+    }
+    
     @Override
     public HgCommandBuffer copyImageToBuffer(HgImage.TransferRange imageRange, HgBuffer.ImageSlice buffer) {
         try (final var stack = memoryStack.push()) {
@@ -0,0 +1,108 @@
+package graphics.cinnabar.core.mercury;
+
+import graphics.cinnabar.api.hg.HgCommandBuffer;
+import graphics.cinnabar.api.hg.HgDevice;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.util.vma.VmaDefragmentationInfo;
+import org.lwjgl.util.vma.VmaDefragmentationPassMoveInfo;
+
+import static graphics.cinnabar.api.exceptions.VkException.checkVkCode;
+import static graphics.cinnabar.core.mercury.Mercury.MEMORY_STACK;
+import static org.lwjgl.util.vma.Vma.*;
+import static org.lwjgl.vulkan.VK10.VK_INCOMPLETE;
+import static org.lwjgl.vulkan.VK10.VK_SUCCESS;
+
+public class MercuryDefragmentation implements HgDevice.Defragmentation {
+    
+    private final MercuryDevice device;
+    private final long context;
+    // VMA owns the moves array, it stays valid until the pass ends
+    private final VmaDefragmentationPassMoveInfo passInfo = VmaDefragmentationPassMoveInfo.calloc();
+    private final ReferenceArrayList<MercuryBuffer> relocating = new ReferenceArrayList<>();
+    private boolean passActive = false;
+    private boolean finished = false;
+    
+    MercuryDefragmentation(MercuryDevice device, long maxBytesPerPass, int maxBuffersPerPass) {
+        this.device = device;
+        try (final var stack = MEMORY_STACK.get().push()) {
+            final var defragmentationInfo = VmaDefragmentationInfo.calloc(stack);
+            defragmentationInfo.flags(VMA_DEFRAGMENTATION_FLAG_ALGORITHM_BALANCED_BIT);
+            // default pools, images get ignored move by move
+            defragmentationInfo.pool(0);
+            defragmentationInfo.maxBytesPerPass(maxBytesPerPass);
+            defragmentationInfo.maxAllocationsPerPass(maxBuffersPerPass);
+            final var contextPtr = stack.callocPointer(1);
+            checkVkCode(vmaBeginDefragmentation(device.vmaAllocator(), defragmentationInfo, contextPtr));
+            context = contextPtr.get(0);
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        if (passActive) {
+            endPass();
+        }
+        vmaEndDefragmentation(device.vmaAllocator(), context, null);
+        passInfo.free();
+    }
+    
+    @Override
+    public int beginPass(HgCommandBuffer commandBuffer, Relocator relocator) {
+        assert !passActive;
+        if (finished) {
+            return -1;
+        }
+        if (checkVkCode(vmaBeginDefragmentationPass(device.vmaAllocator(), context, passInfo)) == VK_SUCCESS) {
+            // nothing left worth moving
+            finished = true;
+            return -1;
+        }
+        passActive = true;
+        final var moves = passInfo.pMoves();
+        int moved = 0;
+        for (int i = 0; i < passInfo.moveCount(); i++) {
+            final var move = moves.get(i);
+            @Nullable
+            final var source = device.relocatableBuffer(move.srcAllocation());
+            if (source == null) {
+                // not a buffer this can move, images and host visible memory stay where they are
+                move.operation(VMA_DEFRAGMENTATION_MOVE_OPERATION_IGNORE);
+                continue;
+            }
+            final var destination = source.relocate(move.dstTmpAllocation(), this, i);
+            // handed over first, the relocator is free to queue the source for destruction
+            source.relocatedTo(destination);
+            if (!relocator.relocate(source, destination)) {
+                destination.abandonRelocation(source);
+                move.operation(VMA_DEFRAGMENTATION_MOVE_OPERATION_IGNORE);
+                continue;
+            }
+            relocating.add(destination);
+            commandBuffer.copyBufferToBuffer(source.slice(), destination.slice());
+            moved++;
+        }
+        return moved;
+    }
+    
+    @Override
+    public boolean endPass() {
+        assert passActive;
+        passActive = false;
+        for (int i = 0; i < relocating.size(); i++) {
+            relocating.get(i).relocationFinished();
+        }
+        relocating.clear();
+        final var result = checkVkCode(vmaEndDefragmentationPass(device.vmaAllocator(), context, passInfo));
+        assert result == VK_SUCCESS || result == VK_INCOMPLETE;
+        finished = result == VK_SUCCESS;
+        return finished;
+    }
+    
+    // the moved buffer was destroyed before the pass ended, VMA frees both allocations at the end of the pass
+    void relocationDestroyed(MercuryBuffer buffer, int move) {
+        assert passActive;
+        passInfo.pMoves().get(move).operation(VMA_DEFRAGMENTATION_MOVE_OPERATION_DESTROY);
+        relocating.remove(buffer);
+    }
+}
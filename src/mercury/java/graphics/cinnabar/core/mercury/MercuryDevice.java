@@ -3,9 +3,14 @@ package graphics.cinnabar.core.mercury;
 import graphics.cinnabar.api.exceptions.VkOutOfDeviceMemory;
 import graphics.cinnabar.api.hg.*;
 import graphics.cinnabar.api.hg.enums.HgFormat;
+import graphics.cinnabar.api.memory.MemoryBudget;
+import graphics.cinnabar.api.memory.MemoryPressure;
+import graphics.cinnabar.api.util.Destroyable;
+import graphics.cinnabar.lib.threading.QueueSystem;
 import graphics.cinnabar.lib.util.MathUtil;
 import graphics.cinnabar.loader.earlywindow.VulkanStartup;
 import graphics.cinnabar.loader.earlywindow.vulkan.VulkanDebug;
+import it.unimi.dsi.fastutil.longs.Long2ReferenceOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongLongImmutablePair;
 import org.jetbrains.annotations.Nullable;
 import org.lwjgl.system.MemoryStack;
@@ -19,6 +24,7 @@ import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 
 import static graphics.cinnabar.core.mercury.Mercury.MEMORY_STACK;
+import static graphics.cinnabar.core.mercury.Mercury.MERCURY_LOG;
 import static org.lwjgl.util.vma.Vma.*;
 import static org.lwjgl.vulkan.EXTDebugUtils.VK_EXT_DEBUG_UTILS_EXTENSION_NAME;
 import static org.lwjgl.vulkan.EXTDebugUtils.vkDestroyDebugUtilsMessengerEXT;
@@ -52,6 +58,8 @@ public class MercuryDevice implements HgDevice {
     
     @Nullable
     private AllocFailedCallback allocFailedCallback;
+    // buffers defragmentation is allowed to move, by VmaAllocation
+    private final Long2ReferenceOpenHashMap<MercuryBuffer> relocatableBuffers = new Long2ReferenceOpenHashMap<>();
     
     public MercuryDevice(HgDevice.CreateInfo createInfo) {
         // TODO: the vulkan instance can be statically created
@@ -261,7 +269,22 @@ public class MercuryDevice implements HgDevice {
     }
     
     public boolean allocFailed(HgBuffer.MemoryRequest request, long size) {
-        return allocFailedCallback != null && allocFailedCallback.allocFailed(request == HgBuffer.MemoryRequest.GPU || UMA, size);
+        final var deviceLocal = request == HgBuffer.MemoryRequest.GPU || UMA;
+        final var location = deviceLocal ? MemoryBudget.Location.DEVICE : MemoryBudget.Location.HOST;
+        // categories over their soft limit give up memory before anything gets evicted by LRU
+        if (MemoryBudget.shedForAllocation(location, size) > 0) {
+            return true;
+        }
+        // then anyone listening for pressure gets a chance to drop caches
+        if (MemoryPressure.allocationFailed(location, size) > 0) {
+            return true;
+        }
+        if (allocFailedCallback != null && allocFailedCallback.allocFailed(deviceLocal, size)) {
+            return true;
+        }
+        MERCURY_LOG.warn("Unable to free memory for {} byte {} allocation, usage by category:", size, deviceLocal ? "device" : "host");
+        MemoryBudget.logUsage();
+        return false;
     }
     
     @Override
@@ -279,10 +302,10 @@ public class MercuryDevice implements HgDevice {
     }
     
     @Override
-    public MercuryBuffer createBuffer(HgBuffer.MemoryRequest memoryRequest, long size, long usage) {
+    public MercuryBuffer createBuffer(HgBuffer.MemoryRequest memoryRequest, long size, long usage, MemoryBudget.Category category) {
         while (true) {
             @Nullable
-            final var buffer = tryCreateBuffer(memoryRequest, size, usage);
+            final var buffer = tryCreateBuffer(memoryRequest, size, usage, category);
             if (buffer != null) {
                 return buffer;
             }
@@ -294,13 +317,13 @@ public class MercuryDevice implements HgDevice {
     
     @Nullable
     @Override
-    public MercuryBuffer tryCreateBuffer(HgBuffer.MemoryRequest memoryType, long size, long usage) {
-        return MercuryBuffer.attemptCreate(this, memoryType, size, usage);
+    public MercuryBuffer tryCreateBuffer(HgBuffer.MemoryRequest memoryType, long size, long usage, MemoryBudget.Category category) {
+        return MercuryBuffer.attemptCreate(this, memoryType, size, usage, category);
     }
     
     @Override
-    public MercuryImage createImage(HgImage.Type type, HgFormat format, int width, int height, int depth, int layers, int mipLevels, long usage, int flags, boolean hostMemory) {
-        return new MercuryImage(this, type, format, width, height, depth, layers, mipLevels, usage, flags, hostMemory);
+    public MercuryImage createImage(HgImage.Type type, HgFormat format, int width, int height, int depth, int layers, int mipLevels, long usage, int flags, boolean hostMemory, MemoryBudget.Category category) {
+        return new MercuryImage(this, type, format, width, height, depth, layers, mipLevels, usage, flags, hostMemory, category);
     }
     
     @Override
@@ -368,6 +391,62 @@ public class MercuryDevice implements HgDevice {
         }
     }
     
+    @Override
+    public void destroyAll(List<? extends Destroyable> destroyables) {
+        int allocationCount = 0;
+        for (int i = 0; i < destroyables.size(); i++) {
+            final var destroyable = destroyables.get(i);
+            if (destroyable instanceof MercuryBuffer buffer && buffer.device() == this && buffer.batchableDestroy()) {
+                allocationCount++;
+            } else if (destroyable instanceof MercuryImage image && image.device() == this) {
+                allocationCount++;
+            } else {
+                destroyable.destroy();
+            }
+        }
+        if (allocationCount == 0) {
+            return;
+        }
+        try (final var stack = memoryStack().push()) {
+            final var allocations = stack.mallocPointer(allocationCount);
+            for (int i = 0; i < destroyables.size(); i++) {
+                final var destroyable = destroyables.get(i);
+                if (destroyable instanceof MercuryBuffer buffer && buffer.device() == this && buffer.batchableDestroy()) {
+                    allocations.put(buffer.destroyHandleOnly());
+                } else if (destroyable instanceof MercuryImage image && image.device() == this) {
+                    allocations.put(image.destroyHandleOnly());
+                }
+            }
+            allocations.flip();
+            // one allocator lock for the entire batch
+            vmaFreeMemoryPages(vmaAllocator, allocations);
+        }
+    }
+    
+    @Override
+    public MercuryDefragmentation beginDefragmentation(long maxBytesPerPass, int maxBuffersPerPass) {
+        return new MercuryDefragmentation(this, maxBytesPerPass, maxBuffersPerPass);
+    }
+    
+    void registerRelocatable(MercuryBuffer buffer) {
+        synchronized (relocatableBuffers) {
+            relocatableBuffers.put(buffer.vmaAllocation(), buffer);
+        }
+    }
+    
+    void unregisterRelocatable(MercuryBuffer buffer) {
+        synchronized (relocatableBuffers) {
+            relocatableBuffers.remove(buffer.vmaAllocation(), buffer);
+        }
+    }
+    
+    @Nullable
+    MercuryBuffer relocatableBuffer(long vmaAllocation) {
+        synchronized (relocatableBuffers) {
+            return relocatableBuffers.get(vmaAllocation);
+        }
+    }
+    
     @Override
     public void addDebugText(List<String> lines) {
         try (final var stack = memoryStack().push()) {
@@ -381,6 +460,15 @@ public class MercuryDevice implements HgDevice {
                 lines.add(String.format("Heap %d usage: %s/%s/%s", i, MathUtil.byteString(stats.statistics().allocationBytes()), MathUtil.byteString(stats.statistics().blockBytes()), MathUtil.byteString(stats.budget())));
             }
         }
+        for (final var category : MemoryBudget.Category.values()) {
+            final var host = MemoryBudget.live(category, MemoryBudget.Location.HOST);
+            final var device = MemoryBudget.live(category, MemoryBudget.Location.DEVICE);
+            if (host == 0 && device == 0) {
+                continue;
+            }
+            lines.add(String.format("%s: host %s, device %s", category, MathUtil.byteString(host), MathUtil.byteString(device)));
+        }
+        QueueSystem.addDebugText(lines);
     }
     
     @Override
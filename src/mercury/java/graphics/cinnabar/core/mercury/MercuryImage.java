@@ -4,6 +4,8 @@ import graphics.cinnabar.api.exceptions.VkOutOfDeviceMemory;
 import graphics.cinnabar.api.hg.HgBuffer;
 import graphics.cinnabar.api.hg.HgImage;
 import graphics.cinnabar.api.hg.enums.HgFormat;
+import graphics.cinnabar.api.memory.AllocationProfiler;
+import graphics.cinnabar.api.memory.MemoryBudget;
 import it.unimi.dsi.fastutil.longs.LongIntImmutablePair;
 import org.lwjgl.util.vma.VmaAllocationCreateInfo;
 import org.lwjgl.vulkan.VkImageCreateInfo;
@@ -24,9 +26,13 @@ public class MercuryImage extends MercuryObject<HgImage> implements HgImage {
     
     private final long imageHandle;
     private final long vmaAllocation;
+    private final MemoryBudget.Category memoryCategory;
+    private final MemoryBudget.Location memoryLocation;
+    private final long allocationSize;
     
-    public MercuryImage(MercuryDevice device, Type type, HgFormat format, int width, int height, int depth, int layers, int levelCount, long usage, int flags, boolean hostMemory) {
+    public MercuryImage(MercuryDevice device, Type type, HgFormat format, int width, int height, int depth, int layers, int levelCount, long usage, int flags, boolean hostMemory, MemoryBudget.Category memoryCategory) {
         super(device);
+        this.memoryCategory = memoryCategory;
         this.type = type;
         this.format = format;
         this.width = width;
@@ -78,6 +84,12 @@ public class MercuryImage extends MercuryObject<HgImage> implements HgImage {
                 break;
             }
             vmaAllocation = allocationPtr.get(0);
+            AllocationProfiler.recordAlloc(AllocationProfiler.Kind.VMA, vmaAllocation, memoryRequirements.size());
+            final var memoryTypeFlags = stack.callocInt(1);
+            vmaGetMemoryTypeProperties(device.vmaAllocator(), memoryType.get(0), memoryTypeFlags);
+            memoryLocation = (memoryTypeFlags.get(0) & VK_MEMORY_PROPERTY_DEVICE_LOCAL_BIT) != 0 ? MemoryBudget.Location.DEVICE : MemoryBudget.Location.HOST;
+            allocationSize = memoryRequirements.size();
+            MemoryBudget.allocated(memoryCategory, memoryLocation, allocationSize);
             vmaBindImageMemory(device.vmaAllocator(), vmaAllocation, imageHandle);
         }
     }
@@ -85,9 +97,19 @@ public class MercuryImage extends MercuryObject<HgImage> implements HgImage {
     @Override
     public void destroy() {
         vkDestroyImage(device.vkDevice(), imageHandle, null);
+        AllocationProfiler.recordFree(AllocationProfiler.Kind.VMA, vmaAllocation);
+        MemoryBudget.freed(memoryCategory, memoryLocation, allocationSize);
         vmaFreeMemory(device.vmaAllocator(), vmaAllocation);
     }
     
+    // destroys only the image handle, the allocation is freed by the caller, see MercuryDevice.destroyAll
+    long destroyHandleOnly() {
+        vkDestroyImage(device.vkDevice(), imageHandle, null);
+        AllocationProfiler.recordFree(AllocationProfiler.Kind.VMA, vmaAllocation);
+        MemoryBudget.freed(memoryCategory, memoryLocation, allocationSize);
+        return vmaAllocation;
+    }
+    
     public Type type() {
         return type;
     }
@@ -125,6 +147,16 @@ public class MercuryImage extends MercuryObject<HgImage> implements HgImage {
         return levelCount;
     }
     
+    @Override
+    public long size() {
+        return allocationSize;
+    }
+    
+    @Override
+    public MemoryBudget.Location memoryLocation() {
+        return memoryLocation;
+    }
+    
     @Override
     public View createView(View.Type viewType, HgFormat format, int baseMipLevel, int levelCount, int baseArrayLayer, int layerCount) {
         return new MercuryImageView(this, viewType, format, baseMipLevel, levelCount, baseArrayLayer, layerCount);
@@ -0,0 +1,157 @@
+package graphics.cinnabar.api.threading;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// results are written by the executing thread without synchronization, isDone() and get() on another thread have to see all of it
+public class WorkFutureVisibilityTest {
+    
+    private static final int ITERATIONS = 200_000;
+    
+    // deliberately not final, final fields would be safely published regardless of the future
+    private static class Payload {
+        int a;
+        long b;
+        int[] c;
+        
+        Payload(int i) {
+            a = i;
+            b = i * 31L;
+            c = new int[]{i, -i};
+        }
+    }
+    
+    private static void check(int i, Payload payload) {
+        assertEquals(i, payload.a);
+        assertEquals(i * 31L, payload.b);
+        assertNotNull(payload.c);
+        assertEquals(i, payload.c[0]);
+        assertEquals(-i, payload.c[1]);
+    }
+    
+    private static void runConcurrently(Runnable writer, Runnable reader) throws InterruptedException {
+        final var failure = new AtomicReference<Throwable>();
+        final var writerThread = new Thread(() -> {
+            try {
+                writer.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "WorkFuture writer");
+        final var readerThread = new Thread(() -> {
+            try {
+                reader.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "WorkFuture reader");
+        writerThread.start();
+        readerThread.start();
+        writerThread.join();
+        readerThread.join();
+        if (failure.get() != null) {
+            fail(failure.get());
+        }
+    }
+    
+    @Test
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    public void spinningOnIsDoneSeesResult() throws InterruptedException {
+        // created up front, the only thing handed between the threads is each future's own state
+        @SuppressWarnings("unchecked")
+        final WorkFuture<Payload>[] futures = new WorkFuture[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            final var value = i;
+            futures[i] = new WorkFuture<>(threadIndex -> new Payload(value));
+        }
+        runConcurrently(() -> {
+            for (final var future : futures) {
+                future.accept(ThreadIndex.CLEANUP);
+            }
+        }, () -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                final var future = futures[i];
+                while (!future.isDone()) {
+                    Thread.onSpinWait();
+                }
+                check(i, future.getNotNull());
+            }
+        });
+    }
+    
+    @Test
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    public void blockingGetSeesResult() throws InterruptedException {
+        // fewer iterations, most of these park in wait()
+        final var iterations = ITERATIONS / 20;
+        @SuppressWarnings("unchecked")
+        final WorkFuture<Payload>[] futures = new WorkFuture[iterations];
+        for (int i = 0; i < iterations; i++) {
+            final var value = i;
+            futures[i] = new WorkFuture<>(threadIndex -> new Payload(value));
+        }
+        runConcurrently(() -> {
+            for (final var future : futures) {
+                future.accept(ThreadIndex.CLEANUP);
+            }
+        }, () -> {
+            for (int i = 0; i < iterations; i++) {
+                try {
+                    // unregistered threads block in get() rather than helping
+                    check(i, futures[i].get());
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+    
+    @Test
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    public void exceptionAndCallbacksVisible() throws InterruptedException {
+        final var iterations = ITERATIONS / 20;
+        final var callbacks = new AtomicInteger();
+        @SuppressWarnings("unchecked")
+        final WorkFuture<Payload>[] futures = new WorkFuture[iterations];
+        for (int i = 0; i < iterations; i++) {
+            final var value = i;
+            futures[i] = new WorkFuture<>(threadIndex -> {
+                if ((value & 1) != 0) {
+                    throw new IllegalStateException(Integer.toString(value));
+                }
+                return new Payload(value);
+            });
+            futures[i].onCompleteCallback((future, threadIndex) -> {
+                assertTrue(future.isDone());
+                callbacks.incrementAndGet();
+            });
+        }
+        runConcurrently(() -> {
+            for (final var future : futures) {
+                future.accept(ThreadIndex.CLEANUP);
+            }
+        }, () -> {
+            for (int i = 0; i < iterations; i++) {
+                final var future = futures[i];
+                while (!future.isDone()) {
+                    Thread.onSpinWait();
+                }
+                if ((i & 1) != 0) {
+                    final var exception = assertThrows(ExecutionException.class, future::get);
+                    assertInstanceOf(IllegalStateException.class, exception.getCause());
+                    assertEquals(Integer.toString(i), exception.getCause().getMessage());
+                } else {
+                    check(i, future.getNotNull());
+                }
+            }
+        });
+        assertEquals(iterations, callbacks.get());
+    }
+}
@@ -0,0 +1,188 @@
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.hg.HgBuffer;
+import graphics.cinnabar.api.memory.MagicMemorySizes;
+import it.unimi.dsi.fastutil.longs.Long2IntAVLTreeMap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import static graphics.cinnabar.core.residency.ResidencyTraceReader.*;
+
+// writes a synthetic residency trace, a camera flying across a chunk grid
+// chunk meshes are constant data, built a few per frame as they come into range and rebuilt as new buffers, roughly half of the loaded ones are drawn
+// alongside them are streaming buffers rewritten every frame, static geometry uploaded once and rebuilt now and then, and readback buffers
+// a fixed seed, so the same trace every time, ~85MiB of buffers at peak
+final class ChunkFlythroughTrace {
+    
+    static final int FRAMES = 600;
+    static final long STREAMING_BUFFER_SIZE = 256 * MagicMemorySizes.KiB;
+    static final int STREAMING_BUFFERS = 4;
+    static final long BYTES_WRITTEN = FRAMES * STREAMING_BUFFERS * STREAMING_BUFFER_SIZE;
+    
+    private static final int STATIC_BUFFERS = 6;
+    private static final int READBACK_BUFFERS = 2;
+    private static final long READBACK_BUFFER_SIZE = 512 * MagicMemorySizes.KiB;
+    // chunks within this many of the camera are loaded, and unloaded once past KEEP_RADIUS
+    private static final int LOAD_RADIUS = 4;
+    private static final int KEEP_RADIUS = 6;
+    private static final int BUILDS_PER_FRAME = 6;
+    
+    private final DataOutputStream out;
+    private long random = 0x2545F4914F6CDD1DL;
+    private int nextBufferId = 0;
+    
+    private ChunkFlythroughTrace(DataOutputStream out) {
+        this.out = out;
+    }
+    
+    static void write(Path path) throws IOException {
+        try (final var out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(path))))) {
+            new ChunkFlythroughTrace(out).write();
+        }
+    }
+    
+    private void write() throws IOException {
+        out.writeInt(MAGIC);
+        writeVarLong(VERSION);
+        
+        final var streaming = new int[STREAMING_BUFFERS];
+        for (int i = 0; i < streaming.length; i++) {
+            streaming[i] = create(STREAMING_BUFFER_SIZE, HgBuffer.MemoryRequest.MAPPABLE_PREF_GPU, false, false, true);
+        }
+        // uploaded once, GPU only, but a copy destination so not constant
+        final var statics = new int[STATIC_BUFFERS];
+        for (int i = 0; i < statics.length; i++) {
+            statics[i] = create(staticSize(), HgBuffer.MemoryRequest.GPU, false, true, false);
+        }
+        final var readback = new int[READBACK_BUFFERS];
+        for (int i = 0; i < readback.length; i++) {
+            readback[i] = create(READBACK_BUFFER_SIZE, HgBuffer.MemoryRequest.CPU, false, false, false);
+        }
+        // chunk position to buffer id, sorted so picking and unloading is the same every run
+        final var chunks = new Long2IntAVLTreeMap();
+        
+        for (int frame = 0; frame < FRAMES; frame++) {
+            // one chunk every 12 frames along x, wandering back and forth a little along z
+            final var cameraX = frame / 12;
+            final var cameraZ = (frame / 40) % 3;
+            for (final var buffer : streaming) {
+                write(buffer, STREAMING_BUFFER_SIZE);
+                use(buffer);
+            }
+            for (final var buffer : statics) {
+                use(buffer);
+            }
+            if (frame % 30 == 0) {
+                for (final var buffer : readback) {
+                    use(buffer);
+                }
+            }
+            if (frame % 150 == 75) {
+                final var i = random(statics.length);
+                destroy(statics[i]);
+                statics[i] = create(staticSize(), HgBuffer.MemoryRequest.GPU, false, true, false);
+            }
+            
+            int built = 0;
+            for (int dx = -LOAD_RADIUS; dx <= LOAD_RADIUS; dx++) {
+                for (int dz = -LOAD_RADIUS; dz <= LOAD_RADIUS; dz++) {
+                    final var chunk = chunkKey(cameraX + dx, cameraZ + dz);
+                    if (!chunks.containsKey(chunk)) {
+                        if (built >= BUILDS_PER_FRAME) {
+                            continue;
+                        }
+                        chunks.put(chunk, create(chunkSize(), HgBuffer.MemoryRequest.GPU, true, false, false));
+                        built++;
+                    }
+                    // frustum culling, everything ahead and a quarter of what's behind
+                    if (dx >= -1 || random(4) == 0) {
+                        use(chunks.get(chunk));
+                    }
+                }
+            }
+            if (random(3) == 0) {
+                // a mesh changed, and is rebuilt as a new buffer
+                final var keys = chunks.keySet().toLongArray();
+                final var chunk = keys[random(keys.length)];
+                destroy(chunks.get(chunk));
+                chunks.put(chunk, create(chunkSize(), HgBuffer.MemoryRequest.GPU, true, false, false));
+            }
+            for (final var iterator = chunks.long2IntEntrySet().iterator(); iterator.hasNext(); ) {
+                final var entry = iterator.next();
+                final var x = chunkX(entry.getLongKey());
+                final var z = chunkZ(entry.getLongKey());
+                if (Math.abs(x - cameraX) > KEEP_RADIUS || Math.abs(z - cameraZ) > KEEP_RADIUS) {
+                    destroy(entry.getIntValue());
+                    iterator.remove();
+                }
+            }
+            out.writeByte(EVENT_FRAME);
+        }
+        out.writeByte(EVENT_END);
+    }
+    
+    private static long chunkKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+    
+    private static int chunkX(long key) {
+        return (int) (key >> 32);
+    }
+    
+    private static int chunkZ(long key) {
+        return (int) key;
+    }
+    
+    private long staticSize() {
+        return (1 + random(4)) * MagicMemorySizes.MiB;
+    }
+    
+    private long chunkSize() {
+        return (16 + random(240)) * 4 * MagicMemorySizes.KiB;
+    }
+    
+    // 64 bit LCG, the high bits
+    private int random(int bound) {
+        random = random * 6364136223846793005L + 1442695040888963407L;
+        return (int) Long.remainderUnsigned(random >>> 33, bound);
+    }
+    
+    private int create(long size, HgBuffer.MemoryRequest request, boolean constantData, boolean initialData, boolean immediate) throws IOException {
+        final var id = nextBufferId++;
+        out.writeByte(EVENT_CREATE);
+        writeVarLong(id);
+        writeVarLong(size);
+        out.writeByte(request.ordinal());
+        out.writeByte((constantData ? FLAG_CONSTANT_DATA : 0) | (initialData ? FLAG_INITIAL_DATA : 0) | (immediate ? FLAG_IMMEDIATE : 0));
+        return id;
+    }
+    
+    private void use(int id) throws IOException {
+        out.writeByte(EVENT_USE);
+        writeVarLong(id);
+    }
+    
+    private void write(int id, long bytes) throws IOException {
+        out.writeByte(EVENT_WRITE);
+        writeVarLong(id);
+        writeVarLong(bytes);
+    }
+    
+    private void destroy(int id) throws IOException {
+        out.writeByte(EVENT_DESTROY);
+        writeVarLong(id);
+    }
+    
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
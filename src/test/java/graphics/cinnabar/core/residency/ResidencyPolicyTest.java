@@ -0,0 +1,276 @@
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.hg.HgBuffer;
+import graphics.cinnabar.lib.datastructures.SpliceableLinkedList;
+import it.unimi.dsi.fastutil.longs.LongLongImmutablePair;
+import it.unimi.dsi.fastutil.longs.LongLongPair;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// ResidencyPolicy against a backend that only records what it is asked to do
+// usage is fixed per test, the policy counts its own moves off of it
+public class ResidencyPolicyTest {
+    
+    private static final long SIZE = 40;
+    private static final int FRAMES_IN_FLIGHT = 2;
+    
+    private static final class Buffer {
+        private final String name;
+        private final boolean sourceData;
+        private final SpliceableLinkedList.Node<Buffer> node = new SpliceableLinkedList.Node<>(this);
+        private HgBuffer.MemoryType memoryType;
+        private long lastUsedFrame;
+        
+        private Buffer(String name, HgBuffer.MemoryType memoryType, boolean sourceData) {
+            this.name = name;
+            this.memoryType = memoryType;
+            this.sourceData = sourceData;
+        }
+    }
+    
+    private static final class Backend implements ResidencyPolicy.Backend<Buffer> {
+        private final List<String> moves = new ArrayList<>();
+        private final ResidencyPolicy<Buffer> policy = new ResidencyPolicy<>(this);
+        // starts past 0 like Hg3DGpuDevice, which is also the frame no promotion has failed in
+        private long currentFrame = FRAMES_IN_FLIGHT;
+        private long hostUsage;
+        private long hostBudget = Long.MAX_VALUE;
+        private long deviceUsage;
+        private long deviceBudget = Long.MAX_VALUE;
+        private boolean promotionsFail;
+        
+        private Buffer create(String name, HgBuffer.MemoryType memoryType, boolean sourceData) {
+            final var buffer = new Buffer(name, memoryType, sourceData);
+            use(buffer);
+            return buffer;
+        }
+        
+        private void use(Buffer buffer) {
+            buffer.lastUsedFrame = currentFrame;
+            policy.used(buffer);
+        }
+        
+        @Override
+        public SpliceableLinkedList.Node<Buffer> usageListNode(Buffer buffer) {
+            return buffer.node;
+        }
+        
+        @Override
+        public long size(Buffer buffer) {
+            return SIZE;
+        }
+        
+        @Override
+        public long currentFrame() {
+            return currentFrame;
+        }
+        
+        @Override
+        public boolean isInFlight(Buffer buffer) {
+            return currentFrame - buffer.lastUsedFrame < FRAMES_IN_FLIGHT;
+        }
+        
+        @Override
+        public boolean usedThisFrame(Buffer buffer) {
+            return buffer.lastUsedFrame == currentFrame;
+        }
+        
+        @Override
+        public HgBuffer.MemoryType memoryType(Buffer buffer) {
+            return buffer.memoryType;
+        }
+        
+        @Override
+        public boolean hasSourceData(Buffer buffer) {
+            return buffer.sourceData;
+        }
+        
+        @Override
+        public boolean UMA() {
+            return false;
+        }
+        
+        @Override
+        public LongLongPair hostLocalMemoryStats() {
+            return new LongLongImmutablePair(hostUsage, hostBudget);
+        }
+        
+        @Override
+        public LongLongPair deviceLocalMemoryStats() {
+            return new LongLongImmutablePair(deviceUsage, deviceBudget);
+        }
+        
+        @Override
+        public void drop(Buffer buffer) {
+            moves.add("drop " + buffer.name);
+        }
+        
+        @Override
+        public void evictToHost(Buffer buffer) {
+            moves.add("evict " + buffer.name);
+        }
+        
+        @Override
+        public void stall() {
+            moves.add("stall");
+        }
+        
+        @Override
+        public long shuffleCapacity() {
+            return SIZE * 2;
+        }
+        
+        @Override
+        public void shuffleToHost(ReferenceArrayList<Buffer> buffers) {
+            final var names = new ArrayList<String>();
+            buffers.forEach(buffer -> names.add(buffer.name));
+            moves.add("shuffle " + String.join(" ", names));
+        }
+        
+        @Override
+        public boolean demoteToHost(Buffer buffer) {
+            moves.add("demote " + buffer.name);
+            buffer.memoryType = HgBuffer.MemoryType.CPU;
+            return true;
+        }
+        
+        @Override
+        public boolean promoteToDevice(Buffer buffer) {
+            moves.add("promote " + buffer.name);
+            if (promotionsFail) {
+                return false;
+            }
+            buffer.memoryType = HgBuffer.MemoryType.GPU;
+            return true;
+        }
+    }
+    
+    @Test
+    public void autoDemoteLeastRecentlyUsedFirst() {
+        final var backend = new Backend();
+        final var a = backend.create("a", HgBuffer.MemoryType.GPU, false);
+        final var b = backend.create("b", HgBuffer.MemoryType.GPU, false);
+        final var c = backend.create("c", HgBuffer.MemoryType.GPU, false);
+        final var d = backend.create("d", HgBuffer.MemoryType.GPU, false);
+        backend.currentFrame++;
+        backend.use(c);
+        backend.use(a);
+        backend.currentFrame++;
+        backend.use(d);
+        backend.use(b);
+        backend.currentFrame += FRAMES_IN_FLIGHT;
+        // target is 90, two have to go to get there
+        backend.deviceUsage = 4 * SIZE;
+        backend.deviceBudget = 96;
+        backend.policy.autoDemote();
+        assertEquals(List.of("demote c", "demote a"), backend.moves);
+        assertEquals(2 * SIZE, backend.policy.deviceBytesDemoted());
+    }
+    
+    @Test
+    public void autoDemoteLeavesInFlightBuffers() {
+        final var backend = new Backend();
+        backend.create("a", HgBuffer.MemoryType.GPU, false);
+        backend.currentFrame += FRAMES_IN_FLIGHT;
+        backend.create("b", HgBuffer.MemoryType.GPU, false);
+        backend.create("c", HgBuffer.MemoryType.GPU, false);
+        // still over after a, but b and c may still be read by the GPU
+        backend.deviceUsage = 3 * SIZE;
+        backend.deviceBudget = SIZE;
+        backend.policy.autoDemote();
+        assertEquals(List.of("demote a"), backend.moves);
+    }
+    
+    @Test
+    public void autoDemoteHostStopsAtTarget() {
+        final var backend = new Backend();
+        backend.create("a", HgBuffer.MemoryType.CPU, false);
+        backend.create("b", HgBuffer.MemoryType.CPU, true);
+        backend.create("c", HgBuffer.MemoryType.CPU, false);
+        backend.create("d", HgBuffer.MemoryType.CPU, true);
+        backend.currentFrame += FRAMES_IN_FLIGHT;
+        // target is 112, c and d fit under it
+        backend.hostUsage = 4 * SIZE;
+        backend.hostBudget = 128;
+        backend.policy.autoDemote();
+        assertEquals(List.of("evict a", "drop b"), backend.moves);
+    }
+    
+    @Test
+    public void autoDemoteUnderTargetMovesNothing() {
+        final var backend = new Backend();
+        backend.create("a", HgBuffer.MemoryType.GPU, false);
+        backend.create("b", HgBuffer.MemoryType.CPU, false);
+        backend.currentFrame += FRAMES_IN_FLIGHT;
+        backend.deviceUsage = SIZE;
+        backend.deviceBudget = 2 * SIZE;
+        backend.hostUsage = SIZE;
+        backend.hostBudget = 2 * SIZE;
+        backend.policy.autoDemote();
+        assertEquals(List.of(), backend.moves);
+    }
+    
+    @Test
+    public void allocFailedTakesFreeEvictionsBeforeStalling() {
+        final var backend = new Backend();
+        backend.create("a", HgBuffer.MemoryType.GPU, true);
+        backend.create("b", HgBuffer.MemoryType.GPU, false);
+        backend.create("c", HgBuffer.MemoryType.CPU, true);
+        backend.create("d", HgBuffer.MemoryType.GPU, true);
+        backend.currentFrame += FRAMES_IN_FLIGHT;
+        // b can't be dropped and c is in the wrong heap, a and d are enough
+        assertTrue(backend.policy.allocFailed(true, 2 * SIZE));
+        assertEquals(List.of("drop a", "drop d"), backend.moves);
+    }
+    
+    @Test
+    public void allocFailedStallsForLastFramesBuffers() {
+        final var backend = new Backend();
+        backend.create("a", HgBuffer.MemoryType.GPU, true);
+        backend.currentFrame += FRAMES_IN_FLIGHT;
+        backend.create("b", HgBuffer.MemoryType.CPU, false);
+        backend.currentFrame++;
+        backend.create("c", HgBuffer.MemoryType.CPU, false);
+        // b is in flight, only after the stall can it go, c is this frame's and has to stay
+        assertTrue(backend.policy.allocFailed(false, 2 * SIZE));
+        assertEquals(List.of("stall", "evict b"), backend.moves);
+    }
+    
+    @Test
+    public void allocFailedShufflesDeviceBuffersLeastRecentlyUsedFirst() {
+        final var backend = new Backend();
+        final var a = backend.create("a", HgBuffer.MemoryType.GPU, false);
+        final var b = backend.create("b", HgBuffer.MemoryType.GPU, false);
+        final var c = backend.create("c", HgBuffer.MemoryType.GPU, false);
+        backend.currentFrame++;
+        backend.use(b);
+        backend.use(a);
+        backend.use(c);
+        backend.currentFrame++;
+        // nothing can be dropped or copied out through a mapping, two passes through the shuffle buffer
+        assertTrue(backend.policy.allocFailed(true, 3 * SIZE));
+        assertEquals(List.of("stall", "shuffle b a", "shuffle c"), backend.moves);
+        assertNull(backend.policy.leastRecentlyUsed());
+    }
+    
+    @Test
+    public void failedPromotionSkipsTheRestOfTheFrame() {
+        final var backend = new Backend();
+        final var a = backend.create("a", HgBuffer.MemoryType.CPU, false);
+        final var b = backend.create("b", HgBuffer.MemoryType.CPU, false);
+        backend.promotionsFail = true;
+        backend.policy.promoteToDevice(a);
+        backend.policy.promoteToDevice(b);
+        assertTrue(backend.policy.promotionFailedThisFrame());
+        backend.currentFrame++;
+        backend.promotionsFail = false;
+        backend.policy.promoteToDevice(b);
+        assertEquals(List.of("promote a", "promote b"), backend.moves);
+        assertEquals(HgBuffer.MemoryType.GPU, b.memoryType);
+    }
+}
@@ -0,0 +1,79 @@
+package graphics.cinnabar.core.residency;
+
+import graphics.cinnabar.api.memory.MagicMemorySizes;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// replays ChunkFlythroughTrace through ResidencyPolicy, the same code Hg3DGpuBuffer.Manager runs
+// only properties any policy should keep are checked, not exact byte counts, the order things are moved in is covered by ResidencyPolicyTest
+public class ResidencySimulatorTest {
+    
+    private static Path trace;
+    
+    @BeforeAll
+    public static void writeTrace(@TempDir Path dir) throws IOException {
+        trace = dir.resolve("chunk-flythrough.trace.gz");
+        ChunkFlythroughTrace.write(trace);
+    }
+    
+    private static ResidencySimulator.Result simulate(long deviceMiB, long hostMiB) throws IOException {
+        return ResidencySimulator.simulate(trace, deviceMiB * MagicMemorySizes.MiB, hostMiB * MagicMemorySizes.MiB);
+    }
+    
+    @Test
+    public void everythingFitsNothingMoves() throws IOException {
+        final var result = simulate(1024, 256);
+        assertEquals(ChunkFlythroughTrace.FRAMES, result.frames(), result::toString);
+        assertEquals(ChunkFlythroughTrace.BYTES_WRITTEN, result.bytesWritten(), result::toString);
+        assertEquals(0, result.bytesPromoted(), result::toString);
+        assertEquals(0, result.bytesEvicted(), result::toString);
+        assertEquals(0, result.bytesDropped(), result::toString);
+        assertEquals(0, result.bytesDemoted(), result::toString);
+        assertEquals(0, result.stalls(), result::toString);
+        assertEquals(0, result.failedPromotions(), result::toString);
+        assertEquals(0, result.outOfMemory(), result::toString);
+        assertEquals(0, result.framesOverDeviceTarget(), result::toString);
+    }
+    
+    @Test
+    public void deviceOverSubscribed() throws IOException {
+        final var result = simulate(64, 256);
+        // the trace has more than this at peak, so demotion has to happen
+        assertTrue(result.bytesDemoted() > 0, result::toString);
+        // and it keeps the device heap under its target, without ever stalling or failing an allocation
+        assertTrue(result.peakDeviceBytes() <= 64 * MagicMemorySizes.MiB, result::toString);
+        assertEquals(0, result.framesOverDeviceTarget(), result::toString);
+        assertEquals(0, result.outOfMemory(), result::toString);
+        assertEquals(0, result.stalls(), result::toString);
+        // host visible memory has room for everything demoted, so nothing needs to leave vulkan memory entirely
+        assertEquals(0, result.bytesEvicted(), result::toString);
+        assertEquals(0, result.bytesDropped(), result::toString);
+        // demoted buffers that are used again come back
+        assertTrue(result.bytesPromoted() > 0, result::toString);
+    }
+    
+    @Test
+    public void bothHeapsOverSubscribed() throws IOException {
+        final var result = simulate(8, 16);
+        // a single frame's working set doesn't fit, so allocations fail, but the heaps are never pushed past their sizes by the policy itself
+        assertTrue(result.peakDeviceBytes() <= 8 * MagicMemorySizes.MiB, result::toString);
+        assertTrue(result.outOfMemory() > 0, result::toString);
+        assertTrue(result.stalls() > 0, result::toString);
+        // constant data is always dropped rather than copied out
+        assertTrue(result.bytesDropped() > result.bytesEvicted(), result::toString);
+        // with the host heap full too there is nowhere to demote to
+        assertEquals(0, result.bytesDemoted(), result::toString);
+    }
+    
+    @Test
+    public void deterministic() throws IOException {
+        assertEquals(simulate(64, 256), simulate(64, 256));
+        assertEquals(simulate(8, 16), simulate(8, 16));
+    }
+}
@@ -0,0 +1,237 @@
+package graphics.cinnabar.lib.datastructures;
+
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// randomized MPMC stress for RingQueue, failures print the seed, rerun with -Dcinnabar.stressSeed=<seed>
+// run with assertions enabled, the ring's slot ownership checks are asserts
+public class RingQueueStressTest {
+    
+    private static final int PER_PRODUCER = 100_000;
+    
+    private static long seed() {
+        final var property = System.getProperty("cinnabar.stressSeed", "");
+        return property.isEmpty() ? System.nanoTime() : Long.parseLong(property);
+    }
+    
+    // producer in the high bits, its sequence number in the low bits
+    private static long element(int producer, int sequence) {
+        return ((long) producer << 32) | sequence;
+    }
+    
+    @RepeatedTest(4)
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    public void mpmcEveryElementExactlyOnce() throws InterruptedException {
+        final var seed = seed();
+        final var random = new SplittableRandom(seed);
+        // small rings so producers spend most of their time blocked in forceEnqueue on a full ring, and the ring wraps thousands of times
+        final var ringBits = 2 + random.nextInt(5);
+        final var producers = 1 + random.nextInt(4);
+        final var consumers = 1 + random.nextInt(4);
+        final var description = "seed " + seed + ", ringBits " + ringBits + ", producers " + producers + ", consumers " + consumers;
+        
+        final var queue = new RingQueue<Long>(ringBits);
+        final var seen = new AtomicIntegerArray(producers * PER_PRODUCER);
+        final var remaining = new AtomicLong((long) producers * PER_PRODUCER);
+        final var failure = new AtomicReference<Throwable>();
+        final var start = new CountDownLatch(1);
+        final var threads = new ReferenceArrayList<Thread>();
+        
+        for (int p = 0; p < producers; p++) {
+            final var producer = p;
+            final var producerRandom = random.split();
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    int sequence = 0;
+                    while (sequence < PER_PRODUCER) {
+                        if (producerRandom.nextInt(4) == 0) {
+                            // batches larger than the ring block part way through until consumers catch up
+                            final var batchSize = Math.min(PER_PRODUCER - sequence, 1 + producerRandom.nextInt(1 << (ringBits + 1)));
+                            final var batch = new ReferenceArrayList<Long>(batchSize);
+                            for (int i = 0; i < batchSize; i++) {
+                                batch.add(element(producer, sequence++));
+                            }
+                            queue.forceEnqueueMany(batch);
+                        } else {
+                            queue.forceEnqueue(element(producer, sequence++));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "RingQueue producer " + p));
+        }
+        
+        for (int c = 0; c < consumers; c++) {
+            final var consumerRandom = random.split();
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    // a single consumer claims indices in increasing order, so it sees each producer's elements in order
+                    final var lastSequence = new int[producers];
+                    Arrays.fill(lastSequence, -1);
+                    final var out = new Object[1 << ringBits];
+                    while (remaining.get() > 0 && failure.get() == null) {
+                        final var mode = consumerRandom.nextInt(3);
+                        int count = 0;
+                        if (mode == 0) {
+                            final var value = queue.dequeue();
+                            if (value != null) {
+                                out[0] = value;
+                                count = 1;
+                            }
+                        } else if (mode == 1) {
+                            count = queue.dequeueMany(out, null, 1 + consumerRandom.nextInt(out.length));
+                        } else {
+                            final var pair = queue.conditionalDequeue(value -> true);
+                            if (pair != null) {
+                                out[0] = pair.right();
+                                count = 1;
+                            }
+                        }
+                        for (int i = 0; i < count; i++) {
+                            final var value = (long) (Long) out[i];
+                            final var producer = (int) (value >>> 32);
+                            final var sequence = (int) value;
+                            assertTrue(sequence > lastSequence[producer], () -> "producer order violated, " + description);
+                            lastSequence[producer] = sequence;
+                            assertEquals(1, seen.incrementAndGet(producer * PER_PRODUCER + sequence), () -> "element dequeued twice, " + description);
+                            out[i] = null;
+                        }
+                        remaining.addAndGet(-count);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "RingQueue consumer " + c));
+        }
+        
+        threads.forEach(Thread::start);
+        start.countDown();
+        for (final var thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            fail(description, failure.get());
+        }
+        for (int i = 0; i < seen.length(); i++) {
+            assertEquals(1, seen.get(i), "element " + i + " not dequeued exactly once, " + description);
+        }
+        assertEquals(0, queue.size(), description);
+        assertNull(queue.dequeue(), description);
+    }
+    
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void forceEnqueueBlocksOnFullRingUntilDequeued() throws InterruptedException {
+        final var queue = new RingQueue<Integer>(2);
+        for (int i = 0; i < 4; i++) {
+            queue.forceEnqueue(i);
+        }
+        final var enqueued = new CountDownLatch(1);
+        final var producer = new Thread(() -> {
+            queue.forceEnqueue(4);
+            enqueued.countDown();
+        }, "RingQueue blocked producer");
+        producer.start();
+        
+        assertFalse(enqueued.await(100, TimeUnit.MILLISECONDS), "forceEnqueue returned on a full ring");
+        // the index is claimed before the slot frees up, so the blocked element already counts
+        assertEquals(5, queue.size());
+        
+        assertEquals(0, queue.dequeue());
+        assertTrue(enqueued.await(5, TimeUnit.SECONDS), "forceEnqueue didn't resume after a slot was freed");
+        producer.join();
+        for (int i = 1; i < 5; i++) {
+            assertEquals(i, queue.dequeue());
+        }
+        assertNull(queue.dequeue());
+    }
+    
+    @Test
+    public void wraparoundPreservesOrder() {
+        final var seed = seed();
+        final var random = new SplittableRandom(seed);
+        final var queue = new RingQueue<Integer>(3, true);
+        final var out = new Object[8];
+        final var times = new long[8];
+        int next = 0;
+        int expected = 0;
+        // well over ten thousand laps of an 8 slot ring, with batches that straddle the wrap point
+        while (expected < 100_000) {
+            final var batchSize = 1 + random.nextInt(8 - (next - expected));
+            final var batch = new ReferenceArrayList<Integer>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                batch.add(next++);
+            }
+            queue.forceEnqueueMany(batch);
+            assertEquals(next - expected, queue.size(), "seed " + seed);
+            final var count = queue.dequeueMany(out, times, 1 + random.nextInt(8));
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected++, out[i], "seed " + seed);
+                assertTrue(times[i] != 0, "seed " + seed);
+            }
+        }
+    }
+    
+    // nothing reaches real version overflow in a test run, so start the ring far along and check indices and versions still line up
+    @Test
+    public void highLapCount() throws ReflectiveOperationException {
+        final var ringBits = 4;
+        final var queue = new RingQueue<Integer>(ringBits);
+        final var startLap = (Long.MAX_VALUE >> ringBits) - 64;
+        final var startIndex = startLap << ringBits;
+        
+        final var versions = (long[]) field("ringVersions").get(queue);
+        final var indices = (long[]) field("pushPopIndices").get(queue);
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = startLap * 2;
+        }
+        indices[(int) field("PUSH_ARRAY_INDEX").get(null)] = startIndex;
+        indices[(int) field("POP_ARRAY_INDEX").get(null)] = startIndex;
+        
+        final var out = new Object[16];
+        int expected = 0;
+        int next = 0;
+        // 32 laps, ending just short of where the long indices overflow
+        for (int lap = 0; lap < 32; lap++) {
+            queue.forceEnqueueMany(List.of(next++, next++, next++));
+            for (int i = 0; i < 13; i++) {
+                queue.forceEnqueue(next++);
+            }
+            assertEquals(16, queue.size());
+            assertEquals(expected++, queue.dequeue());
+            final var pair = queue.conditionalDequeue(value -> true);
+            assertNotNull(pair);
+            assertEquals(startIndex + expected, pair.leftLong());
+            assertEquals(expected++, pair.right());
+            final var count = queue.dequeueMany(out, null, out.length);
+            assertEquals(14, count);
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected++, out[i]);
+            }
+        }
+        assertNull(queue.dequeue());
+    }
+    
+    private static Field field(String name) throws NoSuchFieldException {
+        final var field = RingQueue.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+}
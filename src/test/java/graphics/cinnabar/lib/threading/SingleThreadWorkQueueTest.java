@@ -0,0 +1,252 @@
+package graphics.cinnabar.lib.threading;
+
+import graphics.cinnabar.api.threading.IWorkQueue;
+import graphics.cinnabar.api.threading.ThreadIndex;
+import graphics.cinnabar.api.threading.ThreadIndexLease;
+import graphics.cinnabar.api.threading.ThreadIndexRegistry;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// ordering guarantees of WorkQueue.SingleThread, failures print the seed, rerun with -Dcinnabar.stressSeed=<seed>
+// work is queued from any thread but only ever runs on the owning thread, in the order each producer queued it, and never past an unsignaled wait
+public class SingleThreadWorkQueueTest {
+    
+    private static final int PER_PRODUCER = 50_000;
+    
+    static {
+        // hands out the leases, and has to be loaded before anything reads ThreadIndex.threadCount
+        ThreadIndexRegistry.currentThreadIndex();
+    }
+    
+    private static long seed() {
+        final var property = System.getProperty("cinnabar.stressSeed", "");
+        return property.isEmpty() ? System.nanoTime() : Long.parseLong(property);
+    }
+    
+    // the test thread owns the queue
+    private static WorkQueue.SingleThread queue(ThreadIndexLease lease) {
+        return new WorkQueue.SingleThread("test", lease.threadIndex(), count -> {
+        });
+    }
+    
+    @RepeatedTest(4)
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    public void producersRunInOrderOnOwner() throws InterruptedException {
+        final var seed = seed();
+        final var random = new SplittableRandom(seed);
+        final var producers = 1 + random.nextInt(4);
+        final var description = "seed " + seed + ", producers " + producers;
+        
+        try (final var lease = ThreadIndexLease.attach()) {
+            final var owner = lease.threadIndex();
+            final var queue = queue(lease);
+            // only touched by the owning thread, which is the only one running anything
+            final var lastSequence = new int[producers];
+            Arrays.fill(lastSequence, -1);
+            final var wrongThread = new AtomicReference<ThreadIndex>();
+            final var failure = new AtomicReference<Throwable>();
+            final var start = new CountDownLatch(1);
+            final var threads = new ReferenceArrayList<Thread>();
+            
+            for (int p = 0; p < producers; p++) {
+                final var producer = p;
+                final var producerRandom = random.split();
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                        int sequence = 0;
+                        while (sequence < PER_PRODUCER) {
+                            if (producerRandom.nextInt(4) == 0) {
+                                final var batchSize = Math.min(PER_PRODUCER - sequence, 1 + producerRandom.nextInt(64));
+                                final var batch = new ReferenceArrayList<IWorkQueue.Work>(batchSize);
+                                for (int i = 0; i < batchSize; i++) {
+                                    batch.add(work(producer, sequence++, owner, lastSequence, wrongThread));
+                                }
+                                queue.enqueue(batch);
+                            } else {
+                                queue.enqueue(work(producer, sequence++, owner, lastSequence, wrongThread));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }, "SingleThread producer " + p));
+            }
+            
+            for (final var thread : threads) {
+                // a failed producer leaves the rest of its sequence unqueued, the owner stops and doesn't wait on it
+                thread.setDaemon(true);
+                thread.start();
+            }
+            start.countDown();
+            try {
+                while (failure.get() == null && !done(lastSequence)) {
+                    queue.runUntilStalled();
+                    Thread.onSpinWait();
+                }
+            } catch (AssertionError e) {
+                fail(description, e);
+            }
+            if (failure.get() != null) {
+                fail(description, failure.get());
+            }
+            for (final var thread : threads) {
+                thread.join();
+            }
+            assertNull(wrongThread.get(), description);
+            assertFalse(queue.runUntilStalled(), description);
+        }
+    }
+    
+    private static IWorkQueue.Work work(int producer, int sequence, ThreadIndex owner, int[] lastSequence, AtomicReference<ThreadIndex> wrongThread) {
+        return threadIndex -> {
+            if (!threadIndex.equals(owner)) {
+                wrongThread.compareAndSet(null, threadIndex);
+            }
+            assertEquals(lastSequence[producer] + 1, sequence, "producer " + producer + " out of order");
+            lastSequence[producer] = sequence;
+        };
+    }
+    
+    private static boolean done(int[] lastSequence) {
+        for (final var sequence : lastSequence) {
+            if (sequence != PER_PRODUCER - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Test
+    public void waitHoldsBackLaterWork() {
+        try (final var lease = ThreadIndexLease.attach()) {
+            final var queue = queue(lease);
+            final var semaphore = new AtomicQueueSemaphore();
+            final var ran = new IntArrayList();
+            queue.enqueue(threadIndex -> ran.add(0));
+            queue.wait(semaphore, 1);
+            queue.enqueue(threadIndex -> ran.add(1));
+            queue.wait(semaphore, 2);
+            queue.enqueue(threadIndex -> ran.add(2));
+            
+            queue.runUntilStalled();
+            assertEquals(IntArrayList.of(0), ran);
+            semaphore.singlaValue(1);
+            queue.runUntilStalled();
+            assertEquals(IntArrayList.of(0, 1), ran);
+            semaphore.singlaValue(2);
+            queue.runUntilStalled();
+            assertEquals(IntArrayList.of(0, 1, 2), ran);
+        }
+    }
+    
+    @Test
+    public void claimedWorkCountsTowardsDepth() {
+        try (final var lease = ThreadIndexLease.attach()) {
+            final var queue = queue(lease);
+            final var semaphore = new AtomicQueueSemaphore();
+            queue.enqueue(threadIndex -> {
+            });
+            queue.wait(semaphore, 1);
+            queue.enqueue(threadIndex -> {
+            });
+            queue.enqueue(threadIndex -> {
+            });
+            
+            // the whole ring is claimed in one batch, the two after the wait are still queued even though the ring is empty
+            queue.runUntilStalled();
+            assertEquals(2, queue.stats.sample().depth());
+            semaphore.singlaValue(1);
+            queue.runUntilStalled();
+            assertEquals(0, queue.stats.sample().depth());
+            assertEquals(4, queue.stats.sample().allTimeHighWaterMark());
+        }
+    }
+    
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS)
+    public void forkFromAnotherThreadSkipsPendingWait() {
+        try (final var lease = ThreadIndexLease.attach()) {
+            final var queue = queue(lease);
+            final var semaphore = new AtomicQueueSemaphore();
+            final var ran = new IntArrayList();
+            queue.wait(semaphore, 1);
+            queue.enqueue(threadIndex -> ran.add(0));
+            queue.runUntilStalled();
+            
+            // the join spins until the owner runs the forked half, which would never happen if it queued behind the wait
+            final var forkedOn = new AtomicReference<ThreadIndex>();
+            final var thrown = new AtomicReference<Throwable>();
+            final var other = new Thread(() -> {
+                try (final var otherLease = ThreadIndexLease.attach()) {
+                    queue.forkJoin(threadIndex -> {
+                    }, forkedOn::set);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }, "SingleThread forker");
+            other.setDaemon(true);
+            other.start();
+            while (other.isAlive()) {
+                queue.runUntilStalled();
+                Thread.onSpinWait();
+            }
+            assertNull(thrown.get());
+            assertEquals(lease.threadIndex(), forkedOn.get());
+            // the ordered work is still held back
+            assertEquals(IntArrayList.of(), ran);
+            semaphore.singlaValue(1);
+            queue.runUntilStalled();
+            assertEquals(IntArrayList.of(0), ran);
+        }
+    }
+    
+    @Test
+    public void breakpointStopsBetweenItems() {
+        try (final var lease = ThreadIndexLease.attach()) {
+            final var queue = queue(lease);
+            final var ran = new IntArrayList();
+            queue.enqueue(threadIndex -> ran.add(0));
+            final var first = queue.insertBreakpoint();
+            queue.enqueue(threadIndex -> ran.add(1));
+            final var second = queue.insertBreakpoint();
+            queue.enqueue(threadIndex -> ran.add(2));
+            
+            assertTrue(queue.runUntilBreakpointNumber(first));
+            assertEquals(IntArrayList.of(0), ran);
+            assertTrue(queue.runUntilBreakpointNumber(second));
+            assertEquals(IntArrayList.of(0, 1), ran);
+            assertTrue(queue.runAllCurrentlyEnqueued());
+            assertEquals(IntArrayList.of(0, 1, 2), ran);
+        }
+    }
+    
+    @Test
+    public void onlyTheOwnerRuns() throws InterruptedException {
+        try (final var lease = ThreadIndexLease.attach()) {
+            final var queue = queue(lease);
+            final var thrown = new AtomicReference<Throwable>();
+            final var other = new Thread(() -> {
+                try {
+                    queue.runUntilStalled();
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }, "SingleThread non-owner");
+            other.start();
+            other.join();
+            assertInstanceOf(IllegalThreadStateException.class, thrown.get());
+        }
+    }
+}